@@ -359,16 +359,7 @@ public class Ssh extends Task {
 
         log("Getting " + get + " into " + dest);
         try {
-          SftpFile file = sftp.openFile(get, SftpSubsystemClient.OPEN_READ);
-          byte[] buffer = new byte[65535];
-          BufferedInputStream in = new BufferedInputStream(new SftpFileInputStream(file));
-          BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(dest));
-          int read;
-          while((read = in.read(buffer))!=-1) {
-            out.write(buffer,0,read);
-          }
-          in.close();
-          out.close();
+          sftp.getTransferManager().download(get, new File(dest));
           log("Get complete");
         } catch(IOException ioe) {
           log("get failed: " + ioe.getMessage());
@@ -380,17 +371,7 @@ public class Ssh extends Task {
         log("Putting " + put + " into " + dest);
 
         try {
-          SftpFile file = sftp.openFile(put, SftpSubsystemClient.OPEN_WRITE
-                                                | SftpSubsystemClient.OPEN_CREATE);
-          byte[] buffer = new byte[65535];
-          BufferedInputStream in = new BufferedInputStream(new FileInputStream(dest));
-          BufferedOutputStream out = new BufferedOutputStream(new SftpFileOutputStream(file));
-          int read;
-          while((read = in.read(buffer))!=-1) {
-            out.write(buffer,0,read);
-          }
-          in.close();
-          out.close();
+          sftp.getTransferManager().upload(new File(dest), put);
           log("Put complete");
         } catch(IOException ioe) {
           log("put failed: " + ioe.getMessage());
@@ -34,13 +34,25 @@ public class AuthenticationProtocolClient extends Service {
         throw new ServiceOperationException("The Authentication Protocol client cannot be accepted");
 
       messageStore.registerMessage(SshMsgUserAuthFailure.SSH_MSG_USERAUTH_FAILURE,
-              SshMsgUserAuthFailure.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgUserAuthFailure();
+                }
+              });
 
       messageStore.registerMessage(SshMsgUserAuthSuccess.SSH_MSG_USERAUTH_SUCCESS,
-              SshMsgUserAuthSuccess.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgUserAuthSuccess();
+                }
+              });
 
       messageStore.registerMessage(SshMsgUserAuthBanner.SSH_MSG_USERAUTH_BANNER,
-              SshMsgUserAuthBanner.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgUserAuthBanner();
+                }
+              });
 
   }
 
@@ -144,6 +156,10 @@ public class AuthenticationProtocolClient extends Service {
        messageStore.registerMessage(messageId, cls);
      }
 
+     public void registerMessage(SshMessageFactory factory, int messageId) {
+       messageStore.registerMessage(messageId, factory);
+     }
+
      public SshMessage readMessage(int messageId)
          throws TerminatedStateException, AuthenticationProtocolException {
        singleIdFilter[2] = messageId;
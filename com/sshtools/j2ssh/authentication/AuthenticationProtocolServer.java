@@ -46,7 +46,11 @@ public class AuthenticationProtocolServer extends AsyncService {
   protected void onServiceInit(int startMode) throws java.io.IOException {
     // Register the required messages
     messageStore.registerMessage(SshMsgUserAuthRequest.SSH_MSG_USERAUTH_REQUEST,
-            SshMsgUserAuthRequest.class);
+            new SshMessageFactory() {
+              public SshMessage newInstance() {
+                return new SshMsgUserAuthRequest();
+              }
+            });
     transport.addMessageStore(methodMessages);
   }
 
@@ -66,6 +70,10 @@ public class AuthenticationProtocolServer extends AsyncService {
     methodMessages.registerMessage(messageId, cls);
   }
 
+  public void registerMessage(int messageId, SshMessageFactory factory) {
+    methodMessages.registerMessage(messageId, factory);
+  }
+
   protected void onServiceRequest() throws java.io.IOException {
 
     availableAuths = SshAuthenticationServerFactory.getSupportedMethods();
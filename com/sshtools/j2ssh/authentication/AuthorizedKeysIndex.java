@@ -0,0 +1,334 @@
+/*
+ *  Sshtools - Java SSH2 API
+ *
+ *  Copyright (C) 2002 Lee David Painter.
+ *
+ *  Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Library General Public License
+ *  as published by the Free Software Foundation; either version 2 of
+ *  the License, or (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Library General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Library General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.authentication;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.sshtools.j2ssh.configuration.AuthorizedKeys;
+import com.sshtools.j2ssh.transport.publickey.SshPublicKey;
+import com.sshtools.j2ssh.transport.publickey.SshPublicKeyFile;
+
+/**
+ *  Keeps the keys listed in users authorization files in memory, indexed by
+ *  the encoded public key, so that a public key authentication attempt is a
+ *  single lookup instead of parsing the authorization file and every key
+ *  file it lists. The index is shared by all connections. A users keys are
+ *  loaded again when the modification time or size of the authorization file
+ *  changes, or of any key file listed in it; the key files are checked at
+ *  most once every <code>CHECK_INTERVAL</code> milliseconds.
+ */
+public class AuthorizedKeysIndex {
+    /**
+     *  The minimum time in milliseconds between checks for changed key files
+     */
+    public final static long CHECK_INTERVAL = 5000;
+
+    /**
+     *  The maximum number of authorization files held in the index
+     */
+    public final static int MAXIMUM_USERS = 1024;
+
+    private static Logger log = Logger.getLogger(AuthorizedKeysIndex.class);
+    private static AuthorizedKeysIndex instance = new AuthorizedKeysIndex();
+    private Map users = new HashMap();
+
+
+    /**
+     *  Gets the index shared by all connections
+     *
+     *@return    the authorized keys index
+     */
+    public static AuthorizedKeysIndex getInstance() {
+        return instance;
+    }
+
+
+    /**
+     *  Looks up a public key in a users authorization file
+     *
+     *@param  authorizationFile  the users authorization file
+     *@param  userConfigDir      the directory relative key files are found in
+     *@param  encoded            the encoded public key
+     *@return                    the authorized key or <tt>null</tt> if the
+     *      key is not authorized
+     *@throws  IOException       if the authorization file cannot be loaded
+     */
+    public SshPublicKey getAuthorizedKey(File authorizationFile,
+            String userConfigDir, byte encoded[])
+             throws IOException {
+        String path = authorizationFile.getAbsolutePath();
+        UserKeys keys;
+
+        synchronized (users) {
+            keys = (UserKeys) users.get(path);
+
+            if (keys == null) {
+                if (users.size() >= MAXIMUM_USERS) {
+                    users.clear();
+                }
+
+                keys = new UserKeys(authorizationFile, userConfigDir);
+                users.put(path, keys);
+            }
+        }
+
+        return keys.getKey(userConfigDir, encoded);
+    }
+
+
+    /**
+     *  Removes every user from the index
+     */
+    public void clear() {
+        synchronized (users) {
+            users.clear();
+        }
+    }
+
+
+    /**
+     *  The authorized keys of a single authorization file
+     */
+    private static class UserKeys {
+        private FileState authorizationFile;
+        private String userConfigDir;
+        private List keyFiles = new ArrayList();
+        private Map keys = new HashMap();
+        private boolean isLoaded = false;
+        private long lastChecked = 0;
+
+
+        /**
+         *  Creates a new UserKeys object.
+         *
+         *@param  authorizationFile  the authorization file
+         *@param  userConfigDir      the directory relative key files are
+         *      found in
+         */
+        UserKeys(File authorizationFile, String userConfigDir) {
+            this.authorizationFile = new FileState(authorizationFile);
+            this.userConfigDir = userConfigDir;
+        }
+
+
+        /**
+         *  Gets an authorized key, loading the keys if they have changed
+         *
+         *@param  userConfigDir  the directory relative key files are found in
+         *@param  encoded        the encoded public key
+         *@return                the authorized key or <tt>null</tt>
+         *@throws  IOException   if the authorization file cannot be loaded
+         */
+        synchronized SshPublicKey getKey(String userConfigDir, byte encoded[])
+                 throws IOException {
+            if (!isLoaded || !userConfigDir.equals(this.userConfigDir)
+                    || authorizationFile.hasChanged() || keyFilesChanged()) {
+                this.userConfigDir = userConfigDir;
+                load();
+            }
+
+            return (SshPublicKey) keys.get(new Blob(encoded));
+        }
+
+
+        /**
+         *  Determine if a key file has changed, checking no more than once
+         *  every <code>CHECK_INTERVAL</code> milliseconds
+         *
+         *@return    <tt>true</tt> if a key file has changed
+         */
+        private boolean keyFilesChanged() {
+            long now = System.currentTimeMillis();
+
+            if ((now - lastChecked) < CHECK_INTERVAL) {
+                return false;
+            }
+
+            lastChecked = now;
+
+            Iterator it = keyFiles.iterator();
+
+            while (it.hasNext()) {
+                if (((FileState) it.next()).hasChanged()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+
+        /**
+         *  Parses the authorization file and every key file it lists
+         *
+         *@throws  IOException  if the authorization file cannot be loaded
+         */
+        private void load()
+                 throws IOException {
+            isLoaded = false;
+            keys.clear();
+            keyFiles.clear();
+            authorizationFile.update();
+            lastChecked = System.currentTimeMillis();
+
+            AuthorizedKeys authorized;
+            FileInputStream in = new FileInputStream(authorizationFile.file);
+
+            try {
+                authorized = new AuthorizedKeys(in);
+            } catch (Exception e) {
+                throw new AuthenticationProtocolException("Failed to load authorized keys file "
+                        + authorizationFile.file.getPath());
+            } finally {
+                in.close();
+            }
+
+            Iterator it = authorized.getAuthorizedKeys().iterator();
+
+            while (it.hasNext()) {
+                String keyfile = (String) it.next();
+
+                // Look for the file in the user config dir first
+                File file = new File(userConfigDir + keyfile);
+
+                // If it does not exist then look absolute
+                if (!file.exists()) {
+                    file = new File(keyfile);
+                }
+
+                // Remember missing files too so that adding them is noticed
+                FileState state = new FileState(file);
+                state.update();
+                keyFiles.add(state);
+
+                if (!file.exists()) {
+                    log.info("Failed attempt to load key file " + keyfile);
+
+                    continue;
+                }
+
+                try {
+                    SshPublicKey key = SshPublicKeyFile.parse(file).toPublicKey();
+                    keys.put(new Blob(key.getEncoded()), key);
+                } catch (IOException ioe) {
+                    log.info("Failed attempt to load key file " + keyfile);
+                }
+            }
+
+            isLoaded = true;
+        }
+    }
+
+
+    /**
+     *  The modification time and size of a file when it was last loaded
+     */
+    private static class FileState {
+        private File file;
+        private long lastModified;
+        private long length;
+
+
+        /**
+         *  Creates a new FileState object.
+         *
+         *@param  file  the file
+         */
+        FileState(File file) {
+            this.file = file;
+        }
+
+
+        /**
+         *  Records the current modification time and size of the file
+         */
+        void update() {
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+
+
+        /**
+         *  Determine if the file has changed since it was recorded
+         *
+         *@return    <tt>true</tt> if the file has changed
+         */
+        boolean hasChanged() {
+            return (file.lastModified() != lastModified)
+                    || (file.length() != length);
+        }
+    }
+
+
+    /**
+     *  An encoded public key usable as a map key
+     */
+    private static class Blob {
+        private byte data[];
+        private int hashCode;
+
+
+        /**
+         *  Creates a new Blob object.
+         *
+         *@param  data  the encoded public key
+         */
+        Blob(byte data[]) {
+            this.data = data;
+
+            for (int i = 0; i < data.length; i++) {
+                hashCode = (31 * hashCode) + data[i];
+            }
+        }
+
+
+        /**
+         *  Gets the hash code of the encoded key
+         *
+         *@return    the hash code
+         */
+        public int hashCode() {
+            return hashCode;
+        }
+
+
+        /**
+         *  Compares the encoded keys
+         *
+         *@param  obj  the object to compare
+         *@return      <tt>true</tt> if the keys are equal
+         */
+        public boolean equals(Object obj) {
+            return (obj instanceof Blob) && Arrays.equals(data, ((Blob) obj).data);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.util.*;
 import java.awt.*;
 import com.sshtools.j2ssh.io.*;
 import com.sshtools.j2ssh.transport.SshMessage;
+import com.sshtools.j2ssh.transport.SshMessageFactory;
 import javax.swing.JOptionPane;
 
 public class KBIAuthenticationClient extends SshAuthenticationClient {
@@ -24,8 +25,11 @@ public class KBIAuthenticationClient extends SshAuthenticationClient {
     if(handler==null)
       throw new AuthenticationProtocolException("A request handler must be set!");
 
-    authentication.registerMessage(SshMsgUserAuthInfoRequest.class
-                                   , SshMsgUserAuthInfoRequest.SSH_MSG_USERAUTH_INFO_REQUEST);
+    authentication.registerMessage(new SshMessageFactory() {
+                                     public SshMessage newInstance() {
+                                       return new SshMsgUserAuthInfoRequest();
+                                     }
+                                   }, SshMsgUserAuthInfoRequest.SSH_MSG_USERAUTH_INFO_REQUEST);
     // Send the authentication request
     ByteArrayWriter baw = new ByteArrayWriter();
     baw.writeString("");
@@ -42,6 +42,7 @@ import com.sshtools.j2ssh.transport.TransportProtocolException;
 import com.sshtools.j2ssh.io.ByteArrayReader;
 import com.sshtools.j2ssh.io.ByteArrayWriter;
 import com.sshtools.j2ssh.transport.SshMessage;
+import com.sshtools.j2ssh.transport.SshMessageFactory;
 
 /**
  *  This class implements Password Authentication over keyboard interactive
@@ -110,9 +111,12 @@ public class KBIPasswordAuthenticationServer
             return AuthenticationProtocolState.FAILED;
         }
 
-        authentication.registerMessage(
-               SshMsgUserAuthInfoResponse.SSH_MSG_USERAUTH_INFO_RESPONSE,
-                                       SshMsgUserAuthInfoResponse.class);
+        authentication.registerMessage(SshMsgUserAuthInfoResponse.SSH_MSG_USERAUTH_INFO_RESPONSE,
+                new SshMessageFactory() {
+                  public SshMessage newInstance() {
+                    return new SshMsgUserAuthInfoResponse();
+                  }
+                });
         /**
          *  Send a message to request the password
          */
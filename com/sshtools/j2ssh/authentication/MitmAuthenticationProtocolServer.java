@@ -20,6 +20,7 @@ import com.sshtools.j2ssh.configuration.ServerConfiguration;
 import com.sshtools.j2ssh.transport.Service;
 import com.sshtools.j2ssh.transport.ServiceOperationException;
 import com.sshtools.j2ssh.transport.SshMessage;
+import com.sshtools.j2ssh.transport.SshMessageFactory;
 import com.sshtools.j2ssh.transport.SshMessageStore;
 
 /**
@@ -188,7 +189,11 @@ public class MitmAuthenticationProtocolServer
 	protected void onServiceInit(int startMode) throws java.io.IOException {
 	  // Register the required messages
 	  messageStore.registerMessage(SshMsgUserAuthRequest.SSH_MSG_USERAUTH_REQUEST,
-			  SshMsgUserAuthRequest.class);
+			  new SshMessageFactory() {
+				public SshMessage newInstance() {
+				  return new SshMsgUserAuthRequest();
+				}
+			  });
 	  transport.addMessageStore(methodMessages);
 	}
 
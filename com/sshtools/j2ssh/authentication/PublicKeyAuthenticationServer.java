@@ -29,10 +29,8 @@ import java.awt.Frame;
 import java.awt.Window;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 
@@ -63,7 +61,6 @@ import com.sshtools.j2ssh.transport.publickey.SshtoolsPrivateKeyFormat;
 import com.sshtools.j2ssh.io.ByteArrayReader;
 import com.sshtools.j2ssh.io.ByteArrayWriter;
 
-import com.sshtools.j2ssh.configuration.AuthorizedKeys;
 
 import com.sshtools.j2ssh.SshException;
 
@@ -195,66 +192,33 @@ public class PublicKeyAuthenticationServer
                         return AuthenticationProtocolState.FAILED;
                     }
 
-                    FileInputStream in = new FileInputStream(file);
-                    AuthorizedKeys keys;
-                    try {
-                      keys = new AuthorizedKeys(in);
-                    } catch(Exception e) {
-                      throw new AuthenticationProtocolException("Failed to load authorized keys file " + authorizationFile);
-                    }
-
-                    Iterator it = keys.getAuthorizedKeys().iterator();
-
                     SshKeyPair pair = SshKeyPairFactory.newInstance(algorithm);
-                    SshPublicKey authorizedKey = null;
                     SshPublicKey key = pair.decodePublicKey(encoded);
-                    boolean valid = false;
-                    String keyfile;
-
-                    while (it.hasNext()) {
-                        keyfile = (String) it.next();
-
-                        // Look for the file in the user config dir first
-                        file = new File(userConfigDir + keyfile);
-
-                        // If it does not exist then look absolute
-                        if (!file.exists()) {
-                            file = new File(keyfile);
-                        }
-
-                        if (file.exists()) {
-
-                          // Try to open the public key in the default file format
-                          // otherwise attempt the supported key formats
-                          SshPublicKeyFile pkf =
-                                    SshPublicKeyFile.parse(file);
-                            authorizedKey = pkf.toPublicKey();
-
-                           if (authorizedKey.getFingerprint().equals(key.getFingerprint())) {
-                                /**
-                                 * Now determine ownership of the private key
-                                 */
-                                signature = bar.readBinaryString();
-
-                                ByteArrayWriter data = new ByteArrayWriter();
-                                data.writeBinaryString(authentication.getSessionIdentifier());
-                                data.write(SshMsgUserAuthRequest.SSH_MSG_USERAUTH_REQUEST);
-                                data.writeString(msg.getUsername());
-                                data.writeString(msg.getServiceName());
-                                data.writeString(getMethodName());
-                                data.write(1);
-                                data.writeString(key.getAlgorithmName());
-                                data.writeBinaryString(key.getEncoded());
-
-                                if (key.verifySignature(signature, data.toByteArray()))
-                                    return AuthenticationProtocolState.COMPLETE;
-                           }
-                        } else {
-                            log.info("Failed attempt to load key file "
-                                    + keyfile);
-                        }
-                    }
 
+                    // Look the key up in the shared index of authorized keys
+                    SshPublicKey authorizedKey =
+                            AuthorizedKeysIndex.getInstance().getAuthorizedKey(file,
+                            userConfigDir, key.getEncoded());
+
+                    if (authorizedKey != null) {
+                        /**
+                         * Now determine ownership of the private key
+                         */
+                        signature = bar.readBinaryString();
+
+                        ByteArrayWriter data = new ByteArrayWriter();
+                        data.writeBinaryString(authentication.getSessionIdentifier());
+                        data.write(SshMsgUserAuthRequest.SSH_MSG_USERAUTH_REQUEST);
+                        data.writeString(msg.getUsername());
+                        data.writeString(msg.getServiceName());
+                        data.writeString(getMethodName());
+                        data.write(1);
+                        data.writeString(key.getAlgorithmName());
+                        data.writeBinaryString(key.getEncoded());
+
+                        if (key.verifySignature(signature, data.toByteArray()))
+                            return AuthenticationProtocolState.COMPLETE;
+                    }
                 }
             }
 
@@ -19,6 +19,7 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import org.apache.log4j.Logger;
+import com.sshtools.j2ssh.transport.HostKeyRegistry;
 
 public class ServerConfiguration extends DefaultHandler {
 
@@ -34,6 +35,10 @@ public class ServerConfiguration extends DefaultHandler {
   private String authorizationFile = "";
   private String userConfigDirectory = "";
   private String authenticationBanner = "";
+  private long coalescingWindow = 0;
+  private int maxBatchSize = 32768;
+  private boolean reloadHostKeys = false;
+  private HostKeyRegistry hostKeyRegistry = null;
   private static Logger log = Logger.getLogger(ServerConfiguration.class);
   private String currentElement = null;
 
@@ -59,8 +64,15 @@ public class ServerConfiguration extends DefaultHandler {
     authorizationFile = "";
     userConfigDirectory = "";
     authenticationBanner = "";
+    coalescingWindow = 0;
+    maxBatchSize = 32768;
+    reloadHostKeys = false;
     currentElement = null;
 
+    synchronized(this) {
+      hostKeyRegistry = null;
+    }
+
     SAXParserFactory saxFactory = SAXParserFactory.newInstance();
     SAXParser saxParser = saxFactory.newSAXParser();
 
@@ -119,7 +131,10 @@ public class ServerConfiguration extends DefaultHandler {
                   && !qname.equals("AllowedAuthentication")
                   && !qname.equals("RequiredAuthentication")
                   && !qname.equals("AuthorizationFile")
-                  && !qname.equals("UserConfigDirectory"))
+                  && !qname.equals("UserConfigDirectory")
+                  && !qname.equals("CoalescingWindow")
+                  && !qname.equals("MaxBatchSize")
+                  && !qname.equals("ReloadHostKeys"))
                     throw new SAXException("Unexpected <" + qname + "> element after SshAPIConfiguration");
           }
       }
@@ -167,6 +182,15 @@ public class ServerConfiguration extends DefaultHandler {
       } else if(currentElement.equals("UserConfigDirectory")) {
         userConfigDirectory = value;
         log.debug("UserConfigDirectory=" + userConfigDirectory);
+      } else if(currentElement.equals("CoalescingWindow")) {
+        coalescingWindow = Long.parseLong(value);
+        log.debug("CoalescingWindow=" + value);
+      } else if(currentElement.equals("MaxBatchSize")) {
+        maxBatchSize = Integer.parseInt(value);
+        log.debug("MaxBatchSize=" + value);
+      } else if(currentElement.equals("ReloadHostKeys")) {
+        reloadHostKeys = Boolean.valueOf(value.trim()).booleanValue();
+        log.debug("ReloadHostKeys=" + value);
       }
     }
 
@@ -191,7 +215,10 @@ public class ServerConfiguration extends DefaultHandler {
                   || currentElement.equals("AllowedAuthentication")
                   || currentElement.equals("RequiredAuthentication")
                   || currentElement.equals("AuthorizationFile")
-                  || currentElement.equals("UserConfigDirectory"))
+                  || currentElement.equals("UserConfigDirectory")
+                  || currentElement.equals("CoalescingWindow")
+                  || currentElement.equals("MaxBatchSize")
+                  || currentElement.equals("ReloadHostKeys"))
         currentElement = "ServerConfiguration";
       } else
         throw new SAXException("Unexpected end element <" + qname + "> found");
@@ -238,6 +265,25 @@ public class ServerConfiguration extends DefaultHandler {
     return serverHostKeys;
   }
 
+  public boolean isReloadHostKeys() {
+    return reloadHostKeys;
+  }
+
+  /**
+   * Gets the registry of parsed server host keys, loading the keys the
+   * first time it is called after the configuration is loaded
+   *
+   * @return the host key registry
+   */
+  public synchronized HostKeyRegistry getHostKeyRegistry() {
+    if(hostKeyRegistry == null) {
+      hostKeyRegistry = new HostKeyRegistry(serverHostKeys);
+      hostKeyRegistry.setReloadOnChange(reloadHostKeys);
+    }
+
+    return hostKeyRegistry;
+  }
+
   public Map getSubsystems() {
     return allowedSubsystems;
   }
@@ -246,6 +292,14 @@ public class ServerConfiguration extends DefaultHandler {
     return terminalProvider;
   }
 
+  public long getCoalescingWindow() {
+    return coalescingWindow;
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
   public String toString() {
      String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
      xml += "<!-- Server configuration file - If filenames are not absolute they are assummed to be in the same directory as this configuration file. -->\n";
@@ -277,6 +331,12 @@ public class ServerConfiguration extends DefaultHandler {
      xml +="   <Port>" + String.valueOf(port) + "</Port>\n";
      xml+= "   <!-- Listen on the following port (on localhost) for server commands such as stop -->\n";
      xml +="   <CommandPort>" + String.valueOf(commandPort) + "</CommandPort>\n";
+     xml+= "   <!-- Hold outgoing channel packets for up to this many milliseconds so they are written together, 0 to disable -->\n";
+     xml +="   <CoalescingWindow>" + String.valueOf(coalescingWindow) + "</CoalescingWindow>\n";
+     xml+= "   <!-- The maximum number of bytes to hold before writing coalesced packets -->\n";
+     xml +="   <MaxBatchSize>" + String.valueOf(maxBatchSize) + "</MaxBatchSize>\n";
+     xml+= "   <!-- Load the host key files again when they change -->\n";
+     xml +="   <ReloadHostKeys>" + String.valueOf(reloadHostKeys) + "</ReloadHostKeys>\n";
      xml+= "   <!-- Specify the executable that provides the default shell -->\n";
      xml +="   <TerminalProvider>" + terminalProvider + "</TerminalProvider>\n";
 
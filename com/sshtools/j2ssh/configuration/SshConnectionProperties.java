@@ -59,6 +59,8 @@ public class SshConnectionProperties {
     protected String prefSendMac = SshHmacFactory.getDefaultHmac();
     protected String username;
     protected int port = 22;
+    protected long coalescingWindow = 0;
+    protected int maxBatchSize = 32768;
 
     /**
      * Constructor for the SshConnectionProperties object
@@ -246,6 +248,46 @@ public class SshConnectionProperties {
         return prefRecvMac;
     }
 
+    /**
+     * Sets the time in milliseconds that outgoing connection protocol packets
+     * may be held so that they can be written to the socket together. A
+     * value of zero writes every packet immediately.
+     *
+     * @param coalescingWindow the window in milliseconds
+     */
+    public void setCoalescingWindow(long coalescingWindow) {
+        this.coalescingWindow = coalescingWindow;
+    }
+
+    /**
+     * Gets the time in milliseconds that outgoing packets may be held
+     *
+     * @return the window in milliseconds
+     */
+    public long getCoalescingWindow() {
+        return coalescingWindow;
+    }
+
+    /**
+     * Sets the maximum number of bytes held before coalesced packets are
+     * written to the socket
+     *
+     * @param maxBatchSize the maximum batch size in bytes
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Gets the maximum number of bytes held before coalesced packets are
+     * written to the socket
+     *
+     * @return the maximum batch size in bytes
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
     /**
      * Sets the username for the connection
      *
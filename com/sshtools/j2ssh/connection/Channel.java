@@ -94,6 +94,13 @@ public abstract class Channel {
     private boolean isClosed = false;
     private boolean isLocalEOF = false;
     private boolean isRemoteEOF = false;
+    private boolean isOpenDeferred = false;
+    private long localWindowSize;
+    private long windowConsumed = 0;
+    private long lastAdjustTime;
+    private long bufferedData = 0;
+    private long maximumBufferedData;
+    private Object windowLock = new Object();
 
 
     /**
@@ -102,7 +109,9 @@ public abstract class Channel {
      */
     public Channel() {
         this.localPacketSize = getMaximumPacketSize();
-        this.localWindow.increaseWindowSpace(getMaximumWindowSpace());
+        this.localWindowSize = getMaximumWindowSpace();
+        this.localWindow.increaseWindowSpace(localWindowSize);
+        this.maximumBufferedData = getMaximumWindowSpace();
     }
 
 
@@ -144,6 +153,61 @@ public abstract class Channel {
     protected abstract int getMaximumWindowSpace();
 
 
+    /**
+     *  Get the largest number of bytes the window space may grow to when the
+     *  window is tuned to the round trip time and data rate of the
+     *  connection.
+     *
+     *@return    the limit of the window space
+     */
+    protected int getWindowSpaceLimit() {
+        return getMaximumWindowSpace() * 16;
+    }
+
+
+    /**
+     *  Sets the number of bytes of received data that may wait to be read
+     *  before the window stops being replenished as data arrives. Beyond this
+     *  the window is only replenished as the data is read, so a remote side
+     *  sending faster than the channel is read is held back by the window
+     *  and the data held for the channel never exceeds this amount plus the
+     *  window space. A value of zero replenishes the window only as data is
+     *  read.
+     *
+     *@param  maximumBufferedData  the number of bytes
+     */
+    public void setMaximumBufferedData(long maximumBufferedData) {
+        synchronized (windowLock) {
+            this.maximumBufferedData = maximumBufferedData;
+        }
+    }
+
+
+    /**
+     *  Gets the number of bytes of received data that may wait to be read
+     *  before the window is only replenished as data is read
+     *
+     *@return    the number of bytes
+     */
+    public long getMaximumBufferedData() {
+        synchronized (windowLock) {
+            return maximumBufferedData;
+        }
+    }
+
+
+    /**
+     *  Gets the number of bytes of received data waiting to be read
+     *
+     *@return    the number of bytes
+     */
+    public long getBufferedData() {
+        synchronized (windowLock) {
+            return bufferedData;
+        }
+    }
+
+
     /**
      *  Gets the maximum number of bytes the remote side can send at once
      *
@@ -163,20 +227,163 @@ public abstract class Channel {
     public void onChannelData(SshMsgChannelData msg)
              throws IOException {
 
-        if (msg.getChannelDataLength() > localWindow.getWindowSpace()) {
-            throw new ServiceOperationException("More data recieved than is allowed by the channel data window");
+        consumeLocalWindow(msg.getChannelData().length);
+
+        incoming.addMessage(msg);
+    }
+
+    /**
+     *  Consumes local window space for data received, which is then counted
+     *  as buffered until <code>releaseLocalWindow</code> is called for it.
+     *  A window adjustment is sent once half of the window has been used,
+     *  less any data buffered beyond the maximum. The window grows when the
+     *  data received in one round trip would not fit into half of the
+     *  window.
+     *
+     *@param  count                        the number of bytes received
+     *@throws  TransportProtocolException  if a transport protocol error occurs
+     *@throws  ServiceOperationException   if no window space is available for
+     *      the data
+     */
+    protected void consumeLocalWindow(int count)
+             throws IOException {
+        long adjustment;
+
+        synchronized (windowLock) {
+            if (count > localWindow.getWindowSpace()) {
+                throw new ServiceOperationException("More data recieved than is allowed by the channel data window");
+            }
+
+            localWindow.consumeWindowSpace(count);
+            windowConsumed += count;
+            bufferedData += count;
+            adjustment = getWindowAdjustment();
         }
 
-        long windowSpace = localWindow.consumeWindowSpace(msg.getChannelData().length);
+        sendWindowAdjustment(adjustment);
+    }
 
-        if (windowSpace < getMinimumWindowSpace()) {
-            log.debug("Channel " + String.valueOf(localChannelId) + " requires more window space");
-            windowSpace = getMaximumWindowSpace() - windowSpace;
-            connection.sendChannelWindowAdjust(this, windowSpace);
-            localWindow.increaseWindowSpace(windowSpace);
+
+    /**
+     *  Called once received data has been read, or otherwise handed on, so
+     *  that the window space it used can be returned to the remote side
+     *
+     *@param  count                        the number of bytes read
+     *@throws  TransportProtocolException  if a transport protocol error occurs
+     */
+    protected void releaseLocalWindow(int count)
+             throws IOException {
+        long adjustment;
+
+        synchronized (windowLock) {
+            bufferedData -= count;
+
+            if (bufferedData < 0) {
+                bufferedData = 0;
+            }
+
+            adjustment = getWindowAdjustment();
         }
 
-        incoming.addMessage(msg);
+        sendWindowAdjustment(adjustment);
+    }
+
+
+    /**
+     *  Works out the window space to return to the remote side, adding it to
+     *  the local window. Must be called holding the window lock.
+     *
+     *@return    the number of bytes to adjust the window by, or zero
+     */
+    private long getWindowAdjustment() {
+        long windowSpace = localWindow.getWindowSpace();
+        boolean isLow = windowSpace < getMinimumWindowSpace();
+
+        if (!isLow && windowSpace > localWindowSize / 2) {
+            return 0;
+        }
+
+        // Data waiting beyond the maximum is held back from the window
+        long excess = bufferedData - maximumBufferedData;
+        long adjustment = localWindowSize - windowSpace - (excess > 0 ? excess : 0);
+
+        if (adjustment <= 0 || (!isLow && adjustment < localWindowSize / 2)) {
+            return 0;
+        }
+
+        log.debug("Channel " + String.valueOf(localChannelId) + " requires more window space");
+
+        long windowSize = localWindowSize;
+        tuneWindowSize();
+        adjustment += localWindowSize - windowSize;
+        localWindow.increaseWindowSpace(adjustment);
+
+        return adjustment;
+    }
+
+
+    /**
+     *  Sends a window adjustment unless there is nothing to send or the
+     *  channel has closed
+     *
+     *@param  adjustment                   the number of bytes to add
+     *@throws  TransportProtocolException  if a transport protocol error occurs
+     */
+    private void sendWindowAdjustment(long adjustment)
+             throws IOException {
+        if (adjustment > 0 && !isClosed()) {
+            connection.sendChannelWindowAdjust(this, adjustment);
+        }
+    }
+
+
+    /**
+     *  Grows the window towards twice the amount of data the remote side can
+     *  send in one round trip at the rate measured since the last adjustment
+     */
+    private void tuneWindowSize() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastAdjustTime;
+        long rtt = connection.getRoundTripTime();
+
+        if (rtt > 0 && elapsed > 0 && localWindowSize < getWindowSpaceLimit()) {
+            long target = (windowConsumed * rtt / elapsed) * 2;
+
+            if (target > localWindowSize) {
+                localWindowSize = Math.min(Math.min(target, localWindowSize * 2),
+                        getWindowSpaceLimit());
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Channel " + String.valueOf(localChannelId)
+                            + " window space increased to "
+                            + String.valueOf(localWindowSize));
+                }
+            }
+        }
+
+        windowConsumed = 0;
+        lastAdjustTime = now;
+    }
+
+    /**
+     *  Called by the framework when the remote side will send no more data.
+     *  The default implementation closes the channels InputStream.
+     *
+     *@throws  IOException  if the InputStream cannot be closed
+     */
+    protected void onRemoteEOF()
+             throws IOException {
+        getInputStream().close();
+    }
+
+
+    /**
+     *  Called by the framework when the remote side adds space to its window
+     *
+     *@param  bytesToAdd  the number of bytes added to the remote window
+     */
+    protected void onChannelWindowAdjust(long bytesToAdd) {
+        remoteWindow.increaseWindowSpace(bytesToAdd);
     }
 
     /**
@@ -187,6 +394,52 @@ public abstract class Channel {
       return state.getValue()==ChannelState.CHANNEL_CLOSED;
     }
 
+    /**
+     * Called from <code>onChannelOpen</code> by channels that complete their
+     * opening asynchronously. The connection protocol will not confirm the
+     * channel; the channel must later call either <code>confirmOpen</code> or
+     * <code>refuseOpen</code>.
+     */
+    protected void deferOpenConfirmation() {
+      isOpenDeferred = true;
+    }
+
+    /**
+     * Determine if the channel confirms its own opening
+     * @return <tt>true</tt> if the opening is deferred otherwise <tt>false</tt>
+     */
+    protected boolean isOpenDeferred() {
+      return isOpenDeferred;
+    }
+
+    /**
+     * Sends the deferred SSH_MSG_CHANNEL_OPEN_CONFIRMATION for a channel
+     * opened by the remote side
+     * @throws IOException if the confirmation cannot be sent
+     */
+    protected void confirmOpen() throws IOException {
+      connection.confirmChannelOpen(this);
+    }
+
+    /**
+     * Sends the deferred SSH_MSG_CHANNEL_OPEN_FAILURE for a channel opened by
+     * the remote side and discards the channel
+     * @param additionalInfo    the reason the channel could not be opened
+     * @param resourceShortage  <tt>true</tt> if the channel was refused for
+     *                          lack of resources rather than a failure to
+     *                          connect
+     * @throws IOException if the failure cannot be sent
+     */
+    protected void refuseOpen(String additionalInfo, boolean resourceShortage)
+                              throws IOException {
+      state.setValue(ChannelState.CHANNEL_CLOSED);
+      remoteWindow.close();
+      connection.refuseChannelOpen(this,
+          resourceShortage ? SshMsgChannelOpenFailure.SSH_OPEN_RESOURCE_SHORTAGE
+                           : SshMsgChannelOpenFailure.SSH_OPEN_CONNECT_FAILED,
+          additionalInfo);
+    }
+
     /**
      * Sends data to the remote side through the parent connection
      * @param data    the data to send
@@ -216,18 +469,10 @@ public abstract class Channel {
     public void onChannelExtData(SshMsgChannelExtendedData msg)
              throws IOException {
 
-        if (msg.getChannelData().length > localWindow.getWindowSpace()) {
-            throw new ServiceOperationException("More data recieved than is allowed by the channel data window");
-        }
-
-        long windowSpace = localWindow.consumeWindowSpace(msg.getChannelData().length);
-
-        if (windowSpace < getMinimumWindowSpace()) {
-            log.debug("Channel " + String.valueOf(localChannelId) + " requires more window space");
-            windowSpace = getMaximumWindowSpace() - windowSpace;
-            connection.sendChannelWindowAdjust(this, windowSpace);
-            localWindow.increaseWindowSpace(windowSpace);
-        }
+        // Extended data, such as stderr, is often never read so its window
+        // space is returned as soon as it arrives
+        consumeLocalWindow(msg.getChannelData().length);
+        releaseLocalWindow(msg.getChannelData().length);
 
         incoming.addMessage(msg);
     }
@@ -337,6 +582,9 @@ public abstract class Channel {
 
         state.setValue(ChannelState.CHANNEL_CLOSED);
 
+        // Release any threads waiting to send data
+        remoteWindow.close();
+
         onChannelClose();
 
         connection.closeChannel(this);
@@ -366,7 +614,8 @@ public abstract class Channel {
         this.remoteWindow.increaseWindowSpace(initialWindowSize);
         this.connection = connection;
         this.nativeSettings = nativeSettings;
-        this.in = new ChannelInputStream(incoming);
+        this.lastAdjustTime = System.currentTimeMillis();
+        this.in = new ChannelInputStream(incoming, null, this);
         this.out = new ChannelOutputStream(this);
 
         onChannelOpen();
@@ -25,7 +25,9 @@ import org.apache.log4j.Logger;
 
 
 /**
- * A synchronized object to manage the channels window space
+ * A synchronized object to manage the channels window space. Threads waiting
+ * for space are woken as soon as the space is increased or the window is
+ * closed.
  *
  * @author <A HREF="mailto:lee@sshtools.com">Lee David Painter</A>
  * @version $Id: ChannelDataWindow.java,v 1.6 2002/12/18 19:27:29 martianx Exp $
@@ -33,6 +35,7 @@ import org.apache.log4j.Logger;
 public class ChannelDataWindow {
     private static Logger log = Logger.getLogger(ChannelDataWindow.class);
     long windowSpace = 0;
+    private boolean isClosed = false;
 
     /**
      * The constructor
@@ -51,13 +54,20 @@ public class ChannelDataWindow {
     }
 
     /**
-     * Consumes window space
+     * Consumes window space, waiting until the space is available. If the
+     * window is closed whilst waiting no space is consumed.
      *
      * @param count the number of bytes to consume
+     *
+     * @return the remaining window space
      */
     public synchronized long consumeWindowSpace(int count) {
         if (windowSpace<count) {
             waitForWindowSpace(count);
+
+            if (windowSpace<count) {
+                return windowSpace;
+            }
         }
 
         windowSpace -= count;
@@ -65,6 +75,29 @@ public class ChannelDataWindow {
         return windowSpace;
     }
 
+    /**
+     * Consumes as much of the window space as is available up to the
+     * maximum, waiting until at least one byte is available.
+     *
+     * @param maximum the maximum number of bytes to consume
+     *
+     * @return the number of bytes consumed, zero if the window is closed
+     */
+    public synchronized int consumeAvailableWindowSpace(int maximum) {
+        if (windowSpace<=0) {
+            waitForWindowSpace(1);
+
+            if (windowSpace<=0) {
+                return 0;
+            }
+        }
+
+        int count = windowSpace<maximum ? (int) windowSpace : maximum;
+        windowSpace -= count;
+
+        return count;
+    }
+
     /**
      * Increases the window space
      *
@@ -80,8 +113,27 @@ public class ChannelDataWindow {
         notifyAll();
     }
 
+    /**
+     * Closes the window and releases any waiting threads
+     */
+    public synchronized void close() {
+        isClosed = true;
+
+        notifyAll();
+    }
+
+    /**
+     * Determine if the window has been closed
+     *
+     * @return <tt>true</tt> if the window is closed otherwise <tt>false</tt>
+     */
+    public synchronized boolean isClosed() {
+        return isClosed;
+    }
+
     /**
      * Waits until the specified number of bytes is available in the window
+     * or the window is closed
      *
      * @param minimum the minumum number of bytes needed
      */
@@ -91,9 +143,9 @@ public class ChannelDataWindow {
                       + " bytes of window space");
         }
 
-        while (windowSpace<minimum) {
+        while (windowSpace<minimum && !isClosed) {
             try {
-                wait(50);
+                wait();
             } catch (InterruptedException e) {
             }
         }
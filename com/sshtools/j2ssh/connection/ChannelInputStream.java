@@ -43,6 +43,7 @@ public class ChannelInputStream
     int currentPos = 0;
     private SshMessageStore messageStore;
     private Integer type = null;
+    private Channel channel;
 
     /**
      * Creates a new ChannelInputStream object.
@@ -51,7 +52,21 @@ public class ChannelInputStream
      * @param type the extended channel data type
      */
     public ChannelInputStream(SshMessageStore messageStore, Integer type) {
+        this(messageStore, type, null);
+    }
+
+    /**
+     * Creates a new ChannelInputStream that returns window space to the
+     * channel as its data is read
+     *
+     * @param messageStore the message store receiving data
+     * @param type the extended channel data type
+     * @param channel the channel whose window is released, or <tt>null</tt>
+     */
+    public ChannelInputStream(SshMessageStore messageStore, Integer type,
+                              Channel channel) {
         this.messageStore = messageStore;
+        this.channel = channel;
         filter = new int[1];
         this.type = type;
         if(type!=null)
@@ -133,7 +148,10 @@ public class ChannelInputStream
 
           block();
 
-          return msgdata[currentPos++] & 0xFF;
+          int b = msgdata[currentPos++] & 0xFF;
+          released();
+
+          return b;
 
         } catch(MessageStoreEOFException mse) {
           return -1;
@@ -169,6 +187,7 @@ public class ChannelInputStream
 
         System.arraycopy(msgdata, currentPos, b, off, actual);
         currentPos += actual;
+        released();
 
         return actual;
 
@@ -177,6 +196,54 @@ public class ChannelInputStream
       }
     }
 
+    /**
+     * Reads the remaining data of the current channel data message, or of the
+     * next message if all of the current data has been read. When none of the
+     * message has been read the message data is returned without copying.
+     *
+     * @return the data read or <tt>null</tt> if the stream is EOF
+     *
+     * @throws IOException if an IO error occurs
+     */
+    public byte[] readChannelData()
+             throws IOException {
+
+      try {
+
+        block();
+
+        byte data[];
+
+        if (currentPos==0) {
+            data = msgdata;
+        } else {
+            data = new byte[msgdata.length - currentPos];
+            System.arraycopy(msgdata, currentPos, data, 0, data.length);
+        }
+
+        currentPos = msgdata.length;
+        released();
+
+        return data;
+
+      } catch(MessageStoreEOFException mse) {
+        return null;
+      }
+    }
+
+    /**
+     * Returns the window space of the current message to the channel once
+     * all of its data has been read
+     *
+     * @throws IOException if the window adjustment cannot be sent
+     */
+    private void released()
+                throws IOException {
+        if (channel!=null && currentPos>=msgdata.length) {
+            channel.releaseLocalWindow(msgdata.length);
+        }
+    }
+
     /**
      * Attempts to collect the next message from the message store, if no
      * messages are available the method blocks until a new message is
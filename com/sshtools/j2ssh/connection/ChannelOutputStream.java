@@ -81,16 +81,7 @@ public class ChannelOutputStream extends OutputStream {
 		if (isClosed)
 			throw new IOException("The ChannelOutputStream is closed!");
 
-		byte data[] = null;
-
-		if ((off > 0) || (len < b.length)) {
-			data = new byte[len];
-			System.arraycopy(b, off, data, 0, len);
-		} else {
-			data = b;
-		}
-
-		sendChannelData(data);
+		sendChannelData(b, off, len);
 
 	}
 
@@ -108,36 +99,41 @@ public class ChannelOutputStream extends OutputStream {
 
 		byte data[] = new byte[1];
 		data[0] = (byte) b;
-		sendChannelData(data);
+		sendChannelData(data, 0, 1);
 	}
 
 	/**
-	 * Send channel data, waiting for window space if its required
+	 * Send channel data, waiting for window space if its required. The array
+	 * is sent without copying when it fits into a single packet.
 	 * @param data  the data to send
+	 * @param off the offset of the data in the array
+	 * @param len the number of bytes to send
 	 * @throws TransportProtocolException if a transport protocol error occurs
 	 */
-	private void sendChannelData(byte data[]) throws IOException {
+	private void sendChannelData(byte data[], int off, int len) throws IOException {
 
 		int sent = 0;
 		int block;
-		int remaining;
-		long max;
+		int max;
 		byte buffer[];
 		ChannelDataWindow window = channel.getRemoteWindow();
 		/**
 		 * We will send the data in chunks of the lesser value of the
 		 * available window size and the maximum packet size
 		 */
-		while (sent < data.length) {
-			remaining = data.length - sent;
-			max =
-				window.getWindowSpace() < channel.getRemotePacketSize()
-					? window.getWindowSpace()
-					: channel.getRemotePacketSize();
-			block = max < remaining ? (int) max : remaining;
-			channel.remoteWindow.consumeWindowSpace(block);
-			buffer = new byte[block];
-			System.arraycopy(data, sent, buffer, 0, block);
+		while (sent < len) {
+			max = len - sent;
+			if (max > channel.getRemotePacketSize())
+				max = (int) channel.getRemotePacketSize();
+			block = window.consumeAvailableWindowSpace(max);
+			if (block == 0)
+				throw new IOException("The channel was closed whilst waiting for window space");
+			if (off == 0 && block == data.length) {
+				buffer = data;
+			} else {
+				buffer = new byte[block];
+				System.arraycopy(data, off + sent, buffer, 0, block);
+			}
 			if (type != null)
 				channel.sendChannelExtData(type.intValue(), buffer);
 			else
@@ -0,0 +1,219 @@
+/*
+ *  Sshtools - Java SSH2 API
+ *
+ *  Copyright (C) 2002 Lee David Painter.
+ *
+ *  Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Library General Public License
+ *  as published by the Free Software Foundation; either version 2 of
+ *  the License, or (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Library General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Library General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.connection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  The pending reply to a channel open or a channel request. The connection
+ *  protocol completes the response when the reply for the channel arrives,
+ *  so any number of opens and requests can be in flight at once. Callers can
+ *  wait for the outcome with <code>get</code>, poll it with <code>isDone
+ *  </code>, or register a listener to be called back.
+ */
+public class ChannelResponse {
+    private Channel channel;
+    private boolean isDone = false;
+    private boolean isSuccess = false;
+    private IOException error;
+    private List listeners;
+    private long sent;
+
+
+    /**
+     *  Creates the response for a channel
+     *
+     *@param  channel  the channel opened or making the request
+     */
+    ChannelResponse(Channel channel) {
+        this.channel = channel;
+    }
+
+
+    /**
+     *  Gets the channel opened or making the request
+     *
+     *@return    the channel
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+
+    /**
+     *  Determine if the response has completed
+     *
+     *@return    <tt>true</tt> if the reply has arrived or the channel or
+     *      connection closed first
+     */
+    public synchronized boolean isDone() {
+        return isDone;
+    }
+
+
+    /**
+     *  Waits for the reply
+     *
+     *@return                 <tt>true</tt> if the channel opened or the
+     *      request succeeded otherwise <tt>false</tt>
+     *@throws  IOException    if the connection closed before the reply
+     *      arrived or the channel failed to initialize
+     */
+    public synchronized boolean get()
+             throws IOException {
+        while (!isDone) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+
+        return getResult();
+    }
+
+
+    /**
+     *  Waits for the reply for no longer than the timeout
+     *
+     *@param  timeout                 the maximum time to wait in milliseconds
+     *@return                         <tt>true</tt> if the channel opened or
+     *      the request succeeded otherwise <tt>false</tt>
+     *@throws  InterruptedIOException  if the reply did not arrive in time
+     *@throws  IOException             if the connection closed before the
+     *      reply arrived or the channel failed to initialize
+     */
+    public synchronized boolean get(long timeout)
+             throws IOException {
+        long end = System.currentTimeMillis() + timeout;
+        long left = timeout;
+
+        while (!isDone) {
+            if (left <= 0) {
+                throw new InterruptedIOException("Timed out waiting for the reply for the "
+                        + channel.getChannelType() + " channel");
+            }
+
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+            }
+
+            left = end - System.currentTimeMillis();
+        }
+
+        return getResult();
+    }
+
+
+    /**
+     *  Adds a listener to be called when the response completes. The listener
+     *  is called straight away if the response has already completed.
+     *
+     *@param  listener  the listener
+     */
+    public void addResponseListener(ChannelResponseListener listener) {
+        synchronized (this) {
+            if (!isDone) {
+                if (listeners == null) {
+                    listeners = new ArrayList();
+                }
+
+                listeners.add(listener);
+
+                return;
+            }
+        }
+
+        listener.responseCompleted(this);
+    }
+
+
+    /**
+     *  Gets the outcome of a completed response
+     *
+     *@return                 <tt>true</tt> if the reply was a success
+     *@throws  IOException    if the response completed with an error
+     */
+    private boolean getResult()
+             throws IOException {
+        if (error != null) {
+            throw error;
+        }
+
+        return isSuccess;
+    }
+
+
+    /**
+     *  Records the time the open or request was sent
+     *
+     *@param  sent  the time in milliseconds
+     */
+    void setSent(long sent) {
+        this.sent = sent;
+    }
+
+
+    /**
+     *  Gets the time the open or request was sent
+     *
+     *@return    the time in milliseconds
+     */
+    long getSent() {
+        return sent;
+    }
+
+
+    /**
+     *  Completes the response, waking the waiting threads and calling the
+     *  listeners
+     *
+     *@param  success  <tt>true</tt> if the reply was a success
+     *@param  error    the error to throw to the waiting threads, or <tt>null
+     *      </tt>
+     */
+    void complete(boolean success, IOException error) {
+        List listeners;
+
+        synchronized (this) {
+            if (isDone) {
+                return;
+            }
+
+            this.isSuccess = success;
+            this.error = error;
+            this.isDone = true;
+            listeners = this.listeners;
+            this.listeners = null;
+            notifyAll();
+        }
+
+        if (listeners != null) {
+            for (int i = 0; i < listeners.size(); i++) {
+                ((ChannelResponseListener) listeners.get(i)).responseCompleted(this);
+            }
+        }
+    }
+}
@@ -24,17 +24,20 @@ import org.apache.log4j.Logger;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import com.sshtools.j2ssh.transport.MessageAlreadyRegisteredException;
 import com.sshtools.j2ssh.transport.AsyncService;
 import com.sshtools.j2ssh.transport.ServiceOperationException;
 import com.sshtools.j2ssh.transport.SshMessage;
+import com.sshtools.j2ssh.transport.SshMessageFactory;
 import com.sshtools.j2ssh.transport.TransportProtocolException;
 import com.sshtools.j2ssh.util.InvalidStateException;
-import com.sshtools.j2ssh.transport.MessageStoreEOFException;
 
 /**
  *  Implementation for the SSH connection protocol as a transport protocol
@@ -47,11 +50,21 @@ import com.sshtools.j2ssh.transport.MessageStoreEOFException;
  */
 public class ConnectionProtocol
          extends AsyncService {
+    // Answered straight away by the remote side, whether or not it is known
+    private final static String ROUND_TRIP_REQUEST = "keepalive@openssh.com";
     private static Logger log = Logger.getLogger(ConnectionProtocol.class);
     private Map activeChannels = new HashMap();
     private Map allowedChannels = new HashMap();
     private Map globalRequests = new HashMap();
     private long nextChannelId = 0;
+    private long roundTripTime = 0;
+    private OutboundMessageQueue outbound;
+    // The channel opens and the queues of channel requests waiting for replies
+    private Map pendingOpens = new HashMap();
+    private Map pendingRequests = new HashMap();
+    private boolean isClosed = false;
+    private Object channelRequestLock = new Object();
+    private Object globalRequestLock = new Object();
 
 
     /**
@@ -62,6 +75,20 @@ public class ConnectionProtocol
     }
 
 
+    /**
+     *  Gets the estimated round trip time of the connection. The estimate is
+     *  taken from the time the remote computer takes to answer the channels
+     *  opened by this side, and for each channel it opens, the time it takes
+     *  to answer a keepalive request sent once the channel is confirmed.
+     *
+     *@return    the round trip time in milliseconds, or zero if no estimate is
+     *      available
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+
     /**
      *  Adds a <code>ChannelFactory</code> to the connection protocol to allow
      *  the factory to create instances of its channels upon demand
@@ -108,63 +135,62 @@ public class ConnectionProtocol
      *@exception  ServiceOperationException   if a critical service operation
      *      fails
      */
-    public synchronized boolean openChannel(Channel channel)
+    public boolean openChannel(Channel channel)
              throws IOException {
-        long channelId = nextChannelId++;
-
-        synchronized(activeChannels) {
-          // Create the message
-          SshMsgChannelOpen msg =
-              new SshMsgChannelOpen(channel.getChannelType(), channelId,
-                                    channel.getLocalWindow().getWindowSpace(),
-                                    channel.getLocalPacketSize(),
-                                    channel.getChannelOpenData());
-
-          // Send the message
-          transport.sendMessage(msg, this);
-
-          // Wait for the next message to confirm the open channel (or not)
-          int messageIdFilter[] = new int[2];
-          messageIdFilter[0] =
-              SshMsgChannelOpenConfirmation.SSH_MSG_CHANNEL_OPEN_CONFIRMATION;
-
-          messageIdFilter[1] =
-              SshMsgChannelOpenFailure.SSH_MSG_CHANNEL_OPEN_FAILURE;
+        return beginOpenChannel(channel).get();
+    }
 
-          try {
 
-            SshMessage result = messageStore.getMessage(messageIdFilter);
+    /**
+     *  Sends the SSH_MSG_CHANNEL_OPEN message without waiting for the reply.
+     *  Any number of channels can be opening at once; the channel is
+     *  initialized and set open on the connection protocol thread when its
+     *  confirmation arrives, before any of its data is processed.
+     *
+     *@param  channel                         an uninitialized channel to open
+     *@return                                 the response completed with the
+     *      outcome of the open
+     *@exception  TransportProtocolException  if a transport protocol error
+     *      occurs
+     *@exception  ServiceOperationException   if the connection is closed
+     */
+    public ChannelResponse beginOpenChannel(Channel channel)
+             throws IOException {
+        ChannelResponse response = new ChannelResponse(channel);
+        Long channelId;
 
-            if (result.getMessageId() ==
-                SshMsgChannelOpenConfirmation.SSH_MSG_CHANNEL_OPEN_CONFIRMATION) {
-              log.info("Channel is open");
+        synchronized (activeChannels) {
+            channelId = new Long(nextChannelId++);
+        }
 
-              SshMsgChannelOpenConfirmation conf =
-                  (SshMsgChannelOpenConfirmation) result;
-              activeChannels.put(new Long(channelId), channel);
+        synchronized (pendingOpens) {
+            if (isClosed) {
+                throw new ServiceOperationException("The connection is closed");
+            }
 
-              channel.init(this, nativeSettings, channelId,
-                           conf.getSenderChannel(), conf.getInitialWindowSize(),
-                           conf.getMaximumPacketSize());
-              log.debug("Channel initiated");
+            pendingOpens.put(channelId, response);
+        }
 
-              channel.getState().setValue(ChannelState.CHANNEL_OPEN);
+        SshMsgChannelOpen msg =
+                new SshMsgChannelOpen(channel.getChannelType(),
+                channelId.longValue(),
+                channel.getLocalWindow().getWindowSpace(),
+                channel.getLocalPacketSize(),
+                channel.getChannelOpenData());
 
-              return true;
-            }
-            else {
-              // Make sure the channels state is closed
-              channel.getState().setValue(ChannelState.CHANNEL_CLOSED);
+        response.setSent(System.currentTimeMillis());
 
-              return false;
+        try {
+            outbound.send(null, msg);
+        } catch (IOException ex) {
+            synchronized (pendingOpens) {
+                pendingOpens.remove(channelId);
             }
 
-          }
-          catch (MessageStoreEOFException mse) {
-            throw new ServiceOperationException(mse.getMessage());
+            throw ex;
         }
-      }
 
+        return response;
     }
 
 
@@ -175,7 +201,7 @@ public class ConnectionProtocol
      *@param  data                         the data to send
      *@throws  TransportProtocolException  if a transport protocol error occurs
      */
-    public synchronized void sendChannelData(Channel channel, byte data[])
+    public void sendChannelData(Channel channel, byte data[])
              throws IOException {
 
         if (log.isDebugEnabled()) {
@@ -187,7 +213,7 @@ public class ConnectionProtocol
         SshMsgChannelData msg =
                 new SshMsgChannelData(channel.getRemoteChannelId(), data);
 
-        transport.sendMessage(msg, this);
+        outbound.send(channel, msg);
     }
 
 
@@ -201,7 +227,7 @@ public class ConnectionProtocol
      *@throws  ServiceOperationException      if a critical service operation
      *      fails
      */
-    public synchronized void sendChannelEOF(Channel channel)
+    public void sendChannelEOF(Channel channel)
              throws IOException {
         synchronized(activeChannels) {
           if (!activeChannels.containsValue(channel)) {
@@ -209,12 +235,12 @@ public class ConnectionProtocol
                 "Attempt to send EOF for a non existent channel "
                 + String.valueOf(channel.getLocalChannelId()));
           }
+        }
 
-          SshMsgChannelEOF msg =
-              new SshMsgChannelEOF(channel.getRemoteChannelId());
+        SshMsgChannelEOF msg =
+            new SshMsgChannelEOF(channel.getRemoteChannelId());
 
-          transport.sendMessage(msg, this);
-        }
+        outbound.send(channel, msg);
     }
 
 
@@ -227,16 +253,14 @@ public class ConnectionProtocol
      *@exception  TransportProtocolException  if a transport protocol error
      *      occurs
      */
-    public synchronized void sendChannelExtData(Channel channel, int extendedType, byte data[])
+    public void sendChannelExtData(Channel channel, int extendedType, byte data[])
              throws IOException {
-        channel.getRemoteWindow().consumeWindowSpace(data.length);
-
         SshMsgChannelExtendedData msg =
                 new SshMsgChannelExtendedData(channel.getRemoteChannelId(),
                 extendedType,
                 data);
 
-        transport.sendMessage(msg, this);
+        outbound.send(channel, msg);
     }
 
 
@@ -252,53 +276,87 @@ public class ConnectionProtocol
      *@throws  TransportProtocolException  if a transport protocol error occurs
      *@throws  ServiceOperationException   if a critical service operation fails
      */
-    public synchronized boolean sendChannelRequest(Channel channel, String requestType,
+    public boolean sendChannelRequest(Channel channel, String requestType,
             boolean wantReply, byte requestData[])
              throws IOException {
-        boolean success = true;
+        if (wantReply) {
+            log.debug("Waiting for channel request reply");
+
+            return beginChannelRequest(channel, requestType, requestData).get();
+        }
 
         log.debug("Sending " + requestType + " request for the "
                 + channel.getChannelType() + " channel");
 
         SshMsgChannelRequest msg =
                 new SshMsgChannelRequest(channel.getRemoteChannelId(), requestType,
-                wantReply, requestData);
+                false, requestData);
 
-        transport.sendMessage(msg, this);
+        outbound.send(channel, msg);
 
-        // If the user requests a reply then wait for the message and return result
-        if (wantReply) {
-            // Set up our message filter
-            int messageIdFilter[] = new int[2];
-            messageIdFilter[0] = SshMsgChannelSuccess.SSH_MSG_CHANNEL_SUCCESS;
-            messageIdFilter[1] = SshMsgChannelFailure.SSH_MSG_CHANNEL_FAILURE;
+        return true;
+    }
 
-            log.debug("Waiting for channel request reply");
 
-            // Wait for either success or failure
-            SshMessage reply = messageStore.getMessage(messageIdFilter);
+    /**
+     *  Sends an SSH_MSG_CHANNEL_REQUEST message that wants a reply without
+     *  waiting for the reply. The remote side answers the requests of a
+     *  channel in order, so any number of requests can be outstanding for
+     *  any number of channels.
+     *
+     *@param  channel                      the requests channel
+     *@param  requestType                  the request type
+     *@param  requestData                  the request specific data
+     *@return                              the response completed with the
+     *      outcome of the request
+     *@throws  TransportProtocolException  if a transport protocol error occurs
+     *@throws  ServiceOperationException   if the channel is not open
+     */
+    public ChannelResponse beginChannelRequest(Channel channel,
+            String requestType, byte requestData[])
+             throws IOException {
+        ChannelResponse response = new ChannelResponse(channel);
+        Long channelId = new Long(channel.getLocalChannelId());
 
-            switch (reply.getMessageId()) {
-                case SshMsgChannelSuccess.SSH_MSG_CHANNEL_SUCCESS:
-                {
-                    log.debug("Channel request succeeded");
-                    success = true;
+        log.debug("Sending " + requestType + " request for the "
+                + channel.getChannelType() + " channel");
 
-                    break;
+        SshMsgChannelRequest msg =
+                new SshMsgChannelRequest(channel.getRemoteChannelId(), requestType,
+                true, requestData);
+
+        // The reply is matched by its position so the request must be queued
+        // for its reply in the order it is sent
+        synchronized (channelRequestLock) {
+            LinkedList requests;
+
+            synchronized (pendingRequests) {
+                if (isClosed) {
+                    throw new ServiceOperationException("The connection is closed");
                 }
 
-                case SshMsgChannelFailure.SSH_MSG_CHANNEL_FAILURE:
-                {
-                    log.debug("Channel request failed");
-                    success = false;
+                requests = (LinkedList) pendingRequests.get(channelId);
 
-                    break;
+                if (requests == null) {
+                    requests = new LinkedList();
+                    pendingRequests.put(channelId, requests);
                 }
+
+                requests.addLast(response);
             }
 
+            try {
+                outbound.send(channel, msg);
+            } catch (IOException ex) {
+                synchronized (pendingRequests) {
+                    requests.remove(response);
+                }
+
+                throw ex;
+            }
         }
 
-        return success;
+        return response;
     }
 
 
@@ -308,12 +366,12 @@ public class ConnectionProtocol
      *@param  channel                      the requests channel
      *@throws  TransportProtocolException  if a transport protocol error occurs
      */
-    public synchronized void sendChannelRequestFailure(Channel channel)
+    public void sendChannelRequestFailure(Channel channel)
              throws IOException {
         SshMsgChannelFailure msg =
                 new SshMsgChannelFailure(channel.getRemoteChannelId());
 
-        transport.sendMessage(msg, this);
+        outbound.send(channel, msg);
     }
 
 
@@ -324,12 +382,12 @@ public class ConnectionProtocol
      *@exception  TransportProtocolException  if a transport protocol error
      *      occurs
      */
-    public synchronized void sendChannelRequestSuccess(Channel channel)
+    public void sendChannelRequestSuccess(Channel channel)
              throws IOException {
         SshMsgChannelSuccess msg =
                 new SshMsgChannelSuccess(channel.getRemoteChannelId());
 
-        transport.sendMessage(msg, this);
+        outbound.send(channel, msg);
     }
 
 
@@ -342,13 +400,13 @@ public class ConnectionProtocol
      *@exception  TransportProtocolException  if a transport protocol error
      *      occurs
      */
-    public synchronized void sendChannelWindowAdjust(Channel channel, long bytesToAdd)
+    public void sendChannelWindowAdjust(Channel channel, long bytesToAdd)
              throws IOException {
         SshMsgChannelWindowAdjust msg =
                 new SshMsgChannelWindowAdjust(channel.getRemoteChannelId(),
                 bytesToAdd);
 
-        transport.sendMessage(msg, this);
+        outbound.sendPriority(msg);
     }
 
 
@@ -364,7 +422,7 @@ public class ConnectionProtocol
      *@throws  TransportProtocolException  if a transport protocol error occurs
      *@throws  ServiceOperationException   if a critical service operation fails
      */
-    public synchronized boolean sendGlobalRequest(String requestName, boolean wantReply,
+    public boolean sendGlobalRequest(String requestName, boolean wantReply,
             byte requestData[])
              throws IOException {
         boolean success = true;
@@ -372,9 +430,15 @@ public class ConnectionProtocol
         SshMsgGlobalRequest msg =
                 new SshMsgGlobalRequest(requestName, true, requestData);
 
-        transport.sendMessage(msg, this);
+        if (!wantReply) {
+            outbound.send(null, msg);
+
+            return success;
+        }
+
+        synchronized (globalRequestLock) {
+            outbound.send(null, msg);
 
-        if (wantReply) {
             // Set up our message filter
             int messageIdFilter[] = new int[2];
             messageIdFilter[0] = SshMsgRequestSuccess.SSH_MSG_REQUEST_SUCCESS;
@@ -417,9 +481,12 @@ public class ConnectionProtocol
      *@return    an array of message ids
      */
     protected int[] getAsyncMessageFilter() {
-        int messageFilter[] = new int[10];
+        int messageFilter[] = new int[12];
 
         messageFilter[0] = SshMsgGlobalRequest.SSH_MSG_GLOBAL_REQUEST;
+        messageFilter[1] =
+                SshMsgChannelOpenConfirmation.SSH_MSG_CHANNEL_OPEN_CONFIRMATION;
+        messageFilter[2] = SshMsgChannelOpenFailure.SSH_MSG_CHANNEL_OPEN_FAILURE;
         messageFilter[3] = SshMsgChannelOpen.SSH_MSG_CHANNEL_OPEN;
         messageFilter[4] = SshMsgChannelClose.SSH_MSG_CHANNEL_CLOSE;
         messageFilter[5] = SshMsgChannelEOF.SSH_MSG_CHANNEL_EOF;
@@ -429,6 +496,8 @@ public class ConnectionProtocol
         messageFilter[8] = SshMsgChannelRequest.SSH_MSG_CHANNEL_REQUEST;
         messageFilter[9] =
                 SshMsgChannelWindowAdjust.SSH_MSG_CHANNEL_WINDOW_ADJUST;
+        messageFilter[10] = SshMsgChannelSuccess.SSH_MSG_CHANNEL_SUCCESS;
+        messageFilter[11] = SshMsgChannelFailure.SSH_MSG_CHANNEL_FAILURE;
 
         return messageFilter;
     }
@@ -441,12 +510,12 @@ public class ConnectionProtocol
      *@exception  TransportProtocolException  if an error occurs in the
      *      Transport Protocol
      */
-    protected synchronized void closeChannel(Channel channel)
+    protected void closeChannel(Channel channel)
              throws IOException {
         SshMsgChannelClose msg =
                 new SshMsgChannelClose(channel.getRemoteChannelId());
 
-        transport.sendMessage(msg, this);
+        outbound.send(channel, msg);
     }
 
 
@@ -560,6 +629,36 @@ public class ConnectionProtocol
                 break;
             }
 
+            case SshMsgChannelOpenConfirmation.SSH_MSG_CHANNEL_OPEN_CONFIRMATION:
+            {
+                onMsgChannelOpenConfirmation((SshMsgChannelOpenConfirmation) msg);
+
+                break;
+            }
+
+            case SshMsgChannelOpenFailure.SSH_MSG_CHANNEL_OPEN_FAILURE:
+            {
+                onMsgChannelOpenFailure((SshMsgChannelOpenFailure) msg);
+
+                break;
+            }
+
+            case SshMsgChannelSuccess.SSH_MSG_CHANNEL_SUCCESS:
+            {
+                onChannelRequestReply(((SshMsgChannelSuccess) msg).getChannelId(),
+                        true);
+
+                break;
+            }
+
+            case SshMsgChannelFailure.SSH_MSG_CHANNEL_FAILURE:
+            {
+                onChannelRequestReply(((SshMsgChannelFailure) msg).getRecipientChannelId(),
+                        false);
+
+                break;
+            }
+
             default:
             {
                 // If we never registered it why are we getting it?
@@ -587,50 +686,108 @@ public class ConnectionProtocol
     protected void onServiceInit(int startMode)
              throws IOException {
 
+      outbound = new OutboundMessageQueue(transport, this);
+
       log.info("Registering connection protocol messages");
 
 
       messageStore.registerMessage(SshMsgChannelOpenConfirmation.SSH_MSG_CHANNEL_OPEN_CONFIRMATION,
-              SshMsgChannelOpenConfirmation.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelOpenConfirmation();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelOpenFailure.SSH_MSG_CHANNEL_OPEN_FAILURE,
-              SshMsgChannelOpenFailure.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelOpenFailure();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelOpen.SSH_MSG_CHANNEL_OPEN,
-              SshMsgChannelOpen.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelOpen();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelClose.SSH_MSG_CHANNEL_CLOSE,
-              SshMsgChannelClose.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelClose();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelEOF.SSH_MSG_CHANNEL_EOF,
-              SshMsgChannelEOF.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelEOF();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelData.SSH_MSG_CHANNEL_DATA,
-              SshMsgChannelData.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelData();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelExtendedData.SSH_MSG_CHANNEL_EXTENDED_DATA,
-              SshMsgChannelExtendedData.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelExtendedData();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelFailure.SSH_MSG_CHANNEL_FAILURE,
-              SshMsgChannelFailure.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelFailure();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelRequest.SSH_MSG_CHANNEL_REQUEST,
-              SshMsgChannelRequest.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelRequest();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelSuccess.SSH_MSG_CHANNEL_SUCCESS,
-              SshMsgChannelSuccess.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelSuccess();
+                }
+              });
 
       messageStore.registerMessage(SshMsgChannelWindowAdjust.SSH_MSG_CHANNEL_WINDOW_ADJUST,
-              SshMsgChannelWindowAdjust.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgChannelWindowAdjust();
+                }
+              });
 
       messageStore.registerMessage(SshMsgGlobalRequest.SSH_MSG_GLOBAL_REQUEST,
-              SshMsgGlobalRequest.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgGlobalRequest();
+                }
+              });
 
       messageStore.registerMessage(SshMsgRequestFailure.SSH_MSG_REQUEST_FAILURE,
-              SshMsgRequestFailure.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgRequestFailure();
+                }
+              });
 
       messageStore.registerMessage(SshMsgRequestSuccess.SSH_MSG_REQUEST_SUCCESS,
-              SshMsgRequestSuccess.class);
+              new SshMessageFactory() {
+                public SshMessage newInstance() {
+                  return new SshMsgRequestSuccess();
+                }
+              });
     }
 
 
@@ -652,7 +809,7 @@ public class ConnectionProtocol
         SshMsgChannelFailure msg =
                 new SshMsgChannelFailure(channel.getRemoteChannelId());
 
-        transport.sendMessage(msg, this);
+        outbound.send(channel, msg);
     }
 
 
@@ -673,7 +830,90 @@ public class ConnectionProtocol
                 channel.getLocalPacketSize(),
                 channel.getChannelConfirmationData());
 
-        transport.sendMessage(msg, this);
+        outbound.send(channel, msg);
+
+        probeRoundTrip(channel);
+    }
+
+
+    /**
+     *  Sends a keepalive request for a channel opened by the remote side and
+     *  times the reply, so that the windows of channels this side did not
+     *  open are tuned from a round trip estimate as well
+     *
+     *@param  channel  the confirmed channel
+     */
+    private void probeRoundTrip(Channel channel) {
+        final long sent = System.currentTimeMillis();
+
+        try {
+            beginChannelRequest(channel, ROUND_TRIP_REQUEST, null)
+                    .addResponseListener(
+                new ChannelResponseListener() {
+                    public void responseCompleted(ChannelResponse response) {
+                        try {
+                            // Either reply will do, but not a closed channel
+                            response.get();
+                            sampleRoundTrip(sent);
+                        } catch (IOException ex) {
+                        }
+                    }
+                });
+        } catch (IOException ex) {
+            log.debug("Failed to send the round trip request", ex);
+        }
+    }
+
+
+    /**
+     *  Adds a round trip to the estimate, smoothing it over the samples
+     *
+     *@param  sent  the time the request was sent in milliseconds
+     */
+    private void sampleRoundTrip(long sent) {
+        long rtt = System.currentTimeMillis() - sent;
+        roundTripTime = roundTripTime == 0 ? rtt : (roundTripTime * 7 + rtt) / 8;
+    }
+
+
+    /**
+     *  Confirms a channel opened by the remote side that deferred its
+     *  confirmation. This is called from the channels own thread once it has
+     *  finished opening.
+     *
+     *@param  channel          the channel to confirm open
+     *@throws  IOException     if the confirmation cannot be sent
+     */
+    protected void confirmChannelOpen(Channel channel)
+             throws IOException {
+        synchronized (activeChannels) {
+            if (!activeChannels.containsKey(new Long(channel.getLocalChannelId()))) {
+                throw new ServiceOperationException("The channel is no longer active");
+            }
+        }
+
+        sendChannelOpenConfirmation(channel);
+    }
+
+
+    /**
+     *  Refuses a channel opened by the remote side that deferred its
+     *  confirmation, removing it from the active channels.
+     *
+     *@param  channel          the channel to refuse
+     *@param  reasonCode       the reason code
+     *@param  additionalInfo   additional information
+     *@throws  IOException     if the failure cannot be sent
+     */
+    protected void refuseChannelOpen(Channel channel, long reasonCode,
+            String additionalInfo)
+             throws IOException {
+        synchronized (activeChannels) {
+            activeChannels.remove(new Long(channel.getLocalChannelId()));
+        }
+
+        sendChannelOpenFailure(channel.getRemoteChannelId(), reasonCode,
+                additionalInfo, "");
     }
 
 
@@ -696,7 +936,7 @@ public class ConnectionProtocol
                 new SshMsgChannelOpenFailure(remoteChannelId, reasonCode,
                 additionalInfo, languageTag);
 
-        transport.sendMessage(msg, this);
+        outbound.send(null, msg);
     }
 
 
@@ -710,7 +950,7 @@ public class ConnectionProtocol
              throws IOException {
         SshMsgRequestFailure msg = new SshMsgRequestFailure();
 
-        transport.sendMessage(msg, this);
+        outbound.send(null, msg);
     }
 
 
@@ -725,7 +965,7 @@ public class ConnectionProtocol
              throws IOException {
         SshMsgRequestSuccess msg = new SshMsgRequestSuccess(requestData);
 
-        transport.sendMessage(msg, this);
+        outbound.send(null, msg);
     }
 
 
@@ -821,7 +1061,7 @@ public class ConnectionProtocol
         }
 
         try {
-            channel.getInputStream().close();
+            channel.onRemoteEOF();
         } catch (IOException ioe) {
             throw new ServiceOperationException("Failed to close the ChannelInputStream");
         }
@@ -844,9 +1084,7 @@ public class ConnectionProtocol
             throw new ServiceOperationException("Remote computer sent data for non existent channel");
         }
 
-        channel.getLocalWindow().consumeWindowSpace(msg.getChannelData().length);
-
-        channel.incoming.addMessage(msg);
+        channel.onChannelExtData(msg);
     }
 
 
@@ -880,13 +1118,25 @@ public class ConnectionProtocol
            Channel channel =
                cf.createChannel(msg.getChannelType(), msg.getChannelData());
 
-           channel.init(this, nativeSettings, nextChannelId++,
-                        msg.getSenderChannelId(), msg.getInitialWindowSize(),
-                        msg.getMaximumPacketSize());
-
-           activeChannels.put(new Long(channel.getLocalChannelId()), channel);
-
-           sendChannelOpenConfirmation(channel);
+           Long channelId = new Long(nextChannelId++);
+
+           // The channel is active before it is initialized so that a
+           // channel which defers its confirmation can refuse itself
+           activeChannels.put(channelId, channel);
+
+           try {
+             channel.init(this, nativeSettings, channelId.longValue(),
+                          msg.getSenderChannelId(), msg.getInitialWindowSize(),
+                          msg.getMaximumPacketSize());
+           }
+           catch (InvalidChannelException ice) {
+             activeChannels.remove(channelId);
+             throw ice;
+           }
+
+           if (!channel.isOpenDeferred()) {
+             sendChannelOpenConfirmation(channel);
+           }
          }
          catch (InvalidChannelException ice) {
            sendChannelOpenFailure(msg.getSenderChannelId(),
@@ -897,6 +1147,131 @@ public class ConnectionProtocol
     }
 
 
+    /**
+     *  Handles the SSH_MSG_CHANNEL_OPEN_CONFIRMATION message by initializing
+     *  the channel and setting it open. This happens before any data for the
+     *  channel is processed.
+     *
+     *@param  msg                          the message received
+     *@throws  ServiceOperationException   if no open is pending for the
+     *      channel
+     *@throws  TransportProtocolException  if a transport protocol error occurs
+     */
+    private void onMsgChannelOpenConfirmation(SshMsgChannelOpenConfirmation msg)
+             throws IOException {
+        Long channelId = new Long(msg.getRecipientChannel());
+        ChannelResponse response = removePendingOpen(channelId);
+        Channel channel = response.getChannel();
+
+        log.info("Channel is open");
+
+        synchronized (activeChannels) {
+            activeChannels.put(channelId, channel);
+        }
+
+        try {
+            channel.init(this, nativeSettings, channelId.longValue(),
+                    msg.getSenderChannel(), msg.getInitialWindowSize(),
+                    msg.getMaximumPacketSize());
+        } catch (InvalidChannelException ice) {
+            // The remote side has opened the channel so close it properly
+            channel.getState().setValue(ChannelState.CHANNEL_CLOSED);
+            closeChannel(channel);
+            response.complete(false, ice);
+
+            return;
+        }
+
+        log.debug("Channel initiated");
+
+        channel.getState().setValue(ChannelState.CHANNEL_OPEN);
+        response.complete(true, null);
+    }
+
+
+    /**
+     *  Handles the SSH_MSG_CHANNEL_OPEN_FAILURE message
+     *
+     *@param  msg                         the message received
+     *@throws  ServiceOperationException  if no open is pending for the
+     *      channel
+     */
+    private void onMsgChannelOpenFailure(SshMsgChannelOpenFailure msg)
+             throws IOException {
+        ChannelResponse response =
+                removePendingOpen(new Long(msg.getRecipientChannel()));
+
+        log.info("Channel open failed: " + msg.getAdditionalText());
+
+        // Make sure the channels state is closed
+        response.getChannel().getState().setValue(ChannelState.CHANNEL_CLOSED);
+        response.complete(false, null);
+    }
+
+
+    /**
+     *  Removes the pending open for a channel and updates the round trip
+     *  estimate
+     *
+     *@param  channelId                   the local channel id
+     *@return                             the response for the open
+     *@throws  ServiceOperationException  if no open is pending for the
+     *      channel
+     */
+    private ChannelResponse removePendingOpen(Long channelId)
+             throws ServiceOperationException {
+        ChannelResponse response;
+
+        synchronized (pendingOpens) {
+            response = (ChannelResponse) pendingOpens.remove(channelId);
+        }
+
+        if (response == null) {
+            throw new ServiceOperationException("Remote computer replied to a "
+                    + "non existent channel open");
+        }
+
+        sampleRoundTrip(response.getSent());
+
+        return response;
+    }
+
+
+    /**
+     *  Handles the SSH_MSG_CHANNEL_SUCCESS and SSH_MSG_CHANNEL_FAILURE
+     *  messages by completing the oldest request of the channel
+     *
+     *@param  channelId  the local channel id
+     *@param  success    <tt>true</tt> if the request succeeded
+     */
+    private void onChannelRequestReply(long channelId, boolean success) {
+        ChannelResponse response = null;
+
+        synchronized (pendingRequests) {
+            LinkedList requests =
+                    (LinkedList) pendingRequests.get(new Long(channelId));
+
+            if (requests != null) {
+                response = (ChannelResponse) requests.removeFirst();
+
+                if (requests.isEmpty()) {
+                    pendingRequests.remove(new Long(channelId));
+                }
+            }
+        }
+
+        if (response == null) {
+            log.warn("Remote computer replied to a non existent request for channel "
+                    + String.valueOf(channelId));
+
+            return;
+        }
+
+        log.debug(success ? "Channel request succeeded" : "Channel request failed");
+        response.complete(success, null);
+    }
+
+
     /**
      *  Handles the SSH_MSG_CHANNEL_REQUEST message by passing the request onto
      *  the appropriate channel.
@@ -935,7 +1310,7 @@ public class ConnectionProtocol
                     + "window space for a non existent channel!");
         }
 
-        channel.getRemoteWindow().increaseWindowSpace(msg.getBytesToAdd());
+        channel.onChannelWindowAdjust(msg.getBytesToAdd());
         log.debug(String.valueOf(msg.getBytesToAdd())
                 + " bytes added to remote window");
         log.debug("Remote window space is "
@@ -967,5 +1342,48 @@ public class ConnectionProtocol
       synchronized(activeChannels) {
         activeChannels.remove(new Long(channel.getLocalChannelId()));
       }
+
+      // Requests still waiting for a reply will never get one
+      LinkedList requests;
+
+      synchronized(pendingRequests) {
+        requests = (LinkedList) pendingRequests.remove(
+            new Long(channel.getLocalChannelId()));
+      }
+
+      if (requests != null) {
+        for (int i = 0; i < requests.size(); i++) {
+          ((ChannelResponse) requests.get(i)).complete(false, null);
+        }
+      }
+    }
+
+
+    /**
+     *  Called when the connection protocol thread exits. Every open and
+     *  request still waiting for a reply fails.
+     */
+    protected void onStop() {
+      List pending = new ArrayList();
+
+      synchronized(pendingOpens) {
+        synchronized(pendingRequests) {
+          isClosed = true;
+          pending.addAll(pendingOpens.values());
+          pendingOpens.clear();
+
+          Iterator it = pendingRequests.values().iterator();
+          while (it.hasNext()) {
+            pending.addAll((LinkedList) it.next());
+          }
+
+          pendingRequests.clear();
+        }
+      }
+
+      for (int i = 0; i < pending.size(); i++) {
+        ((ChannelResponse) pending.get(i)).complete(false,
+            new ServiceOperationException("The connection is closed"));
+      }
     }
 }
@@ -0,0 +1,225 @@
+/*
+ *  Sshtools - Java SSH2 API
+ *
+ *  Copyright (C) 2002 Lee David Painter.
+ *
+ *  Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Library General Public License
+ *  as published by the Free Software Foundation; either version 2 of
+ *  the License, or (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Library General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Library General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.connection;
+
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.sshtools.j2ssh.transport.SshMessage;
+import com.sshtools.j2ssh.transport.TransportProtocol;
+
+/**
+ *  Queues the messages sent by the connection protocol so that only one
+ *  thread writes to the transport at a time and the channels take turns.
+ *  Each channel has its own queue, keeping its messages in order, and the
+ *  writer takes one message from each channel with messages waiting in
+ *  turn. A channel sending bulk data can therefore only hold up the
+ *  messages of another channel by a single packet. Window adjustments are
+ *  written ahead of any queued channel messages.<br>
+ *  <br>
+ *  There is no writer thread; a sending thread that finds nobody writing
+ *  writes on behalf of the others until its own message has been written,
+ *  then hands over to one of the threads still waiting. Every send returns
+ *  once its message has been written, so the data of a message may come
+ *  from the callers array and any error is thrown to the caller that sent
+ *  the message.
+ */
+class OutboundMessageQueue {
+    private TransportProtocol transport;
+    private Object sender;
+    private LinkedList priority = new LinkedList();
+    private Map queues = new HashMap();
+    // The channels with messages waiting in the order they will be served
+    private LinkedList ready = new LinkedList();
+    private boolean isWriting = false;
+
+
+    /**
+     *  Creates the queue
+     *
+     *@param  transport  the transport protocol to write the messages to
+     *@param  sender     the service sending the messages
+     */
+    OutboundMessageQueue(TransportProtocol transport, Object sender) {
+        this.transport = transport;
+        this.sender = sender;
+    }
+
+
+    /**
+     *  Sends a message, waiting until it has been written
+     *
+     *@param  channel       the channel sending the message, or <tt>null</tt>
+     *      for a message that does not belong to a channel
+     *@param  msg           the message to send
+     *@throws  IOException  if the message cannot be written
+     */
+    void send(Channel channel, SshMessage msg)
+             throws IOException {
+        Outbound out = new Outbound(msg);
+
+        synchronized (this) {
+            Object key = channel == null ? (Object) this : channel;
+            LinkedList queue = (LinkedList) queues.get(key);
+
+            if (queue == null) {
+                queue = new LinkedList();
+                queues.put(key, queue);
+                ready.addLast(key);
+            }
+
+            queue.addLast(out);
+        }
+
+        write(out);
+    }
+
+
+    /**
+     *  Sends a message ahead of the queued channel messages, waiting until it
+     *  has been written
+     *
+     *@param  msg           the message to send
+     *@throws  IOException  if the message cannot be written
+     */
+    void sendPriority(SshMessage msg)
+             throws IOException {
+        Outbound out = new Outbound(msg);
+
+        synchronized (this) {
+            priority.addLast(out);
+        }
+
+        write(out);
+    }
+
+
+    /**
+     *  Waits for a queued message to be written, writing the queued messages
+     *  whenever no other thread is
+     *
+     *@param  out           the queued message
+     *@throws  IOException  if the message cannot be written
+     */
+    private void write(Outbound out)
+             throws IOException {
+        boolean isWriter = false;
+
+        synchronized (this) {
+            while (!out.isDone && isWriting) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+
+            if (!out.isDone) {
+                isWriting = true;
+                isWriter = true;
+            }
+        }
+
+        try {
+            while (isWriter) {
+                Outbound next;
+
+                synchronized (this) {
+                    if (out.isDone) {
+                        break;
+                    }
+
+                    next = nextOutbound();
+                }
+
+                try {
+                    transport.sendMessage(next.msg, sender);
+                } catch (IOException ex) {
+                    next.error = ex;
+                } catch (RuntimeException ex) {
+                    next.error = ex;
+                } finally {
+                    synchronized (this) {
+                        next.isDone = true;
+                        notifyAll();
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (isWriter) {
+                    isWriting = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        if (out.error instanceof IOException) {
+            throw (IOException) out.error;
+        }
+
+        if (out.error != null) {
+            throw (RuntimeException) out.error;
+        }
+    }
+
+
+    /**
+     *  Takes the next message to write. Must be called holding the queue
+     *  monitor while there are messages waiting.
+     *
+     *@return    the message
+     */
+    private Outbound nextOutbound() {
+        if (!priority.isEmpty()) {
+            return (Outbound) priority.removeFirst();
+        }
+
+        Object key = ready.removeFirst();
+        LinkedList queue = (LinkedList) queues.get(key);
+        Outbound next = (Outbound) queue.removeFirst();
+
+        if (queue.isEmpty()) {
+            queues.remove(key);
+        } else {
+            ready.addLast(key);
+        }
+
+        return next;
+    }
+
+
+    /**
+     *  A queued message and the outcome of writing it
+     */
+    private static class Outbound {
+        SshMessage msg;
+        boolean isDone = false;
+        Exception error;
+
+
+        Outbound(SshMessage msg) {
+            this.msg = msg;
+        }
+    }
+}
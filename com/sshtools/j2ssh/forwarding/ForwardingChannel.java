@@ -29,19 +29,21 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 
+import java.nio.channels.SocketChannel;
+
 import com.sshtools.j2ssh.SshException;
 import com.sshtools.j2ssh.connection.Channel;
 import com.sshtools.j2ssh.connection.ChannelState;
+import com.sshtools.j2ssh.connection.SshMsgChannelData;
 import com.sshtools.j2ssh.transport.ServiceOperationException;
 import com.sshtools.j2ssh.io.ByteArrayWriter;
 import com.sshtools.j2ssh.io.IOStreamConnector;
 import com.sshtools.j2ssh.io.IOStreamConnectorState;
-import com.sshtools.j2ssh.util.MultipleStateMonitor;
+import com.sshtools.j2ssh.util.StateListener;
 import com.sshtools.j2ssh.util.State;
 import com.sshtools.j2ssh.connection.InvalidChannelException;
 
 import com.sshtools.j2ssh.configuration.ConfigurationLoader;
-import com.sshtools.j2ssh.SshThread;
 
 /**
  *  This class implements the Connection Protocol TCPIP forwarding channel.
@@ -67,6 +69,8 @@ public class ForwardingChannel
     private IOStreamConnector input;
     private IOStreamConnector output;
     private IOStreamConnectorMonitor iomon;
+    private ForwardingEngine engine;
+    private volatile ForwardingEngine.Forwarding forwarding;
     private Socket socket;
     private String forwardType;
     private String hostToConnect;
@@ -130,6 +134,22 @@ public class ForwardingChannel
         this.forwardType = forwardType;
         this.hostToConnect = hostToConnect;
         this.portToConnect = portToConnect;
+
+        // A socket can only be multiplexed if it was created from a channel
+        if ((socket == null) || (socket.getChannel() != null)) {
+            this.engine = config.getForwardingEngine();
+        }
+    }
+
+
+    /**
+     *  Determine if the channels socket is multiplexed by a
+     *  <code>ForwardingEngine</code> rather than connected by its own threads
+     *
+     *@return    <tt>true</tt> if the socket is multiplexed otherwise <tt>false</tt>
+     */
+    public boolean isMultiplexed() {
+        return engine != null;
     }
 
 
@@ -240,7 +260,59 @@ public class ForwardingChannel
      *@throws  ServiceOperationException  if an error occurs during closing
      */
     protected void onChannelClose()
-             throws ServiceOperationException { }
+             throws ServiceOperationException {
+        if (forwarding != null) {
+            forwarding.close();
+            config.channelClosed(this);
+        }
+    }
+
+
+    /**
+     *  Called by the framework when channel data arrives. The data of a
+     *  multiplexed channel is queued for writing to the socket.
+     *
+     *@param  msg           the channel data message
+     *@throws  IOException  if no window space is available for the data
+     */
+    public void onChannelData(SshMsgChannelData msg)
+             throws IOException {
+        if (forwarding == null) {
+            super.onChannelData(msg);
+        } else {
+            consumeLocalWindow(msg.getChannelData().length);
+            forwarding.write(msg.getChannelData());
+        }
+    }
+
+
+    /**
+     *  Called by the framework when the remote side will send no more data
+     *
+     *@throws  IOException  if the channel cannot be set EOF
+     */
+    protected void onRemoteEOF()
+             throws IOException {
+        if (forwarding == null) {
+            super.onRemoteEOF();
+        } else {
+            forwarding.remoteEOF();
+        }
+    }
+
+
+    /**
+     *  Called by the framework when the remote side adds window space
+     *
+     *@param  bytesToAdd  the number of bytes added
+     */
+    protected void onChannelWindowAdjust(long bytesToAdd) {
+        super.onChannelWindowAdjust(bytesToAdd);
+
+        if (forwarding != null) {
+            forwarding.windowAdjusted();
+        }
+    }
 
 
     /**
@@ -251,6 +323,25 @@ public class ForwardingChannel
     protected void onChannelOpen()
              throws InvalidChannelException {
 
+        if ((socket == null) && (engine != null)) {
+            // Connect without blocking the connection and confirm later
+            deferOpenConfirmation();
+
+            try {
+                if (!engine.connect(this, hostToConnect, portToConnect,
+                        config.getConnectTimeout())) {
+                    refuseOpen("Too many connections are pending", true);
+                }
+            } catch (IOException ioe) {
+                throw new InvalidChannelException("Failed to connect socket to "
+                                                    + hostToConnect
+                                                    + ":"
+                                                    + String.valueOf(portToConnect));
+            }
+
+            return;
+        }
+
         if (socket == null) {
             try {
                 socket = new Socket(hostToConnect, portToConnect);
@@ -269,6 +360,19 @@ public class ForwardingChannel
         originatingIPAddress = address.getHostAddress();
         originatingPort = socket.getPort();
 
+        if (engine != null) {
+            try {
+                forwarding = engine.createForwarding(this, socket.getChannel());
+                engine.register(forwarding);
+            } catch (IOException ioe) {
+                throw new InvalidChannelException("Failed to add the socket to the forwarding engine");
+            }
+
+            config.channelOpened(this);
+
+            return;
+        }
+
         try {
             input =
                     new IOStreamConnector(socket.getInputStream(),
@@ -284,10 +388,79 @@ public class ForwardingChannel
         iomon = new IOStreamConnectorMonitor(input, output);
     }
 
+    /**
+     *  Called by the forwarding engine when the socket of a channel opened by
+     *  the remote side has connected. The channel is confirmed and the socket
+     *  multiplexed.
+     *
+     *@param  socketChannel  the connected socket
+     */
+    void socketConnected(SocketChannel socketChannel) {
+        boolean confirmed = false;
+
+        socket = socketChannel.socket();
+
+        try {
+            originatingIPAddress = socket.getInetAddress().getHostAddress();
+            originatingPort = socket.getPort();
+            forwarding = engine.createForwarding(this, socketChannel);
+            confirmOpen();
+            confirmed = true;
+            config.channelOpened(this);
+            engine.register(forwarding);
+        } catch (IOException ioe) {
+            log.warn("Failed to open the forwarding channel", ioe);
+
+            try {
+                socketChannel.close();
+
+                if (confirmed) {
+                    close();
+                } else {
+                    refuseOpen("Failed to add the socket to the forwarding engine",
+                            false);
+                }
+            } catch (IOException ex) {
+                log.debug("Failed to close the forwarding channel", ex);
+            }
+        }
+    }
+
+
+    /**
+     *  Called by the forwarding engine once queued channel data has been
+     *  written to the socket, returning its window space to the remote side
+     *
+     *@param  count         the number of bytes written
+     *@throws  IOException  if the window adjustment cannot be sent
+     */
+    void socketWritten(int count)
+             throws IOException {
+        releaseLocalWindow(count);
+    }
+
+
+    /**
+     *  Called by the forwarding engine when the socket of a channel opened by
+     *  the remote side could not be connected. The channel is refused.
+     *
+     *@param  reason  the reason the socket did not connect
+     */
+    void socketFailed(String reason) {
+        log.info(reason);
+
+        try {
+            refuseOpen(reason, false);
+        } catch (IOException ioe) {
+            log.debug("Failed to refuse the forwarding channel", ioe);
+        }
+    }
+
     /**
      * Return the input stream connector
      *
-     * @return input stream connector
+     * @return input stream connector, or <tt>null</tt> if the channel is
+     *         multiplexed
      */
     public IOStreamConnector getInputConnector() {
         return input;
@@ -296,7 +469,8 @@ public class ForwardingChannel
     /**
      * Return the output stream connector
      *
-     * @return output stream connector
+     * @return output stream connector, or <tt>null</tt> if the channel is
+     *         multiplexed
      */
     public IOStreamConnector getOutputConnector() {
         return output;
@@ -320,7 +494,8 @@ public class ForwardingChannel
 
     /**
      *  This class implements a monitor to determine and close the channel once
-     *  both the IOStreams have closed.
+     *  both the IOStreams have closed. It listens to the states of the
+     *  IOStreamConnectors rather than waiting on a thread of its own.
      *
      *@author     <A HREF="mailto:lee@sshtools.com">Lee David Painter</A>
      *@created    20 December 2002
@@ -328,11 +503,11 @@ public class ForwardingChannel
      *      Exp $
      */
     class IOStreamConnectorMonitor
-             implements Runnable {
+             implements StateListener {
         private IOStreamConnector input;
         private IOStreamConnector output;
         private Logger log = Logger.getLogger(IOStreamConnectorMonitor.class);
-        private Thread thread;
+        private boolean isClosed = false;
 
 
         /**
@@ -345,28 +520,37 @@ public class ForwardingChannel
                 IOStreamConnector output) {
             this.input = input;
             this.output = output;
-            thread = new SshThread(this, "IOStream connector monitor", true);
-            thread.start();
+
+            input.getState().addStateListener(this);
+            output.getState().addStateListener(this);
+
+            // Either connector may have stopped before the listeners were added
+            stateChanged(null);
         }
 
 
         /**
-         *  The thread's main!
+         *  Called when the state of either IOStreamConnector is set
+         *
+         *@param  changed  the state that was set
          */
-        public void run() {
-            MultipleStateMonitor msm = new MultipleStateMonitor();
+        public void stateChanged(State changed) {
             State inputState = input.getState();
             State outputState = output.getState();
-            msm.addState(inputState);
-            msm.addState(outputState);
-
-            while ((inputState.getValue() == IOStreamConnectorState.CONNECTED)
-                    && (outputState.getValue() == IOStreamConnectorState.CONNECTED)) {
-                log.debug("Waiting for IOStreamConnector state change");
-                msm.monitor();
-                log.debug("IOStreamConnection state has changed");
+
+            synchronized (this) {
+                if (isClosed
+                        || ((inputState.getValue() == IOStreamConnectorState.CONNECTED)
+                        && (outputState.getValue() == IOStreamConnectorState.CONNECTED))) {
+                    return;
+                }
+
+                isClosed = true;
             }
 
+            inputState.removeStateListener(this);
+            outputState.removeStateListener(this);
+
             try {
                 log.info("Both IOStreamConnectors have closed; closing channel");
 
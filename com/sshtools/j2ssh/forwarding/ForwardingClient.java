@@ -60,6 +60,7 @@ public class ForwardingClient
     private List channelTypes = new Vector();
     private Map localForwardings = new HashMap();
     private Map remoteForwardings = new HashMap();
+    private ForwardingEngine engine = new ForwardingEngine();
 
 
     /**
@@ -90,6 +91,16 @@ public class ForwardingClient
     }
 
 
+    /**
+     *  Gets the engine that multiplexes the forwarded sockets of this client
+     *
+     *@return    the forwarding engine
+     */
+    public ForwardingEngine getForwardingEngine() {
+        return engine;
+    }
+
+
     public boolean hasActiveConfigurations() {
 
       // First check the size
@@ -436,12 +447,13 @@ public class ForwardingClient
         }
 
         // Create the configuration object
-        remoteForwardings.put(uniqueName,
-                new ForwardingConfiguration(uniqueName,
+        config = new ForwardingConfiguration(uniqueName,
                 addressToBind,
                 portToBind,
                 hostToConnect,
-                portToConnect));
+                portToConnect);
+        config.setForwardingEngine(engine);
+        remoteForwardings.put(uniqueName, config);
     }
 
 
@@ -483,6 +495,7 @@ public void addRemoteForwarding(ForwardingConfiguration fwd)
         }
 
         // Create the configuration object
+        fwd.setForwardingEngine(engine);
         remoteForwardings.put(fwd.getName(), fwd);
     }
 
@@ -701,6 +714,7 @@ public void addRemoteForwarding(ForwardingConfiguration fwd)
                 String hostToConnect, int portToConnect) {
             super(name, connection, addressToBind, portToBind, hostToConnect,
                     portToConnect);
+            setForwardingEngine(engine);
         }
 
 
@@ -52,6 +52,12 @@ import com.sshtools.j2ssh.util.StartStopState;
  *      martianx Exp $
  */
 public class ForwardingConfiguration {
+    /**
+     *  The default time in milliseconds to wait for an outbound connect
+     */
+    public final static int DEFAULT_CONNECT_TIMEOUT = 30000;
+
+    private static Logger log = Logger.getLogger(ForwardingConfiguration.class);
     /**
      *  The current state of the forwarding
      */
@@ -88,6 +94,11 @@ public class ForwardingConfiguration {
      */
     protected EventListenerList listenerList = new EventListenerList();
     private List activeForwardings = new Vector();
+    private ForwardingEngine engine;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+    private long connectionCount = 0;
 
     /**
      *  Creates a new ForwardingConfiguration object.
@@ -149,6 +160,77 @@ public class ForwardingConfiguration {
         return activeForwardings;
     }
 
+    /**
+     *  Sets the engine that multiplexes the sockets of the channels created by
+     *  this configuration. When no engine is set each channel uses its own
+     *  threads.
+     *
+     *@param  engine  the forwarding engine
+     */
+    public void setForwardingEngine(ForwardingEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     *  Gets the engine that multiplexes the sockets of the channels created
+     *  by this configuration
+     *
+     *@return    the forwarding engine, or <tt>null</tt> if none is set
+     */
+    public ForwardingEngine getForwardingEngine() {
+        return engine;
+    }
+
+    /**
+     *  Sets the time to wait for the outbound connect of a channel opened by
+     *  the remote side before the channel is refused
+     *
+     *@param  connectTimeout  the timeout in milliseconds, or zero to wait
+     *      indefinitely
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     *  Gets the time to wait for the outbound connect of a channel opened by
+     *  the remote side
+     *
+     *@return    the timeout in milliseconds
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     *  Gets the number of bytes read from forwarded sockets and sent through
+     *  the tunnel
+     *
+     *@return    the total bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     *  Gets the number of bytes received through the tunnel and written to
+     *  forwarded sockets
+     *
+     *@return    the total bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     *  Gets the number of forwarded connections opened by this configuration
+     *
+     *@return    the total number of connections
+     */
+    public long getConnectionCount() {
+        return connectionCount;
+    }
+
     /**
      *  Gets the address the tunnel is bound to
      *
@@ -252,12 +334,94 @@ public class ForwardingConfiguration {
         // Add it to the active forwardings
         activeForwardings.add(channel);
 
-        // Start a monitor so we can detect the close
-        ForwardingChannelMonitor monitor = new ForwardingChannelMonitor(channel);
+        // Multiplexed channels report their own open and close so only
+        // threaded channels need a monitor to detect the close
+        if (!channel.isMultiplexed()) {
+            ForwardingChannelMonitor monitor = new ForwardingChannelMonitor(channel);
+        }
 
         return channel;
     }
 
+    /**
+     *  Called when a forwarding channel has opened
+     *
+     *@param  channel  the channel
+     */
+    void channelOpened(ForwardingChannel channel) {
+        synchronized (this) {
+            connectionCount++;
+        }
+
+        Object[] l = listenerList.getListenerList();
+
+        for (int i = l.length - 2; i >= 0; i -= 2) {
+            if (l[i] == ForwardingConfigurationListener.class) {
+                ((ForwardingConfigurationListener) l[i + 1]).opened(channel);
+            }
+        }
+    }
+
+    /**
+     *  Called when a forwarding channel has closed
+     *
+     *@param  channel  the channel
+     */
+    void channelClosed(ForwardingChannel channel) {
+        log.debug("Removing closed forwarding channel from active forwardings");
+        activeForwardings.remove(channel);
+
+        Object[] l = listenerList.getListenerList();
+
+        for (int i = l.length - 2; i >= 0; i -= 2) {
+            if (l[i] == ForwardingConfigurationListener.class) {
+                ((ForwardingConfigurationListener) l[i + 1]).closed(channel);
+            }
+        }
+    }
+
+    /**
+     *  Called when data has been read from a forwarded socket and sent
+     *  through the tunnel
+     *
+     *@param  channel  the channel
+     *@param  count    the number of bytes
+     */
+    void dataSent(ForwardingChannel channel, int count) {
+        synchronized (this) {
+            bytesSent += count;
+        }
+
+        Object[] l = listenerList.getListenerList();
+
+        for (int i = l.length - 2; i >= 0; i -= 2) {
+            if (l[i] == ForwardingConfigurationListener.class) {
+                ((ForwardingConfigurationListener) l[i + 1]).dataSent(channel, count);
+            }
+        }
+    }
+
+    /**
+     *  Called when data received through the tunnel has been written to a
+     *  forwarded socket
+     *
+     *@param  channel  the channel
+     *@param  count    the number of bytes
+     */
+    void dataReceived(ForwardingChannel channel, int count) {
+        synchronized (this) {
+            bytesReceived += count;
+        }
+
+        Object[] l = listenerList.getListenerList();
+
+        for (int i = l.length - 2; i >= 0; i -= 2) {
+            if (l[i] == ForwardingConfigurationListener.class) {
+                ((ForwardingConfigurationListener) l[i + 1]).dataReceived(channel, count);
+            }
+        }
+    }
+
     /**
      *  This class implements a monitor to detect when a created channel has
      *  been closed so that it can be removed from the active channels lisr.
@@ -301,30 +465,17 @@ public class ForwardingConfiguration {
         // Listen for data being forwarded
             IOStreamConnectorListener inListener = new IOStreamConnectorListener() {
                 public void data(byte[] data, int count) {
-                    ForwardingConfigurationListener[] l =
-                        (ForwardingConfigurationListener[])listenerList.getListeners(
-                        ForwardingConfigurationListener.class);
-                    for(int i = (l.length - 1); i >= 0; i--)
-                        l[i].dataSent(channel, count);
+                    dataSent(channel, count);
                 }
             };
             channel.getInputConnector().addIOStreamConnectorListener(inListener);
             IOStreamConnectorListener outListener = new IOStreamConnectorListener() {
                 public void data(byte[] data, int count) {
-                    ForwardingConfigurationListener[] l =
-                        (ForwardingConfigurationListener[])listenerList.getListeners(
-                        ForwardingConfigurationListener.class);
-                    for(int i = (l.length - 1); i >= 0; i--)
-                        l[i].dataReceived(channel, count);
+                    dataReceived(channel, count);
                 }
             };
             channel.getOutputConnector().addIOStreamConnectorListener(outListener);
-            ForwardingConfigurationListener[] l =
-                (ForwardingConfigurationListener[])
-                listenerList.getListeners(
-                ForwardingConfigurationListener.class);
-            for(int i = (l.length - 1); i >= 0; i--)
-                l[i].opened(channel);
+            channelOpened(channel);
 
         // Now wait to be closed
             try {
@@ -337,17 +488,8 @@ public class ForwardingConfiguration {
             channel.getInputConnector().removeIOStreamConnectorListener(inListener);
             channel.getOutputConnector().removeIOStreamConnectorListener(outListener);
 
-            log.debug(
-                "Removing closed forwarding channel from active forwardings");
-            ForwardingConfiguration.this.activeForwardings.remove(channel);
-
             // Inform all the listeners of what has just happened
-            l = (ForwardingConfigurationListener[])
-                listenerList.getListeners(
-                ForwardingConfigurationListener.class);
-
-            for(int i = (l.length - 1); i >= 0; i--)
-                l[i].closed(channel);
+            channelClosed(channel);
         }
     }
 }
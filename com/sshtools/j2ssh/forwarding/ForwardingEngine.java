@@ -0,0 +1,1129 @@
+/*
+ * Sshtools - Java SSH2 API
+ *
+ * Copyright (C) 2002 Lee David Painter.
+ *
+ * Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.forwarding;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.sshtools.j2ssh.SshThread;
+import com.sshtools.j2ssh.connection.ChannelState;
+
+/**
+ *  Multiplexes the sockets of forwarding channels over a small pool of
+ *  selector threads instead of running a pair of <code>IOStreamConnector</code>
+ *  threads and a monitor thread for every forwarded connection. <p>
+ *
+ *  Socket data is only read while the remote side has window space for it,
+ *  so a full remote window stops the socket being read until a window
+ *  adjustment arrives. Channel data is queued by the connection thread and
+ *  written to the socket as it becomes writable. Either side reaching EOF
+ *  closes the channel and the socket, as the threaded forwarding does. </p>
+ *  <p>
+ *
+ *  A selector thread never writes to the connection itself, since a
+ *  transport write blocks while the remote side is not reading. The data
+ *  read from a socket, the window space returned as the socket is written,
+ *  the confirming or refusing of channels as their connects complete and
+ *  the closing of channels are handed to a writer thread belonging to the
+ *  selector thread. A socket is not read again until the data read from
+ *  it has been sent, so a blocked connection holds up only its own sockets
+ *  rather than the selector. </p>
+ *  <p>
+ *
+ *  Each selector thread is started when a socket is first given to it and
+ *  exits once it has had no sockets for <code>IDLE_TIMEOUT</code>
+ *  milliseconds. </p>
+ *  <p>
+ *
+ *  The engine also makes the outbound connections of channels opened by the
+ *  remote side. The socket is connected without blocking and the channel is
+ *  confirmed or refused when the connect completes, fails or times out, so a
+ *  slow host does not hold up the other channels of the connection. Host
+ *  names are looked up on a separate thread unless the <code>HostResolver
+ *  </code> has them cached. </p>
+ */
+public class ForwardingEngine {
+    /**
+     *  The default number of selector threads
+     */
+    public final static int DEFAULT_THREADS = 2;
+
+    /**
+     *  The time in milliseconds a selector thread waits without any sockets
+     *  before exiting
+     */
+    public final static int IDLE_TIMEOUT = 30000;
+
+    /**
+     *  The default maximum number of connects that may be pending at once
+     */
+    public final static int DEFAULT_PENDING_CONNECTS = 64;
+
+    private final static int BUFFER_SIZE = 32768;
+    private static Logger log = Logger.getLogger(ForwardingEngine.class);
+    private Worker workers[];
+    private int nextWorker = 0;
+    private boolean isStopped = false;
+    private HostResolver resolver = new HostResolver();
+    private int maximumPendingConnects = DEFAULT_PENDING_CONNECTS;
+    private int pendingConnects = 0;
+
+
+    /**
+     *  Creates a new ForwardingEngine object with the default number of
+     *  selector threads.
+     */
+    public ForwardingEngine() {
+        this(DEFAULT_THREADS);
+    }
+
+
+    /**
+     *  Creates a new ForwardingEngine object.
+     *
+     *@param  threads  the maximum number of selector threads
+     */
+    public ForwardingEngine(int threads) {
+        workers = new Worker[threads < 1 ? 1 : threads];
+    }
+
+
+    /**
+     *  Gets the cache of host addresses used for outbound connects
+     *
+     *@return    the host resolver
+     */
+    public HostResolver getResolver() {
+        return resolver;
+    }
+
+
+    /**
+     *  Sets the maximum number of outbound connects that may be pending at
+     *  once. Channels opened beyond this are refused.
+     *
+     *@param  maximumPendingConnects  the maximum number of pending connects
+     */
+    public synchronized void setMaximumPendingConnects(int maximumPendingConnects) {
+        this.maximumPendingConnects = maximumPendingConnects;
+    }
+
+
+    /**
+     *  Gets the maximum number of outbound connects that may be pending at
+     *  once
+     *
+     *@return    the maximum number of pending connects
+     */
+    public synchronized int getMaximumPendingConnects() {
+        return maximumPendingConnects;
+    }
+
+
+    /**
+     *  Gets the number of outbound connects that are pending
+     *
+     *@return    the number of pending connects
+     */
+    public synchronized int getPendingConnects() {
+        return pendingConnects;
+    }
+
+
+    /**
+     *  Creates the forwarding for the socket of a forwarding channel. Data
+     *  written to the forwarding is queued until it is registered.
+     *
+     *@param  channel  the forwarding channel
+     *@param  socket   the connected socket of the channel
+     *@return          the forwarding managing the socket
+     */
+    protected Forwarding createForwarding(ForwardingChannel channel,
+            SocketChannel socket) {
+        return new Forwarding(channel, socket);
+    }
+
+
+    /**
+     *  Adds the socket of an open forwarding channel to the engine
+     *
+     *@param  forwarding       the forwarding of the open channel
+     *@throws  IOException     if the engine has been stopped or a selector
+     *      cannot be opened
+     */
+    protected synchronized void register(Forwarding forwarding)
+             throws IOException {
+        forwarding.worker = assign(forwarding);
+    }
+
+
+    /**
+     *  Starts connecting the socket of a forwarding channel opened by the
+     *  remote side. The channel is told of the result through <code>
+     *  socketConnected</code> or <code>socketFailed</code>, which may be
+     *  called before this method returns.
+     *
+     *@param  channel          the forwarding channel
+     *@param  host             the host to connect to
+     *@param  port             the port to connect to
+     *@param  timeout          the time in milliseconds to wait for the
+     *      connect, or zero to wait indefinitely
+     *@return                  <tt>false</tt> if too many connects are pending
+     *@throws  IOException     if the engine has been stopped
+     */
+    protected boolean connect(ForwardingChannel channel, String host,
+            int port, int timeout)
+             throws IOException {
+        Connect connect = new Connect(channel, host, port, timeout);
+        InetAddress address;
+
+        synchronized (this) {
+            if (isStopped) {
+                throw new IOException("The forwarding engine has been stopped");
+            }
+
+            if (pendingConnects >= maximumPendingConnects) {
+                log.info("Refusing a connection to " + host + ":"
+                        + String.valueOf(port) + "; "
+                        + String.valueOf(pendingConnects)
+                        + " connects are pending");
+
+                return false;
+            }
+
+            pendingConnects++;
+            address = resolver.getCachedAddress(host);
+        }
+
+        if (address == null) {
+            Thread thread = new SshThread(connect, "Forwarding resolver", true);
+            thread.start();
+        } else {
+            connect.start(address);
+        }
+
+        return true;
+    }
+
+
+    /**
+     *  Gives an update to the next selector thread in turn
+     *
+     *@param  update        the forwarding or connect to update
+     *@return               the selector thread given the update
+     *@throws  IOException  if the engine has been stopped or a selector
+     *      cannot be opened
+     */
+    private synchronized Worker assign(Object update)
+             throws IOException {
+        if (isStopped) {
+            throw new IOException("The forwarding engine has been stopped");
+        }
+
+        int i = nextWorker;
+        nextWorker = (nextWorker + 1) % workers.length;
+
+        // Replace the thread if it has never started or has gone idle
+        if ((workers[i] == null) || !workers[i].update(update)) {
+            workers[i] = new Worker();
+            workers[i].update(update);
+        }
+
+        return workers[i];
+    }
+
+
+    /**
+     *  Stops the selector threads, closing every forwarded socket
+     */
+    public synchronized void stop() {
+        isStopped = true;
+
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i] != null) {
+                workers[i].stop();
+                workers[i] = null;
+            }
+        }
+    }
+
+
+    /**
+     *  The socket of a forwarding channel managed by the engine
+     */
+    class Forwarding {
+        private ForwardingChannel channel;
+        private SocketChannel socket;
+        private volatile Worker worker;
+        private SelectionKey key;
+        private LinkedList outbound = new LinkedList();
+        private boolean isRemoteEOF = false;
+        private boolean isClosed = false;
+        // Set while data read from the socket is waiting to be sent
+        private volatile boolean isSending = false;
+
+
+        /**
+         *  Creates a new Forwarding object.
+         *
+         *@param  channel  the forwarding channel
+         *@param  socket   the channels socket
+         */
+        Forwarding(ForwardingChannel channel, SocketChannel socket) {
+            this.channel = channel;
+            this.socket = socket;
+        }
+
+
+        /**
+         *  Queues channel data to be written to the socket
+         *
+         *@param  data  the channel data
+         */
+        void write(byte data[]) {
+            synchronized (outbound) {
+                outbound.addLast(ByteBuffer.wrap(data));
+            }
+
+            update();
+        }
+
+
+        /**
+         *  Called when the remote side has sent EOF; the socket is closed once
+         *  the queued data has been written
+         */
+        void remoteEOF() {
+            synchronized (outbound) {
+                isRemoteEOF = true;
+            }
+
+            update();
+        }
+
+
+        /**
+         *  Called when the remote window has grown so that the socket can be
+         *  read again
+         */
+        void windowAdjusted() {
+            update();
+        }
+
+
+        /**
+         *  Asks the selector thread to update its interest in the socket; a
+         *  forwarding that is not yet registered is updated when it is
+         */
+        private void update() {
+            Worker worker = this.worker;
+
+            if (worker != null) {
+                worker.update(this);
+            }
+        }
+
+
+        /**
+         *  Closes the socket
+         */
+        void close() {
+            isClosed = true;
+
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+            }
+        }
+    }
+
+
+    /**
+     *  An outbound connect for a forwarding channel opened by the remote side
+     */
+    class Connect
+             implements Runnable {
+        private ForwardingChannel channel;
+        private String host;
+        private int port;
+        private long deadline;
+        private SocketChannel socket;
+        private SelectionKey key;
+        private boolean isFinished = false;
+
+
+        /**
+         *  Creates a new Connect object.
+         *
+         *@param  channel  the forwarding channel
+         *@param  host     the host to connect to
+         *@param  port     the port to connect to
+         *@param  timeout  the time in milliseconds to wait for the connect, or
+         *      zero to wait indefinitely
+         */
+        Connect(ForwardingChannel channel, String host, int port, int timeout) {
+            this.channel = channel;
+            this.host = host;
+            this.port = port;
+            this.deadline = (timeout > 0)
+                    ? (System.currentTimeMillis() + timeout) : Long.MAX_VALUE;
+        }
+
+
+        /**
+         *  Looks up the host on the resolver thread and starts the connect
+         */
+        public void run() {
+            InetAddress address;
+
+            try {
+                address = resolver.resolve(host);
+            } catch (UnknownHostException uhe) {
+                failed("Unknown host " + host);
+
+                return;
+            }
+
+            start(address);
+        }
+
+
+        /**
+         *  Starts a non-blocking connect to the resolved host, handing it to a
+         *  selector thread unless it completes immediately
+         *
+         *@param  address  the address of the host
+         */
+        void start(InetAddress address) {
+            try {
+                socket = SocketChannel.open();
+                socket.configureBlocking(false);
+
+                if (socket.connect(new InetSocketAddress(address, port))) {
+                    connected();
+                } else {
+                    assign(this);
+                }
+            } catch (IOException ioe) {
+                failed(ioe.getMessage());
+            }
+        }
+
+
+        /**
+         *  Passes the connected socket to the channel
+         */
+        void connected() {
+            if (finish()) {
+                channel.socketConnected(socket);
+            }
+        }
+
+
+        /**
+         *  Closes the socket and refuses the channel
+         *
+         *@param  reason  the reason the connect failed
+         */
+        void failed(String reason) {
+            closeSocket();
+            refused(reason);
+        }
+
+
+        /**
+         *  Closes the socket of a failed connect
+         */
+        void closeSocket() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+
+
+        /**
+         *  Refuses the channel once the socket of a failed connect is closed
+         *
+         *@param  reason  the reason the connect failed
+         */
+        void refused(String reason) {
+            if (finish()) {
+                channel.socketFailed("Failed to connect socket to " + host
+                        + ":" + String.valueOf(port)
+                        + ((reason == null) ? "" : ("; " + reason)));
+            }
+        }
+
+
+        /**
+         *  Marks the connect finished so that the channel is only told once
+         *
+         *@return    <tt>false</tt> if the connect had already finished
+         */
+        private boolean finish() {
+            synchronized (ForwardingEngine.this) {
+                if (isFinished) {
+                    return false;
+                }
+
+                isFinished = true;
+                pendingConnects--;
+
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     *  A write to a forwarding channel handed from a selector thread to its
+     *  writer thread
+     */
+    static class ChannelWrite {
+        final static int DATA = 1;
+        final static int WINDOW = 2;
+        final static int CLOSE = 3;
+        final static int CONFIRM = 4;
+        final static int REFUSE = 5;
+        private int type;
+        private Forwarding forwarding;
+        private byte data[];
+        private int count;
+        private Connect connect;
+        private String reason;
+
+
+        /**
+         *  Creates a new ChannelWrite object.
+         *
+         *@param  type        the type of write
+         *@param  forwarding  the forwarding of the channel
+         *@param  data        the data to send, or <tt>null</tt>
+         *@param  count       the number of bytes written to the socket
+         */
+        ChannelWrite(int type, Forwarding forwarding, byte data[], int count) {
+            this.type = type;
+            this.forwarding = forwarding;
+            this.data = data;
+            this.count = count;
+        }
+
+
+        /**
+         *  Creates a new ChannelWrite object that confirms or refuses the
+         *  channel of a completed connect.
+         *
+         *@param  type     <code>CONFIRM</code> or <code>REFUSE</code>
+         *@param  connect  the completed connect
+         *@param  reason   the reason the connect failed, or <tt>null</tt>
+         */
+        ChannelWrite(int type, Connect connect, String reason) {
+            this.type = type;
+            this.connect = connect;
+            this.reason = reason;
+        }
+    }
+
+
+    /**
+     *  The thread that writes to the forwarding channels of a selector thread
+     *  so that the selector thread never blocks on the connection. It starts
+     *  when the first write is handed to it and exits once it has had nothing
+     *  to write for <code>IDLE_TIMEOUT</code> milliseconds.
+     */
+    class ChannelWriter
+             implements Runnable {
+        private LinkedList writes = new LinkedList();
+        private boolean isRunning = false;
+
+
+        /**
+         *  Queues a write, starting the thread if it is not running
+         *
+         *@param  write  the write to queue
+         */
+        void add(ChannelWrite write) {
+            synchronized (writes) {
+                writes.addLast(write);
+
+                if (isRunning) {
+                    writes.notifyAll();
+
+                    return;
+                }
+
+                isRunning = true;
+            }
+
+            Thread thread = new SshThread(this, "Forwarding engine writer", true);
+            thread.start();
+        }
+
+
+        /**
+         *  Writes the queued writes in the order they were queued
+         */
+        public void run() {
+            while (true) {
+                ChannelWrite write;
+
+                synchronized (writes) {
+                    if (writes.isEmpty()) {
+                        try {
+                            writes.wait(IDLE_TIMEOUT);
+                        } catch (InterruptedException e) {
+                        }
+                    }
+
+                    if (writes.isEmpty()) {
+                        isRunning = false;
+
+                        break;
+                    }
+
+                    write = (ChannelWrite) writes.removeFirst();
+                }
+
+                try {
+                    write(write);
+                } catch (IOException ioe) {
+                    log.debug("Failed to write to forwarding channel", ioe);
+                    write.forwarding.close();
+                    closeChannel(write.forwarding.channel);
+                }
+            }
+        }
+
+
+        /**
+         *  Performs a write
+         *
+         *@param  write         the write
+         *@throws  IOException  if the connection fails
+         */
+        private void write(ChannelWrite write)
+                 throws IOException {
+            switch (write.type) {
+                case ChannelWrite.CONFIRM:
+                    write.connect.connected();
+
+                    return;
+                case ChannelWrite.REFUSE:
+                    write.connect.refused(write.reason);
+
+                    return;
+            }
+
+            Forwarding forwarding = write.forwarding;
+            ForwardingChannel channel = forwarding.channel;
+
+            switch (write.type) {
+                case ChannelWrite.DATA:
+                    try {
+                        if (!forwarding.isClosed) {
+                            channel.getOutputStream().write(write.data);
+                            channel.getForwardingConfiguration().dataSent(channel,
+                                    write.data.length);
+                        }
+                    } finally {
+                        // Let the selector thread read the socket again
+                        forwarding.isSending = false;
+                        forwarding.update();
+                    }
+
+                    break;
+                case ChannelWrite.WINDOW:
+                    if (!forwarding.isClosed) {
+                        channel.socketWritten(write.count);
+                    }
+
+                    break;
+                case ChannelWrite.CLOSE:
+                    closeChannel(channel);
+
+                    break;
+            }
+        }
+
+
+        /**
+         *  Closes a channel unless it has already closed
+         *
+         *@param  channel  the channel to close
+         */
+        private void closeChannel(ForwardingChannel channel) {
+            try {
+                if (channel.getState().getValue()
+                        != ChannelState.CHANNEL_CLOSED) {
+                    channel.close();
+                }
+            } catch (IOException ioe) {
+                log.warn("Failed to close forwarding channel", ioe);
+            }
+        }
+    }
+
+
+    /**
+     *  A selector thread serving a share of the forwarded sockets
+     */
+    class Worker
+             implements Runnable {
+        private Selector selector;
+        private LinkedList updates = new LinkedList();
+        private LinkedList connects = new LinkedList();
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private ChannelWriter writer = new ChannelWriter();
+        private boolean isRunning = true;
+
+
+        /**
+         *  Creates a new Worker object and starts its thread.
+         *
+         *@throws  IOException  if the selector cannot be opened
+         */
+        Worker()
+                 throws IOException {
+            selector = Selector.open();
+
+            Thread thread = new SshThread(this, "Forwarding engine", true);
+            thread.start();
+        }
+
+
+        /**
+         *  Asks the thread to register a connect or forwarding, or to update
+         *  its interest in the socket of a forwarding
+         *
+         *@param  update  the forwarding or connect to update
+         *@return         <tt>false</tt> if the thread has exited
+         */
+        boolean update(Object update) {
+            synchronized (updates) {
+                if (!isRunning) {
+                    return false;
+                }
+
+                updates.addLast(update);
+            }
+
+            selector.wakeup();
+
+            return true;
+        }
+
+
+        /**
+         *  Stops the thread
+         */
+        void stop() {
+            synchronized (updates) {
+                isRunning = false;
+            }
+
+            selector.wakeup();
+        }
+
+
+        /**
+         *  The selector loop
+         */
+        public void run() {
+            long idleSince = System.currentTimeMillis();
+
+            try {
+                while (true) {
+                    selector.select(getSelectTimeout());
+
+                    synchronized (updates) {
+                        if (!isRunning) {
+                            break;
+                        }
+
+                        // Exit when we have had nothing to do for a while
+                        if (updates.isEmpty() && selector.keys().isEmpty()) {
+                            if ((System.currentTimeMillis() - idleSince)
+                                    >= IDLE_TIMEOUT) {
+                                isRunning = false;
+
+                                break;
+                            }
+                        } else {
+                            idleSince = System.currentTimeMillis();
+                        }
+                    }
+
+                    processUpdates();
+
+                    Iterator it = selector.selectedKeys().iterator();
+
+                    while (it.hasNext()) {
+                        SelectionKey key = (SelectionKey) it.next();
+                        it.remove();
+
+                        if (key.attachment() instanceof Connect) {
+                            if (key.isValid() && key.isConnectable()) {
+                                finishConnect((Connect) key.attachment());
+                            }
+
+                            continue;
+                        }
+
+                        Forwarding forwarding = (Forwarding) key.attachment();
+
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                writeSocket(forwarding);
+                            }
+
+                            if (key.isValid() && key.isReadable()) {
+                                readSocket(forwarding);
+                            }
+
+                            if (key.isValid()) {
+                                setInterest(forwarding);
+                            }
+                        } catch (IOException ioe) {
+                            log.debug("Forwarded socket failed", ioe);
+                            closeForwarding(forwarding);
+                        }
+                    }
+
+                    expireConnects();
+                }
+            } catch (IOException ioe) {
+                log.warn("Forwarding engine selector failed", ioe);
+            }
+
+            synchronized (updates) {
+                isRunning = false;
+            }
+
+            // Close anything left
+            Iterator it = selector.keys().iterator();
+
+            while (it.hasNext()) {
+                close(((SelectionKey) it.next()).attachment());
+            }
+
+            it = updates.iterator();
+
+            while (it.hasNext()) {
+                close(it.next());
+            }
+
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+            }
+
+            log.debug("Forwarding engine thread is exiting");
+        }
+
+
+        /**
+         *  Gets the time to wait for a selection; no longer than it takes the
+         *  next pending connect to time out
+         *
+         *@return    the select timeout in milliseconds
+         */
+        private long getSelectTimeout() {
+            long timeout = IDLE_TIMEOUT;
+            long now = System.currentTimeMillis();
+            Iterator it = connects.iterator();
+
+            while (it.hasNext()) {
+                long remaining = ((Connect) it.next()).deadline - now;
+
+                if (remaining < timeout) {
+                    timeout = (remaining < 1) ? 1 : remaining;
+                }
+            }
+
+            return timeout;
+        }
+
+
+        /**
+         *  Completes a connect whose socket has become connectable
+         *
+         *@param  connect  the connect to complete
+         */
+        private void finishConnect(Connect connect) {
+            try {
+                if (!connect.socket.finishConnect()) {
+                    return;
+                }
+            } catch (IOException ioe) {
+                connects.remove(connect);
+                connectFailed(connect, ioe.getMessage());
+
+                return;
+            }
+
+            connects.remove(connect);
+
+            // The socket is registered again for forwarding after the next
+            // select has removed this key
+            connect.key.cancel();
+            writer.add(new ChannelWrite(ChannelWrite.CONFIRM, connect, null));
+        }
+
+
+        /**
+         *  Closes the socket of a failed connect and has the writer thread
+         *  refuse its channel
+         *
+         *@param  connect  the failed connect
+         *@param  reason   the reason the connect failed
+         */
+        private void connectFailed(Connect connect, String reason) {
+            connect.closeSocket();
+            writer.add(new ChannelWrite(ChannelWrite.REFUSE, connect, reason));
+        }
+
+
+        /**
+         *  Fails the pending connects that have timed out
+         */
+        private void expireConnects() {
+            long now = System.currentTimeMillis();
+            Iterator it = connects.iterator();
+
+            while (it.hasNext()) {
+                Connect connect = (Connect) it.next();
+
+                if (connect.deadline <= now) {
+                    it.remove();
+                    connectFailed(connect, "the connect timed out");
+                }
+            }
+        }
+
+
+        /**
+         *  Closes a forwarding or fails a connect when the thread exits
+         *
+         *@param  update  the forwarding or connect
+         */
+        private void close(Object update) {
+            if (update instanceof Connect) {
+                connectFailed((Connect) update, "the forwarding engine has stopped");
+            } else {
+                closeForwarding((Forwarding) update);
+            }
+        }
+
+
+        /**
+         *  Registers new connects and forwardings and updates the interest of
+         *  the others
+         */
+        private void processUpdates() {
+            Forwarding forwarding;
+
+            while (true) {
+                Object update;
+
+                synchronized (updates) {
+                    if (updates.isEmpty()) {
+                        return;
+                    }
+
+                    update = updates.removeFirst();
+                }
+
+                if (update instanceof Connect) {
+                    Connect connect = (Connect) update;
+
+                    try {
+                        connect.key = connect.socket.register(selector,
+                                SelectionKey.OP_CONNECT, connect);
+                        connects.add(connect);
+                    } catch (IOException ioe) {
+                        connectFailed(connect, ioe.getMessage());
+                    }
+
+                    continue;
+                }
+
+                forwarding = (Forwarding) update;
+
+                if (forwarding.isClosed) {
+                    continue;
+                }
+
+                try {
+                    if (forwarding.key == null) {
+                        forwarding.socket.configureBlocking(false);
+                        forwarding.key =
+                                forwarding.socket.register(selector, 0, forwarding);
+                    }
+
+                    if (forwarding.key.isValid()) {
+                        setInterest(forwarding);
+                    }
+                } catch (IOException ioe) {
+                    log.debug("Failed to register forwarded socket", ioe);
+                    closeForwarding(forwarding);
+                }
+            }
+        }
+
+
+        /**
+         *  Reads the socket while the remote side has window space and hands
+         *  the data to the writer thread to send as channel data
+         *
+         *@param  forwarding    the forwarding to read
+         *@throws  IOException  if an IO error occurs
+         */
+        private void readSocket(Forwarding forwarding)
+                 throws IOException {
+            if (forwarding.isSending) {
+                return;
+            }
+
+            ForwardingChannel channel = forwarding.channel;
+            long max = channel.getRemoteWindow().getWindowSpace();
+
+            if (max > channel.getRemotePacketSize()) {
+                max = channel.getRemotePacketSize();
+            }
+
+            if (max > buffer.capacity()) {
+                max = buffer.capacity();
+            }
+
+            if (max <= 0) {
+                return;
+            }
+
+            buffer.clear();
+            buffer.limit((int) max);
+
+            int read = forwarding.socket.read(buffer);
+
+            if (read < 0) {
+                log.debug("Forwarded socket is EOF");
+                closeForwarding(forwarding);
+            } else if (read > 0) {
+                byte data[] = new byte[read];
+                System.arraycopy(buffer.array(), 0, data, 0, read);
+                forwarding.isSending = true;
+                writer.add(new ChannelWrite(ChannelWrite.DATA, forwarding,
+                        data, read));
+            }
+        }
+
+
+        /**
+         *  Writes queued channel data to the socket
+         *
+         *@param  forwarding    the forwarding to write
+         *@throws  IOException  if an IO error occurs
+         */
+        private void writeSocket(Forwarding forwarding)
+                 throws IOException {
+            int written = 0;
+
+            synchronized (forwarding.outbound) {
+                while (!forwarding.outbound.isEmpty()) {
+                    ByteBuffer data = (ByteBuffer) forwarding.outbound.getFirst();
+                    written += forwarding.socket.write(data);
+
+                    if (data.hasRemaining()) {
+                        break;
+                    }
+
+                    forwarding.outbound.removeFirst();
+                }
+            }
+
+            if (written > 0) {
+                writer.add(new ChannelWrite(ChannelWrite.WINDOW, forwarding,
+                        null, written));
+                forwarding.channel.getForwardingConfiguration().dataReceived(
+                        forwarding.channel, written);
+            }
+        }
+
+
+        /**
+         *  Sets the socket operations the forwarding is waiting for, closing
+         *  it once the remote side is EOF and all of its data is written
+         *
+         *@param  forwarding  the forwarding to update
+         */
+        private void setInterest(Forwarding forwarding) {
+            int ops = 0;
+
+            if (!forwarding.isSending
+                    && (forwarding.channel.getRemoteWindow().getWindowSpace() > 0)) {
+                ops |= SelectionKey.OP_READ;
+            }
+
+            boolean finished;
+
+            synchronized (forwarding.outbound) {
+                if (!forwarding.outbound.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+
+                finished = forwarding.isRemoteEOF && forwarding.outbound.isEmpty();
+            }
+
+            if (finished) {
+                closeForwarding(forwarding);
+            } else {
+                forwarding.key.interestOps(ops);
+            }
+        }
+
+
+        /**
+         *  Closes the socket and has the writer thread close the channel
+         *
+         *@param  forwarding  the forwarding to close
+         */
+        private void closeForwarding(Forwarding forwarding) {
+            forwarding.close();
+            writer.add(new ChannelWrite(ChannelWrite.CLOSE, forwarding, null, 0));
+        }
+    }
+}
@@ -26,10 +26,15 @@ import org.apache.log4j.Logger;
 import java.io.IOException;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
+import java.nio.channels.ServerSocketChannel;
+
 import com.sshtools.j2ssh.SshException;
+import com.sshtools.j2ssh.connection.ChannelResponse;
+import com.sshtools.j2ssh.connection.ChannelResponseListener;
 import com.sshtools.j2ssh.connection.ConnectionProtocol;
 
 import com.sshtools.j2ssh.util.StartStopState;
@@ -106,9 +111,12 @@ public abstract class ForwardingListener
         try {
             log.info("Starting forwarding listener thread for '" + name + "'");
 
-            server =
-                new ServerSocket(getPortToBind(), 5,
-                                 InetAddress.getByName(getAddressToBind()));
+            // Accept through a channel so that the sockets can be
+            // multiplexed by a forwarding engine
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(
+                                 InetAddress.getByName(getAddressToBind()),
+                                 getPortToBind()), 5);
 
             Socket socket;
 
@@ -125,11 +133,31 @@ public abstract class ForwardingListener
                 ForwardingChannel channel =
                     createChannel(hostToConnect, portToConnect, socket);
 
-                if (connection.openChannel(channel)) {
-                    log.info("Forwarding channel for '" + name + "' is open");
-                } else {
-                    log.warn("Failed to open forwarding channel " + name);
-                }
+                // Keep accepting while the channel opens so that a burst of
+                // connections opens its channels together
+                final Socket accepted = socket;
+
+                connection.beginOpenChannel(channel).addResponseListener(
+                    new ChannelResponseListener() {
+                        public void responseCompleted(ChannelResponse response) {
+                            try {
+                                if (response.get()) {
+                                    log.info("Forwarding channel for '" + name + "' is open");
+
+                                    return;
+                                }
+
+                                log.warn("Failed to open forwarding channel " + name);
+                            } catch (IOException ioe) {
+                                log.warn("Failed to open forwarding channel " + name, ioe);
+                            }
+
+                            try {
+                                accepted.close();
+                            } catch (IOException ioe) {
+                            }
+                        }
+                    });
             }
         } catch (IOException ioe) {
             /* only warn if the forwarding has not been stopped */
@@ -74,6 +74,7 @@ public class ForwardingServer
     private List channelTypes = new Vector();
     private List localForwardings = new Vector();
     private List remoteForwardings = new Vector();
+    private ForwardingEngine engine = new ForwardingEngine();
 
 
     /**
@@ -95,6 +96,16 @@ public class ForwardingServer
     }
 
 
+    /**
+     *  Gets the engine that multiplexes the forwarded sockets of this server
+     *
+     *@return    the forwarding engine
+     */
+    public ForwardingEngine getForwardingEngine() {
+        return engine;
+    }
+
+
     /**
      *  Gets the channel types that can be created by this implementation of the
      *  ChannelFactory interface
@@ -227,6 +238,7 @@ public class ForwardingServer
 
         config =
                 new ForwardingConfiguration(orginatingAddress, originatingPort);
+        config.setForwardingEngine(engine);
 
         localForwardings.add(config);
 
@@ -354,6 +366,7 @@ public class ForwardingServer
         public ServerForwardingListener(ConnectionProtocol connection,
                 String addressToBind, int portToBind) {
             super(connection, addressToBind, portToBind);
+            setForwardingEngine(engine);
         }
 
 
@@ -0,0 +1,163 @@
+/*
+ * Sshtools - Java SSH2 API
+ *
+ * Copyright (C) 2002 Lee David Painter.
+ *
+ * Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.forwarding;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ *  Caches the addresses of the hosts that forwarding channels connect to so
+ *  that repeated connections to the same host do not each wait on a name
+ *  lookup. Hosts that fail to resolve are remembered for a shorter time.
+ */
+public class HostResolver {
+    /**
+     *  The time in milliseconds a resolved address is cached
+     */
+    public final static int CACHE_TIME = 60000;
+
+    /**
+     *  The time in milliseconds a failed lookup is cached
+     */
+    public final static int NEGATIVE_CACHE_TIME = 10000;
+
+    /**
+     *  The maximum number of hosts cached
+     */
+    public final static int MAXIMUM_ENTRIES = 256;
+
+    private Map cache = new HashMap();
+
+
+    /**
+     *  Gets the cached address of a host without performing a lookup
+     *
+     *@param  host  the host name or address
+     *@return       the address or <tt>null</tt> if the host has not been
+     *      resolved recently
+     */
+    public synchronized InetAddress getCachedAddress(String host) {
+        Entry entry = (Entry) cache.get(host);
+
+        if ((entry == null) || (entry.expires < System.currentTimeMillis())) {
+            return null;
+        }
+
+        return entry.address;
+    }
+
+
+    /**
+     *  Resolves a host, using the cached address if there is one
+     *
+     *@param  host                  the host name or address
+     *@return                       the address of the host
+     *@throws  UnknownHostException  if the host cannot be resolved
+     */
+    public InetAddress resolve(String host)
+             throws UnknownHostException {
+        synchronized (this) {
+            Entry entry = (Entry) cache.get(host);
+
+            if ((entry != null) && (entry.expires >= System.currentTimeMillis())) {
+                if (entry.address == null) {
+                    throw new UnknownHostException(host);
+                }
+
+                return entry.address;
+            }
+        }
+
+        // Look the host up without holding the lock
+        InetAddress address = null;
+
+        try {
+            address = InetAddress.getByName(host);
+
+            return address;
+        } finally {
+            put(host, address);
+        }
+    }
+
+
+    /**
+     *  Removes every cached address
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+
+    /**
+     *  Caches the result of a lookup
+     *
+     *@param  host     the host name
+     *@param  address  the address or <tt>null</tt> if the lookup failed
+     */
+    private synchronized void put(String host, InetAddress address) {
+        long now = System.currentTimeMillis();
+
+        if (cache.size() >= MAXIMUM_ENTRIES) {
+            // Drop the expired entries, or everything if none have expired
+            Iterator it = cache.values().iterator();
+
+            while (it.hasNext()) {
+                if (((Entry) it.next()).expires < now) {
+                    it.remove();
+                }
+            }
+
+            if (cache.size() >= MAXIMUM_ENTRIES) {
+                cache.clear();
+            }
+        }
+
+        cache.put(host, new Entry(address,
+                now + ((address == null) ? NEGATIVE_CACHE_TIME : CACHE_TIME)));
+    }
+
+
+    /**
+     *  A cached lookup
+     */
+    private static class Entry {
+        InetAddress address;
+        long expires;
+
+
+        /**
+         *  Creates a new Entry object.
+         *
+         *@param  address  the address, or <tt>null</tt> for a failed lookup
+         *@param  expires  the time the entry expires
+         */
+        Entry(InetAddress address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+}
@@ -46,6 +46,17 @@ public class ByteArrayReader
         super(data);
     }
 
+    /**
+     * Constructor for a ByteArrayReader that reads a region of the array
+     *
+     * @param data The byte array to be read.
+     * @param start The position to start reading from
+     * @param len The number of bytes that may be read
+     */
+    public ByteArrayReader(byte data[], int start, int len) {
+        super(data, start, len);
+    }
+
     /**
      * Previews an integer in the byte array provided. The method reads 4 bytes
      * from the position in the array specified by start and returns the
@@ -82,8 +93,16 @@ public class ByteArrayReader
      *
      * @exception IOException Description of the Exception
      */
-    public long readInt()
+    public synchronized long readInt()
                  throws IOException {
+        if ((count - pos) >= 4) {
+            // Decode straight from the array without a temporary buffer
+            int ret = readInt(buf, pos);
+            pos += 4;
+
+            return ret;
+        }
+
         byte raw[] = new byte[4];
         read(raw);
 
@@ -109,9 +128,9 @@ public class ByteArrayReader
      * @throws IOException if the read operation fails to read any data
      */
     public UnsignedInteger64 readUINT64() throws IOException {
-      byte raw[] = new byte[8];
-      read(raw);
-      return new UnsignedInteger64(raw);
+      long high = readInt() & 0xFFFFFFFFL;
+      long low = readInt() & 0xFFFFFFFFL;
+      return new UnsignedInteger64((high << 32) | low);
     }
 
     /**
@@ -177,10 +196,19 @@ public class ByteArrayReader
      *
      * @exception IOException if the data cannot be read
      */
-    public String readString()
+    public synchronized String readString()
                       throws IOException {
-        long len = readInt();
-        byte raw[] = new byte[(int) len];
+        int len = (int) readInt();
+
+        if ((len >= 0) && ((count - pos) >= len)) {
+            // Decode straight from the array without a temporary buffer
+            String str = new String(buf, pos, len);
+            pos += len;
+
+            return str;
+        }
+
+        byte raw[] = new byte[len];
         read(raw);
 
         return new String(raw);
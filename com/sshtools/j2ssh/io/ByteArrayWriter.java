@@ -43,6 +43,17 @@ public class ByteArrayWriter
     public ByteArrayWriter() {
     }
 
+    /**
+     * Gets the array backing the writer without copying it. Only the first
+     * <code>size()</code> bytes are valid, and the array may be replaced by
+     * a subsequent write.
+     *
+     * @return the backing array
+     */
+    public byte[] getArray() {
+        return buf;
+    }
+
     /**
      * Writes a BigInteger to the array. The method first writes the length of
      * the encoded data and then the data itself.
@@ -91,14 +102,7 @@ public class ByteArrayWriter
      */
     public void writeInt(long i)
                   throws IOException {
-        byte raw[] = new byte[4];
-
-        raw[0] = (byte) (i >> 24);
-        raw[1] = (byte) (i >> 16);
-        raw[2] = (byte) (i >> 8);
-        raw[3] = (byte) (i);
-
-        write(raw);
+        writeInt((int) i);
     }
 
     /**
@@ -114,16 +118,16 @@ public class ByteArrayWriter
      *
      * @exception IOException if the array cannot be written to
      */
-    public void writeInt(int i)
+    public synchronized void writeInt(int i)
                   throws IOException {
-        byte raw[] = new byte[4];
+        ensureCapacity(4);
 
-        raw[0] = (byte) (i >> 24);
-        raw[1] = (byte) (i >> 16);
-        raw[2] = (byte) (i >> 8);
-        raw[3] = (byte) (i);
+        buf[count] = (byte) (i >> 24);
+        buf[count + 1] = (byte) (i >> 16);
+        buf[count + 2] = (byte) (i >> 8);
+        buf[count + 3] = (byte) (i);
 
-        write(raw);
+        count += 4;
     }
 
     /**
@@ -158,11 +162,9 @@ public class ByteArrayWriter
      * @throws IOException  if the data cannot be written
      */
     public void writeUINT64(UnsignedInteger64 value) throws IOException {
-      byte raw[] = new byte[8];
-      byte bi[] = value.bigIntValue().toByteArray();
-      System.arraycopy(bi,0,raw,raw.length-bi.length,bi.length);
-      // Pad the raw data
-      write(raw);
+      long l = value.longValue();
+      writeInt((int) (l >>> 32));
+      writeInt((int) l);
     }
 
     /**
@@ -208,4 +210,19 @@ public class ByteArrayWriter
         }
     }
 
+    /**
+     * Grows the backing array so that at least <code>len</code> more bytes
+     * can be written without reallocating
+     *
+     * @param len the number of bytes about to be written
+     */
+    private void ensureCapacity(int len) {
+        int required = count + len;
+
+        if (required > buf.length) {
+            byte tmp[] = new byte[Math.max(buf.length << 1, required)];
+            System.arraycopy(buf, 0, tmp, 0, count);
+            buf = tmp;
+        }
+    }
 }
@@ -30,24 +30,39 @@ import com.sshtools.j2ssh.util.InvalidStateException;
 import javax.swing.event.EventListenerList;
 
 import com.sshtools.j2ssh.configuration.ConfigurationLoader;
+import com.sshtools.j2ssh.connection.ChannelInputStream;
+import com.sshtools.j2ssh.connection.ChannelOutputStream;
 import com.sshtools.j2ssh.SshThread;
 
 /**
  *  Connects and InputStream to an OutputStream. This has the effect of writing
  *  all data recieved from the input stream to the OutputStream.
  *
+ *  Data is read in blocks as large as the buffer and the OutputStream is only
+ *  flushed once the InputStream has no more data immediately available. When
+ *  a channel is connected to another channel the channel data is passed
+ *  through without copying.
+ *
  *@author     <A HREF="mailto:lee@sshtools.com">Lee David Painter</A>
  *@created    20 December 2002
  *@version    $Id: IOStreamConnector.java,v 1.2 2002/12/09 23:35:42 martianx Exp
  *      $
  */
 public class IOStreamConnector {
+    /**
+     *  The default size of the relay buffer
+     */
+    public final static int DEFAULT_BUFFER_SIZE = 32768;
+
     private static Logger log = Logger.getLogger(IOStreamConnector.class);
     private IOStreamConnectorState state = new IOStreamConnectorState();
     private InputStream in = null;
     private OutputStream out = null;
     private Thread thread;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
     private long bytes;
+    private long started;
+    private long stopped;
 
     /**
      *  List of listeners to be informed when something happens on the forwarded
@@ -73,6 +88,19 @@ public class IOStreamConnector {
     }
 
 
+    /**
+     *  Creates a new IOStreamConnector object.
+     *
+     *@param  in          The InputStream to read
+     *@param  out         The OutputStream to write to
+     *@param  bufferSize  The size of the relay buffer
+     */
+    public IOStreamConnector(InputStream in, OutputStream out, int bufferSize) {
+        this.bufferSize = bufferSize;
+        connect(in, out);
+    }
+
+
     /**
      *  Gets the state of the IOStreamConnector
      *
@@ -107,6 +135,8 @@ public class IOStreamConnector {
         this.out = out;
         log.info("Connecting InputStream to OutputStream");
 
+        started = System.currentTimeMillis();
+        stopped = 0;
         state.setValue(IOStreamConnectorState.CONNECTED);
 
         thread = new SshThread(new IOStreamConnectorThread(),
@@ -124,6 +154,23 @@ public class IOStreamConnector {
         return bytes;
     }
 
+    /**
+     * Return the average number of bytes piped per second since the streams
+     * were connected, up to the time the connector stopped
+     *
+     * @return bytes per second
+     */
+    public long getBytesPerSecond() {
+        long elapsed = (stopped==0 ? System.currentTimeMillis() : stopped)
+                         - started;
+
+        if (elapsed <= 0) {
+            return 0;
+        }
+
+        return bytes * 1000 / elapsed;
+    }
+
     /**
      * Add a listener to be informed when data passes through this connection
      *
@@ -160,61 +207,22 @@ public class IOStreamConnector {
          *  Reads data from the InputStream and delivers to the OutputStream
          */
         public void run() {
-            byte buffer[] = new byte[4096];
-            int read = 0;
-            int count;
-            int available;
             log.info("Starting IOStreamConnectorThread thread");
 
-            while (state.getValue() == IOStreamConnectorState.CONNECTED) {
-                try {
-                    // Block
-                    read = in.read(buffer, 0, 1);
-
-                    if (read > 0) {
-                        count = read;
-                        available = in.available();
-
-                        // Verify the buffer length and adjust if necersary
-                        if ((available > 0)
-                                && ((buffer.length - 1) < available)) {
-                            byte tmp[] = new byte[available + 1];
-                            System.arraycopy(buffer, 0, tmp, 0, 1);
-                            buffer = tmp;
-                        }
-
-                        // Read the remaining available bytes of the message
-                        if (available > 0) {
-                            read = in.read(buffer, 1, available);
-                            count += read;
-                        }
-
-                        // Write the message to the output stream
-                        out.write(buffer, 0, count);
-                        bytes += count;
-
-                        // Flush it
-                        out.flush();
-
-                        // Inform all of the listeners
-                        IOStreamConnectorListener[] l =
-                            (IOStreamConnectorListener[])listenerList.getListeners(
-                            IOStreamConnectorListener.class);
-                        for(int i = (l.length - 1); i >= 0; i--)
-                            l[i].data(buffer, count);
-                    } else {
-
-                        log.debug("Blocking read returned with " + String.valueOf(read));
-
-                        if(read<0)
-                          state.setValue(IOStreamConnectorState.EOF);
-                    }
-                } catch (IOException ioe) {
-                log.warn("Exception in connector thread", ioe);
-                   state.setValue(IOStreamConnectorState.EOF);
+            try {
+                if (in instanceof ChannelInputStream
+                        && out instanceof ChannelOutputStream) {
+                    splice((ChannelInputStream) in);
+                } else {
+                    relay();
                 }
+            } catch (IOException ioe) {
+                log.warn("Exception in connector thread", ioe);
+                state.setValue(IOStreamConnectorState.EOF);
             }
 
+            stopped = System.currentTimeMillis();
+
             log.debug("Closing IOStreamConnector");
             state.setValue(IOStreamConnectorState.CLOSED);
 
@@ -225,7 +233,90 @@ public class IOStreamConnector {
             	log.debug("IOStreamConnector: unable to close connected streams before regular exiting");
             }
 
-            log.info("IOStreamConnectorThread is exiting");
+            log.info("IOStreamConnectorThread is exiting after "
+                     + String.valueOf(bytes) + " bytes at "
+                     + String.valueOf(getBytesPerSecond()) + " bytes/s");
+        }
+
+
+        /**
+         *  Reads blocks of data from the InputStream into a single buffer and
+         *  writes them to the OutputStream, flushing when no more data is
+         *  immediately available
+         *
+         *@throws  IOException  if an IO error occurs
+         */
+        private void relay() throws IOException {
+            byte buffer[] = new byte[bufferSize];
+            int read;
+
+            while (state.getValue() == IOStreamConnectorState.CONNECTED) {
+                // Block
+                read = in.read(buffer, 0, buffer.length);
+
+                if (read > 0) {
+                    // Write the data to the output stream
+                    out.write(buffer, 0, read);
+                    bytes += read;
+
+                    // Flush only when the input has nothing more for us
+                    if (in.available() <= 0) {
+                        out.flush();
+                    }
+
+                    fireData(buffer, read);
+                } else {
+
+                    log.debug("Blocking read returned with " + String.valueOf(read));
+
+                    if(read<0) {
+                      out.flush();
+                      state.setValue(IOStreamConnectorState.EOF);
+                    }
+                }
+            }
+        }
+
+
+        /**
+         *  Passes each channel data message from the input channel to the
+         *  output channel without copying the data
+         *
+         *@param  in            the channel InputStream
+         *@throws  IOException  if an IO error occurs
+         */
+        private void splice(ChannelInputStream in) throws IOException {
+            byte data[];
+
+            while (state.getValue() == IOStreamConnectorState.CONNECTED) {
+                data = in.readChannelData();
+
+                if (data == null) {
+                    state.setValue(IOStreamConnectorState.EOF);
+                } else if (data.length > 0) {
+                    out.write(data, 0, data.length);
+                    bytes += data.length;
+
+                    fireData(data, data.length);
+                }
+            }
+        }
+
+
+        /**
+         *  Informs the listeners of the data sent without copying the list
+         *
+         *@param  data   the data sent
+         *@param  count  the number of bytes sent
+         */
+        private void fireData(byte data[], int count) {
+            Object listeners[] = listenerList.getListenerList();
+
+            for (int i = listeners.length - 2; i >= 0; i -= 2) {
+                if (listeners[i] == IOStreamConnectorListener.class) {
+                    ((IOStreamConnectorListener) listeners[i + 1]).data(data, count);
+                }
+            }
         }
     }
 }
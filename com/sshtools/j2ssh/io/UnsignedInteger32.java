@@ -4,9 +4,9 @@ import java.io.Serializable;
 
 public class UnsignedInteger32 extends Number implements Serializable {
 
-    final static long serialVersionUID = 200;
+    final static long serialVersionUID = 201;
 
-    private Long value;
+    private long value;
 
     /**
      * the maximum value this long can have
@@ -27,7 +27,7 @@ public class UnsignedInteger32 extends Number implements Serializable {
 	if ((a < MIN_VALUE) || (a > MAX_VALUE)) {
 	    throw new NumberFormatException();
 	}
-	value = new Long(a);
+	value = a;
     }
 
     /**
@@ -36,12 +36,11 @@ public class UnsignedInteger32 extends Number implements Serializable {
      * considered.
      */
     public UnsignedInteger32(String a) throws NumberFormatException {
-	Long temp = new Long(a);
-	long longValue = temp.longValue();
+	long longValue = Long.parseLong(a);
 	if ((longValue < MIN_VALUE) || (longValue > MAX_VALUE)) {
 	    throw new NumberFormatException();
 	}
-	value = new Long(longValue);
+	value = longValue;
     }
 
     /**
@@ -52,7 +51,7 @@ public class UnsignedInteger32 extends Number implements Serializable {
      *
      */
     public byte byteValue() {
-	return value.byteValue();
+	return (byte) value;
     }
 
 
@@ -64,7 +63,7 @@ public class UnsignedInteger32 extends Number implements Serializable {
      *
      */
     public short shortValue() {
-	return value.shortValue();
+	return (short) value;
     }
 
     /**
@@ -75,7 +74,7 @@ public class UnsignedInteger32 extends Number implements Serializable {
      *
      */
     public int intValue() {
-	return value.intValue();
+	return (int) value;
     }
 
 
@@ -87,7 +86,7 @@ public class UnsignedInteger32 extends Number implements Serializable {
      *
      */
     public long longValue() {
-	return value.longValue();
+	return value;
     }
 
     /**
@@ -97,7 +96,7 @@ public class UnsignedInteger32 extends Number implements Serializable {
      *
      */
     public float floatValue() {
-	return value.floatValue();
+	return (float) value;
     }
 
 
@@ -109,7 +108,7 @@ public class UnsignedInteger32 extends Number implements Serializable {
      *
      */
     public double doubleValue() {
-	return value.doubleValue();
+	return (double) value;
     }
 
 
@@ -120,7 +119,7 @@ public class UnsignedInteger32 extends Number implements Serializable {
      *
      */
     public String toString() {
-	return value.toString();
+	return Long.toString(value);
     }
 
 
@@ -131,7 +130,7 @@ public class UnsignedInteger32 extends Number implements Serializable {
      * 			for this unsigned 32-bit integer
      */
     public int hashCode() {
-	return value.hashCode();
+	return (int) value;
     }
 
 
@@ -147,16 +146,16 @@ public class UnsignedInteger32 extends Number implements Serializable {
 	if (!(o instanceof UnsignedInteger32)) {
 	    return false;
         }
-	return (((UnsignedInteger32)o).value.equals(this.value));
+	return (((UnsignedInteger32)o).value == this.value);
     }
 
 
     public static UnsignedInteger32 add(UnsignedInteger32 x, UnsignedInteger32 y) {
-      return new UnsignedInteger32(x.longValue()+y.longValue());
+      return new UnsignedInteger32(x.value+y.value);
     }
 
     public static UnsignedInteger32 add(UnsignedInteger32 x, int y) {
-      return new UnsignedInteger32(x.longValue()+y);
+      return new UnsignedInteger32(x.value+y);
     }
 
 }
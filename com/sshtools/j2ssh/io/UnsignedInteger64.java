@@ -6,7 +6,7 @@ import java.math.BigInteger;
 
 public class UnsignedInteger64 extends Number implements Serializable, Comparable {
 
-    final static long serialVersionUID = 200;
+    final static long serialVersionUID = 201;
 
     /**
      * the maximum value this BigInteger can have
@@ -20,9 +20,10 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
     public final static BigInteger MIN_VALUE = new BigInteger("0");
 
     /**
-     * Big integer to delegate to. This class stores its value in the bigInt.
+     * The value, holding the unsigned 64 bits in a signed long. Values above
+     * Long.MAX_VALUE are stored as negative longs.
      */
-    private BigInteger bigInt;
+    private long value;
 
     /**
      * Constructor creates an unsigned 64-bit integer object for
@@ -30,11 +31,7 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      * considered.
      */
     public UnsignedInteger64(String sval) throws NumberFormatException {
-	bigInt = new BigInteger(sval);
-	if ((bigInt.compareTo(MIN_VALUE) < 0) ||
-   	     (bigInt.compareTo(MAX_VALUE) > 0)) {
-	    throw new NumberFormatException();
-	}
+	this(new BigInteger(sval));
     }
 
     /**
@@ -43,11 +40,7 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      * considered.
      */
     public UnsignedInteger64(byte[] bval) throws NumberFormatException {
-	bigInt = new BigInteger(bval);
-	if ((bigInt.compareTo(MIN_VALUE) < 0) ||
-            (bigInt.compareTo(MAX_VALUE) > 0)) {
-	    throw new NumberFormatException();
-	}
+	this(new BigInteger(bval));
     }
 
     /**
@@ -56,11 +49,20 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      * considered.
      */
     public UnsignedInteger64(BigInteger input) {
-	bigInt = new BigInteger(input.toString());
-	if ((bigInt.compareTo(MIN_VALUE) < 0) ||
-	    (bigInt.compareTo(MAX_VALUE) > 0)) {
+	if ((input.compareTo(MIN_VALUE) < 0) ||
+	    (input.compareTo(MAX_VALUE) > 0)) {
 	    throw new NumberFormatException();
 	}
+	value = input.longValue();
+    }
+
+    /**
+     * Constructor creates an unsigned 64-bit integer object for
+     * the specified long. The bits of the long are taken as unsigned
+     * so a negative long is a value above Long.MAX_VALUE.
+     */
+    public UnsignedInteger64(long a) {
+	value = a;
     }
 
 
@@ -73,17 +75,15 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      *
      */
     public boolean equals(Object o) {
-	try {
-	    UnsignedInteger64 u = (UnsignedInteger64)o;
-	    return u.bigInt.equals(this.bigInt);
-	} catch (ClassCastException ce) {
-	    // This was not an UnsignedInt64, so equals should fail.
+	if (!(o instanceof UnsignedInteger64)) {
 	    return false;
 	}
+	return ((UnsignedInteger64)o).value == this.value;
     }
 
     public BigInteger bigIntValue() {
-	return bigInt;
+	BigInteger bi = BigInteger.valueOf(value & Long.MAX_VALUE);
+	return (value < 0) ? bi.setBit(63) : bi;
     }
 
     /**
@@ -94,7 +94,7 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      *          to type <code>int</code>.
      */
     public int intValue() {
-	return bigInt.intValue();
+	return (int) value;
     }
 
     /**
@@ -105,7 +105,7 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      *          to type <code>long</code>.
      */
     public long longValue() {
-	return bigInt.longValue();
+	return value;
     }
 
     /**
@@ -116,7 +116,8 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      *          to type <code>double</code>.
      */
     public double doubleValue() {
-	return bigInt.doubleValue();
+	double d = (double) (value & Long.MAX_VALUE);
+	return (value < 0) ? d + 9223372036854775808.0 : d;
     }
 
     /**
@@ -127,7 +128,7 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      *          to type <code>float</code>.
      */
     public float floatValue() {
-	return bigInt.floatValue();
+	return (float) doubleValue();
     }
 
     /**
@@ -146,7 +147,10 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      *         to, or greater than <tt>val</tt>.
      */
     public int compareTo(Object val) {
-	return bigInt.compareTo(((UnsignedInteger64)val).bigInt);
+	// Flipping the sign bit orders the unsigned values as signed longs
+	long x = value ^ Long.MIN_VALUE;
+	long y = ((UnsignedInteger64)val).value ^ Long.MIN_VALUE;
+	return (x < y) ? -1 : ((x == y) ? 0 : 1);
     }
 
     /**
@@ -156,7 +160,7 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      *
      */
     public String toString() {
-	return bigInt.toString();
+	return (value >= 0) ? Long.toString(value) : bigIntValue().toString();
     }
 
     /**
@@ -165,14 +169,30 @@ public class UnsignedInteger64 extends Number implements Serializable, Comparabl
      * @return hash code for this UnsignedInt64.
      */
     public int hashCode() {
-	return bigInt.hashCode();
+	return (int) (value ^ (value >>> 32));
     }
 
     public static UnsignedInteger64 add(UnsignedInteger64 x, UnsignedInteger64 y) {
-        return new UnsignedInteger64(x.bigInt.add(y.bigInt));
+        long sum = x.value + y.value;
+
+        // The sum overflowed if it is unsigned less than either operand
+        if ((sum ^ Long.MIN_VALUE) < (x.value ^ Long.MIN_VALUE)) {
+            throw new NumberFormatException();
+        }
+
+        return new UnsignedInteger64(sum);
     }
 
     public static UnsignedInteger64 add(UnsignedInteger64 x, int y) {
-        return new UnsignedInteger64(x.bigInt.add(BigInteger.valueOf(y)));
+        long sum = x.value + y;
+
+        // Adding a positive value must not wrap past the maximum and adding
+        // a negative value must not wrap below zero
+        if ((y >= 0) ? ((sum ^ Long.MIN_VALUE) < (x.value ^ Long.MIN_VALUE))
+                     : ((sum ^ Long.MIN_VALUE) > (x.value ^ Long.MIN_VALUE))) {
+            throw new NumberFormatException();
+        }
+
+        return new UnsignedInteger64(sum);
     }
 }
@@ -0,0 +1,129 @@
+package com.sshtools.j2ssh.sftp;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers the attributes of remote paths for a short time so that
+ * repeated stats of the same path, and the stats of files that have just
+ * been listed, are answered without a round trip. Entries expire after the
+ * cache time and are removed whenever this client changes the path.
+ *
+ * @author unascribed
+ * @version 1.0
+ */
+public class FileAttributesCache {
+
+  /**
+   * The default time in milliseconds that attributes are cached
+   */
+  public static final long DEFAULT_CACHE_TIME = 5000;
+
+  /**
+   * The maximum number of paths cached
+   */
+  public static final int MAXIMUM_ENTRIES = 4096;
+
+  private Map entries = new HashMap();
+  private long cacheTime = DEFAULT_CACHE_TIME;
+
+  /**
+   * Sets the time attributes are cached for. A time of zero disables the
+   * cache.
+   *
+   * @param cacheTime the time in milliseconds
+   */
+  public synchronized void setCacheTime(long cacheTime) {
+    this.cacheTime = cacheTime;
+
+    if(cacheTime <= 0)
+      entries.clear();
+  }
+
+  /**
+   * Gets the time attributes are cached for
+   *
+   * @return the time in milliseconds
+   */
+  public synchronized long getCacheTime() {
+    return cacheTime;
+  }
+
+  /**
+   * Gets the cached attributes of a path
+   *
+   * @param absolutePath the absolute path
+   * @return the attributes or <tt>null</tt> if none are cached or they have
+   *         expired
+   */
+  public synchronized FileAttributes get(String absolutePath) {
+    Entry entry = (Entry)entries.get(absolutePath);
+
+    if(entry==null)
+      return null;
+
+    if(entry.expires < System.currentTimeMillis()) {
+      entries.remove(absolutePath);
+      return null;
+    }
+
+    return entry.attrs;
+  }
+
+  /**
+   * Caches the attributes of a path
+   *
+   * @param absolutePath the absolute path
+   * @param attrs the attributes returned by the server
+   */
+  public synchronized void put(String absolutePath, FileAttributes attrs) {
+    if(cacheTime <= 0 || attrs==null)
+      return;
+
+    long now = System.currentTimeMillis();
+
+    if(entries.size() >= MAXIMUM_ENTRIES) {
+      // Drop the expired entries, or everything if none have expired
+      Iterator it = entries.values().iterator();
+      while(it.hasNext()) {
+        if(((Entry)it.next()).expires < now)
+          it.remove();
+      }
+
+      if(entries.size() >= MAXIMUM_ENTRIES)
+        entries.clear();
+    }
+
+    entries.put(absolutePath, new Entry(attrs, now + cacheTime));
+  }
+
+  /**
+   * Removes the cached attributes of a path
+   *
+   * @param absolutePath the absolute path
+   */
+  public synchronized void remove(String absolutePath) {
+    entries.remove(absolutePath);
+  }
+
+  /**
+   * Removes all the cached attributes
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Cached attributes and the time they expire
+   */
+  private static class Entry {
+    FileAttributes attrs;
+    long expires;
+
+    Entry(FileAttributes attrs, long expires) {
+      this.attrs = attrs;
+      this.expires = expires;
+    }
+  }
+}
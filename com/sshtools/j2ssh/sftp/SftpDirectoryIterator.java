@@ -0,0 +1,226 @@
+package com.sshtools.j2ssh.sftp;
+
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import com.sshtools.j2ssh.io.UnsignedInteger32;
+
+/**
+ * Lists an open directory one entry at a time. A number of read directory
+ * requests are kept outstanding so that the next batch of entries is
+ * usually on its way while the current batch is being used, and only one
+ * batch is held in memory at a time. Each entry is an <code>SftpFile</code>
+ * whose attributes are also placed in the subsystem attribute cache.<br>
+ * <br>
+ * The <code>Iterator</code> methods cannot throw checked exceptions, so
+ * <code>hasNext</code> wraps a communication failure in a
+ * <code>RuntimeException</code>; use <code>hasMoreFiles</code> and
+ * <code>nextFile</code> to receive the <code>IOException</code> instead.<br>
+ * <br>
+ * A directory opened by the iterator itself is closed once all the entries
+ * have been returned or the iterator is closed; a directory opened by the
+ * caller is left open.
+ *
+ * @author unascribed
+ * @version 1.0
+ */
+public class SftpDirectoryIterator implements Iterator {
+
+  private SftpFile directory;
+  private boolean closeDirectory;
+  // The outstanding read directory requests in the order they were sent
+  private LinkedList requests = new LinkedList();
+  private int depth;
+  private SftpFile files[];
+  private int filesPos = 0;
+  private boolean isEOF = false;
+
+  /**
+   * Creates the iterator for an open directory
+   *
+   * @param directory the open directory
+   * @param depth the number of outstanding read directory requests
+   *
+   * @throws IOException if the directory is not open
+   */
+  public SftpDirectoryIterator(SftpFile directory, int depth)
+      throws IOException {
+    this(directory, depth, false);
+  }
+
+  /**
+   * Creates the iterator for an open directory
+   *
+   * @param directory the open directory
+   * @param depth the number of outstanding read directory requests
+   * @param closeDirectory <tt>true</tt> if the iterator should close the
+   *        directory once the listing completes
+   *
+   * @throws IOException if the directory is not open
+   */
+  SftpDirectoryIterator(SftpFile directory, int depth, boolean closeDirectory)
+      throws IOException {
+    if(directory.getHandle()==null)
+      throw new IOException("The directory does not have a valid handle!");
+    if(directory.getSFTPSubsystem()==null)
+      throw new IOException("The directory is not attached to an SFTP subsystem!");
+
+    this.directory = directory;
+    this.depth = depth < 1 ? 1 : depth;
+    this.closeDirectory = closeDirectory;
+  }
+
+  /**
+   * Gets the directory being listed
+   *
+   * @return the open directory
+   */
+  public SftpFile getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Determine if there are more entries, waiting for the next batch from
+   * the server if required
+   *
+   * @return <tt>true</tt> if there are more entries
+   *
+   * @throws IOException if the listing fails
+   */
+  public boolean hasMoreFiles() throws IOException {
+    return fill();
+  }
+
+  /**
+   * Gets the next entry
+   *
+   * @return the next file in the directory
+   *
+   * @throws IOException if the listing fails
+   */
+  public SftpFile nextFile() throws IOException {
+    if(!fill())
+      throw new NoSuchElementException();
+
+    return files[filesPos++];
+  }
+
+  public boolean hasNext() {
+    try {
+      return fill();
+    } catch(IOException ex) {
+      throw new RuntimeException(ex.getMessage());
+    }
+  }
+
+  public Object next() {
+    try {
+      return nextFile();
+    } catch(IOException ex) {
+      throw new RuntimeException(ex.getMessage());
+    }
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stops the listing and cancels the outstanding requests. The directory
+   * is closed if it was opened by the iterator, otherwise the handle is
+   * left open.
+   *
+   * @throws IOException if the directory cannot be closed
+   */
+  public void close() throws IOException {
+    isEOF = true;
+    files = null;
+    cancelRequests();
+    closeDirectory();
+  }
+
+  /**
+   * Makes sure there is an entry available, waiting for the reply to the
+   * earliest outstanding request if required
+   *
+   * @return <tt>false</tt> if all the entries have been returned
+   *
+   * @throws IOException if the listing fails
+   */
+  private boolean fill() throws IOException {
+    SftpSubsystemClient sftp = directory.getSFTPSubsystem();
+
+    while(files==null || filesPos >= files.length) {
+      if(isEOF)
+        return false;
+
+      postRequests();
+
+      UnsignedInteger32 requestId = (UnsignedInteger32)requests.removeFirst();
+
+      try {
+        files = sftp.getReadDirResponse(directory, requestId);
+      } catch(IOException ex) {
+        isEOF = true;
+        cancelRequests();
+
+        try {
+          closeDirectory();
+        } catch(IOException ignore) { }
+
+        throw ex;
+      }
+
+      filesPos = 0;
+
+      if(files==null) {
+        isEOF = true;
+        cancelRequests();
+        closeDirectory();
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Sends read directory requests until the depth is reached
+   *
+   * @throws IOException if a request cannot be sent
+   */
+  private void postRequests() throws IOException {
+    SftpSubsystemClient sftp = directory.getSFTPSubsystem();
+
+    while(requests.size() < depth) {
+      requests.addLast(sftp.postReadDirRequest(directory.getHandle()));
+    }
+  }
+
+  /**
+   * Cancels the outstanding requests so that their replies are discarded
+   * rather than left in the message store
+   */
+  private void cancelRequests() {
+    SftpSubsystemClient sftp = directory.getSFTPSubsystem();
+
+    while(requests.size() > 0)
+      sftp.cancelRequest((UnsignedInteger32)requests.removeFirst());
+  }
+
+  /**
+   * Closes the directory if it was opened by the iterator and has not
+   * already been closed
+   *
+   * @throws IOException if the directory cannot be closed
+   */
+  private void closeDirectory() throws IOException {
+    if(closeDirectory) {
+      closeDirectory = false;
+      directory.close();
+    }
+  }
+}
@@ -2,9 +2,17 @@ package com.sshtools.j2ssh.sftp;
 
 import java.io.*;
 
+import java.util.LinkedList;
+
+import com.sshtools.j2ssh.io.UnsignedInteger32;
 import com.sshtools.j2ssh.io.UnsignedInteger64;
 
 /**
+ * Reads a remote file by keeping a number of read requests outstanding ahead
+ * of the stream position. The replies are collected in order of offset so
+ * the stream only waits for a round trip when it has consumed all of the
+ * data already received.
+ *
  * @author unascribed
  * @version 1.0
  */
@@ -13,41 +21,78 @@ public class SftpFileInputStream extends InputStream {
 
   SftpFile file;
   UnsignedInteger64 position = new UnsignedInteger64("0");
+  // The outstanding read requests in order of offset
+  private LinkedList requests = new LinkedList();
+  private UnsignedInteger64 nextOffset = position;
+  private int depth;
+  private int chunkSize;
+  private byte buffer[];
+  private int bufferPos = 0;
+  private boolean isEOF = false;
+
   public SftpFileInputStream(SftpFile file) throws IOException {
+    this(file, 0, 0);
+  }
+
+  /**
+   * Creates the stream with its own read-ahead settings
+   *
+   * @param file the open file to read
+   * @param depth the number of outstanding read requests, or zero to use the
+   *        subsystem setting
+   * @param chunkSize the number of bytes for each read request, or zero to
+   *        use the subsystem setting
+   *
+   * @throws IOException if the file is not open
+   */
+  public SftpFileInputStream(SftpFile file, int depth, int chunkSize)
+      throws IOException {
     if(file.getHandle()==null)
       throw new IOException("The file does not have a valid handle!");
     if(file.getSFTPSubsystem()==null)
       throw new IOException("The file is not attached to an SFTP subsystem!");
 
     this.file = file;
+    this.depth = depth > 0 ? depth : file.getSFTPSubsystem().getReadAheadDepth();
+    this.chunkSize = chunkSize > 0 ? chunkSize
+                                   : file.getSFTPSubsystem().getReadChunkSize();
 
   }
 
   public int read(byte buffer[], int offset, int len) throws IOException {
-    int read = file.getSFTPSubsystem().readFile(file.getHandle(),
-                                          position,
-                                          buffer,
-                                          offset,
-                                          len);
-    position = UnsignedInteger64.add(position, read);
-    return read;
+    if(len==0)
+      return 0;
+
+    if(!fill())
+      return -1;
+
+    int count = this.buffer.length - bufferPos;
+    if(count > len)
+      count = len;
+
+    System.arraycopy(this.buffer, bufferPos, buffer, offset, count);
+    bufferPos += count;
+    position = UnsignedInteger64.add(position, count);
+    return count;
 
   }
 
 
   public int read() throws java.io.IOException {
-    byte buffer[] = new byte[1];
-    int read = file.getSFTPSubsystem().readFile(file.getHandle(),
-                                          position,
-                                          buffer,
-                                          0,
-                                          1);
-    position = UnsignedInteger64.add(position, read);
-    return buffer[0] & 0xFF;
+    if(!fill())
+      return -1;
+
+    position = UnsignedInteger64.add(position, 1);
+    return buffer[bufferPos++] & 0xFF;
 
   }
 
+  public int available() {
+    return buffer==null ? 0 : buffer.length - bufferPos;
+  }
+
   public void close() throws IOException {
+    cancelRequests();
     file.getSFTPSubsystem().closeFile(file);
   }
 
@@ -56,4 +101,100 @@ public class SftpFileInputStream extends InputStream {
       close();
   }
 
-}
\ No newline at end of file
+  /**
+   * Makes sure there is data in the buffer, waiting for the reply to the
+   * earliest outstanding request if required
+   *
+   * @return <tt>false</tt> if the end of the file has been reached
+   *
+   * @throws IOException if the read fails
+   */
+  private boolean fill() throws IOException {
+    SftpSubsystemClient sftp = file.getSFTPSubsystem();
+
+    while(buffer==null || bufferPos >= buffer.length) {
+      if(isEOF)
+        return false;
+
+      postRequests();
+
+      ReadRequest request = (ReadRequest)requests.removeFirst();
+      byte data[];
+
+      try {
+        data = sftp.getReadResponse(request.requestId);
+      } catch(IOException ex) {
+        cancelRequests();
+        throw ex;
+      }
+
+      if(data==null) {
+        isEOF = true;
+        cancelRequests();
+        return false;
+      }
+
+      // The server returned less than we asked for so request the rest
+      // before any of the later chunks are used
+      if(data.length < request.length) {
+        UnsignedInteger64 offset = UnsignedInteger64.add(request.offset,
+                                                         data.length);
+        int length = request.length - data.length;
+        requests.addFirst(new ReadRequest(
+                      sftp.postReadRequest(file.getHandle(), offset, length),
+                      offset, length));
+      }
+
+      buffer = data;
+      bufferPos = 0;
+    }
+
+    return true;
+  }
+
+  /**
+   * Sends read requests until the read-ahead depth is reached
+   *
+   * @throws IOException if a request cannot be sent
+   */
+  private void postRequests() throws IOException {
+    SftpSubsystemClient sftp = file.getSFTPSubsystem();
+
+    while(requests.size() < depth) {
+      requests.addLast(new ReadRequest(
+                    sftp.postReadRequest(file.getHandle(), nextOffset, chunkSize),
+                    nextOffset, chunkSize));
+      nextOffset = UnsignedInteger64.add(nextOffset, chunkSize);
+    }
+  }
+
+  /**
+   * Cancels the outstanding requests so that their replies are discarded
+   * rather than left in the message store
+   */
+  private void cancelRequests() {
+    SftpSubsystemClient sftp = file.getSFTPSubsystem();
+
+    while(requests.size() > 0) {
+      ReadRequest request = (ReadRequest)requests.removeFirst();
+      sftp.cancelRequest(request.requestId);
+    }
+  }
+
+  /**
+   * A read request sent ahead of the stream position
+   */
+  private static class ReadRequest {
+    UnsignedInteger32 requestId;
+    UnsignedInteger64 offset;
+    int length;
+
+    ReadRequest(UnsignedInteger32 requestId, UnsignedInteger64 offset,
+                int length) {
+      this.requestId = requestId;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+}
@@ -2,9 +2,18 @@ package com.sshtools.j2ssh.sftp;
 
 import java.io.*;
 
+import java.util.LinkedList;
+
+import com.sshtools.j2ssh.io.UnsignedInteger32;
 import com.sshtools.j2ssh.io.UnsignedInteger64;
 
 /**
+ * Writes a remote file by buffering data locally and sending each full
+ * buffer as a write request without waiting for its status. Only a bounded
+ * number of requests are left in flight; their status replies are collected
+ * as the stream continues and any failure is reported by the next
+ * <code>write</code>, <code>flush</code> or <code>close</code>.
+ *
  * @author unascribed
  * @version 1.0
  */
@@ -13,8 +22,30 @@ public class SftpFileOutputStream extends OutputStream {
 
   SftpFile file;
   UnsignedInteger64 position = new UnsignedInteger64("0");
+  // The request ids of the writes awaiting a status reply, oldest first
+  private LinkedList requests = new LinkedList();
+  private int depth;
+  private byte buffer[];
+  private int count = 0;
+  private IOException error;
 
   public SftpFileOutputStream(SftpFile file) throws IOException {
+    this(file, 0, 0);
+  }
+
+  /**
+   * Creates the stream with its own write-behind settings
+   *
+   * @param file the open file to write
+   * @param depth the number of write requests in flight, or zero to use the
+   *        subsystem setting
+   * @param chunkSize the number of bytes buffered for each write request, or
+   *        zero to use the subsystem setting
+   *
+   * @throws IOException if the file is not open
+   */
+  public SftpFileOutputStream(SftpFile file, int depth, int chunkSize)
+      throws IOException {
 
     if(file.getHandle()==null)
       throw new IOException("The file does not have a valid handle!");
@@ -22,23 +53,69 @@ public class SftpFileOutputStream extends OutputStream {
       throw new IOException("The file is not attached to an SFTP subsystem!");
 
     this.file = file;
+    this.depth = depth > 0 ? depth : file.getSFTPSubsystem().getWriteBehindDepth();
+    this.buffer = new byte[chunkSize > 0 ? chunkSize
+                           : file.getSFTPSubsystem().getWriteChunkSize()];
 
   }
 
   public void write(byte buffer[], int offset, int len) throws IOException {
-    file.getSFTPSubsystem().writeFile(file.getHandle(), position, buffer, offset, len);
-    position = UnsignedInteger64.add(position, len);
+    checkError();
+
+    int block;
+
+    while(len > 0) {
+      // Send whole chunks directly when nothing is buffered
+      if(count==0 && len >= this.buffer.length) {
+        block = this.buffer.length;
+        postWrite(buffer, offset, block);
+      } else {
+        block = this.buffer.length - count;
+        if(block > len)
+          block = len;
+
+        System.arraycopy(buffer, offset, this.buffer, count, block);
+        count += block;
+
+        if(count==this.buffer.length)
+          postBuffer();
+      }
+
+      offset += block;
+      len -= block;
+    }
   }
 
   public void write(int b) throws IOException {
-    byte buffer[] = new byte[1];
-    buffer[0] = (byte)b;
-    file.getSFTPSubsystem().writeFile(file.getHandle(), position, buffer, 0, 1);
-    position = UnsignedInteger64.add(position, 1);
+    checkError();
+
+    buffer[count++] = (byte)b;
+
+    if(count==buffer.length)
+      postBuffer();
+  }
+
+  /**
+   * Sends any buffered data and waits for the status of every write in
+   * flight
+   *
+   * @throws IOException if any of the writes failed
+   */
+  public void flush() throws IOException {
+    checkError();
+
+    postBuffer();
+
+    while(requests.size() > 0)
+      collectResponse();
   }
 
   public void close() throws IOException {
-    file.getSFTPSubsystem().closeFile(file);
+    try {
+      flush();
+    } finally {
+      file.getSFTPSubsystem().closeFile(file);
+    }
   }
 
   protected void finalize() throws IOException {
@@ -46,5 +123,73 @@ public class SftpFileOutputStream extends OutputStream {
       close();
   }
 
+  /**
+   * Sends the buffered data as a write request
+   *
+   * @throws IOException if the request cannot be sent or an earlier write
+   *         failed
+   */
+  private void postBuffer() throws IOException {
+    if(count > 0) {
+      postWrite(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * Sends a write request at the current position, first collecting the
+   * oldest status reply if the maximum number of writes are in flight
+   *
+   * @param data the data to write
+   * @param off the offset of the data
+   * @param len the length of the data
+   *
+   * @throws IOException if the request cannot be sent or an earlier write
+   *         failed
+   */
+  private void postWrite(byte data[], int off, int len) throws IOException {
+    while(requests.size() >= depth)
+      collectResponse();
+
+    requests.addLast(file.getSFTPSubsystem().postWriteRequest(
+                       file.getHandle(), position, data, off, len));
+    position = UnsignedInteger64.add(position, len);
+  }
+
+  /**
+   * Collects the status of the oldest write in flight. If the write failed
+   * the remaining replies are collected and the failure is kept so that
+   * every later operation reports it.
+   *
+   * @throws IOException if the write failed
+   */
+  private void collectResponse() throws IOException {
+    SftpSubsystemClient sftp = file.getSFTPSubsystem();
+
+    try {
+      sftp.getWriteResponse((UnsignedInteger32)requests.removeFirst());
+    } catch(IOException ex) {
+      error = ex;
+
+      while(requests.size() > 0) {
+        try {
+          sftp.getWriteResponse((UnsignedInteger32)requests.removeFirst());
+        } catch(IOException ex2) {
+        }
+      }
+
+      throw ex;
+    }
+  }
+
+  /**
+   * Reports the failure of an earlier write
+   *
+   * @throws IOException if an earlier write failed
+   */
+  private void checkError() throws IOException {
+    if(error!=null)
+      throw new IOException(error.getMessage());
+  }
 
-}
\ No newline at end of file
+}
@@ -3,16 +3,31 @@ package com.sshtools.j2ssh.sftp;
 import com.sshtools.j2ssh.subsystem.SubsystemMessageStore;
 import com.sshtools.j2ssh.subsystem.SubsystemMessage;
 import com.sshtools.j2ssh.io.UnsignedInteger32;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import com.sshtools.j2ssh.util.OpenClosedState;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
 
 /**
+ * Routes each reply to the request with the same request id. A response is
+ * kept for every outstanding request so that a reply completes exactly one
+ * response and wakes only the threads waiting for it. Messages without a
+ * request id, such as SSH_FXP_VERSION, are queued for
+ * <code>nextMessage</code> as before.
+ *
  * @author unascribed
  * @version 1.0
  */
 
 public class SftpMessageStore extends SubsystemMessageStore {
 
+  private static Logger log = Logger.getLogger(SftpMessageStore.class);
+  // The responses waiting for a reply and the replies nobody has collected
+  private Map responses = new HashMap();
+  private boolean isClosed = false;
+
   public SftpMessageStore() {
   }
 
@@ -21,32 +36,107 @@ public class SftpMessageStore extends SubsystemMessageStore {
    * To support this feature the message class must implement the MessageRequestId
    * interface.
    * @param requestId the request id
-   * @return  the message
+   * @return  the message, or <tt>null</tt> if the store is closed
+   */
+  public SubsystemMessage getMessage(UnsignedInteger32 requestId) {
+    return getResponse(requestId).get();
+  }
+
+  /**
+   * Gets the response for a request without waiting for the reply. The
+   * response should be collected once the request has been sent; any number
+   * of responses may be outstanding at once.
+   *
+   * @param requestId the request id
+   * @return the response, which has already completed if the reply has
+   *         arrived or the store is closed
+   */
+  public SftpResponse getResponse(UnsignedInteger32 requestId) {
+    synchronized(responses) {
+      SftpResponse response = (SftpResponse)responses.get(requestId);
+
+      if(response==null) {
+        response = new SftpResponse(this, requestId);
+
+        if(isClosed)
+          response.complete(null, false);
+        else
+          responses.put(requestId, response);
+      } else if(response.isDone()) {
+        responses.remove(requestId);
+      }
+
+      return response;
+    }
+  }
+
+  /**
+   * Adds a message to the store, completing the response for its request
+   * id
+   *
+   * @param msg the message to add
+   */
+  public void addMessage(SubsystemMessage msg) {
+    if(!(msg instanceof MessageRequestId)) {
+      super.addMessage(msg);
+      return;
+    }
+
+    UnsignedInteger32 requestId = ((MessageRequestId)msg).getId();
+    SftpResponse response;
+
+    synchronized(responses) {
+      response = (SftpResponse)responses.remove(requestId);
+
+      if(response==null) {
+        // Nobody is waiting yet so keep the reply until it is collected
+        response = new SftpResponse(this, requestId);
+        response.complete(msg, false);
+        responses.put(requestId, response);
+        return;
+      }
+    }
+
+    if(!response.complete(msg, false))
+      log.debug("Discarding " + msg.getMessageName()
+                + " for cancelled request " + requestId.toString());
+  }
+
+  /**
+   * Closes the store, completing every outstanding response with no reply.
+   * Replies that have already arrived can still be collected.
    */
-  public synchronized SubsystemMessage getMessage(UnsignedInteger32 requestId) {
-
-        Iterator it;
-        SubsystemMessage msg;
-       // If there ae no messages available then wait untill there are.
-       while(getState().getValue()==OpenClosedState.OPEN) {
-          if(messages.size() > 0) {
-            it = messages.iterator();
-            while(it.hasNext()) {
-              msg = (SubsystemMessage)it.next();
-              if(msg instanceof MessageRequestId) {
-                if(((MessageRequestId)msg).getId().equals(requestId)) {
-                  messages.remove(msg);
-                  return msg;
-                }
-              }
-            }
-          }
-          try {
-            wait();
-          } catch(InterruptedException e) {
-          }
+  public void close() {
+    super.close();
+
+    List pending = new ArrayList();
+
+    synchronized(responses) {
+      isClosed = true;
+
+      Iterator it = responses.values().iterator();
+      while(it.hasNext()) {
+        SftpResponse response = (SftpResponse)it.next();
+        if(!response.isDone()) {
+          pending.add(response);
+          it.remove();
+        }
       }
+    }
 
-      return null;
+    for(int i=0;i<pending.size();i++)
+      ((SftpResponse)pending.get(i)).complete(null, false);
+  }
+
+  /**
+   * Forgets a completed response that has not been collected
+   *
+   * @param response the response
+   */
+  void release(SftpResponse response) {
+    synchronized(responses) {
+      if(responses.get(response.getRequestId())==response)
+        responses.remove(response.getRequestId());
+    }
   }
-}
\ No newline at end of file
+}
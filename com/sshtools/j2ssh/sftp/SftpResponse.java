@@ -0,0 +1,190 @@
+package com.sshtools.j2ssh.sftp;
+
+import java.io.InterruptedIOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sshtools.j2ssh.io.UnsignedInteger32;
+import com.sshtools.j2ssh.subsystem.SubsystemMessage;
+
+/**
+ * The pending reply to a single SFTP request. The message store completes
+ * the response when the reply with its request id arrives, waking only the
+ * threads waiting for this request. Callers that pipeline requests can keep
+ * a number of responses and collect them later, poll them with
+ * <code>isDone</code>, or register a listener to be called back.
+ *
+ * @author unascribed
+ * @version 1.0
+ */
+public class SftpResponse {
+
+  private SftpMessageStore store;
+  private UnsignedInteger32 requestId;
+  private SubsystemMessage message;
+  private boolean isDone = false;
+  private boolean isCancelled = false;
+  private List listeners;
+
+  SftpResponse(SftpMessageStore store, UnsignedInteger32 requestId) {
+    this.store = store;
+    this.requestId = requestId;
+  }
+
+  /**
+   * Gets the request id of the request
+   *
+   * @return the request id
+   */
+  public UnsignedInteger32 getRequestId() {
+    return requestId;
+  }
+
+  /**
+   * Determine if the response has completed
+   *
+   * @return <tt>true</tt> if the reply has arrived, the request was
+   *         cancelled or the subsystem closed
+   */
+  public synchronized boolean isDone() {
+    return isDone;
+  }
+
+  /**
+   * Determine if the request was cancelled
+   *
+   * @return <tt>true</tt> if the request was cancelled before its reply
+   *         arrived
+   */
+  public synchronized boolean isCancelled() {
+    return isCancelled;
+  }
+
+  /**
+   * Waits for the reply
+   *
+   * @return the reply, or <tt>null</tt> if the subsystem closed or the
+   *         request was cancelled
+   */
+  public synchronized SubsystemMessage get() {
+    while(!isDone) {
+      try {
+        wait();
+      } catch(InterruptedException e) {
+      }
+    }
+
+    return message;
+  }
+
+  /**
+   * Waits for the reply for no longer than the timeout. The request stays
+   * outstanding when the timeout expires; cancel it if the reply is no
+   * longer wanted.
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   *
+   * @return the reply, or <tt>null</tt> if the subsystem closed or the
+   *         request was cancelled
+   *
+   * @throws InterruptedIOException if the reply did not arrive in time
+   */
+  public synchronized SubsystemMessage get(long timeout)
+      throws InterruptedIOException {
+    long end = System.currentTimeMillis() + timeout;
+    long left = timeout;
+
+    while(!isDone) {
+      if(left <= 0)
+        throw new InterruptedIOException("Timed out waiting for the reply to request "
+                                         + requestId.toString());
+
+      try {
+        wait(left);
+      } catch(InterruptedException e) {
+      }
+
+      left = end - System.currentTimeMillis();
+    }
+
+    return message;
+  }
+
+  /**
+   * Gets the reply without waiting
+   *
+   * @return the reply, or <tt>null</tt> if it has not arrived
+   */
+  public synchronized SubsystemMessage getNow() {
+    return message;
+  }
+
+  /**
+   * Cancels the request. Threads waiting for the reply return <tt>null</tt>
+   * and the reply is discarded when it arrives.
+   *
+   * @return <tt>true</tt> if the request was cancelled, <tt>false</tt> if
+   *         the response had already completed
+   */
+  public boolean cancel() {
+    if(complete(null, true))
+      return true;
+
+    // The reply has arrived but nobody has collected it
+    store.release(this);
+    return false;
+  }
+
+  /**
+   * Adds a listener to be called when the response completes. The listener
+   * is called straight away if the response has already completed.
+   *
+   * @param listener the listener
+   */
+  public void addResponseListener(SftpResponseListener listener) {
+    synchronized(this) {
+      if(!isDone) {
+        if(listeners==null)
+          listeners = new ArrayList();
+
+        listeners.add(listener);
+        return;
+      }
+    }
+
+    listener.responseCompleted(this);
+  }
+
+  /**
+   * Completes the response, waking the waiting threads and calling the
+   * listeners
+   *
+   * @param message the reply, or <tt>null</tt>
+   * @param cancelled <tt>true</tt> if the request is being cancelled
+   *
+   * @return <tt>false</tt> if the response had already completed
+   */
+  boolean complete(SubsystemMessage message, boolean cancelled) {
+    List listeners;
+
+    synchronized(this) {
+      if(isDone)
+        return false;
+
+      this.message = message;
+      this.isCancelled = cancelled;
+      this.isDone = true;
+      listeners = this.listeners;
+      this.listeners = null;
+      notifyAll();
+    }
+
+    if(listeners!=null) {
+      for(int i=0;i<listeners.size();i++)
+        ((SftpResponseListener)listeners.get(i)).responseCompleted(this);
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,23 @@
+package com.sshtools.j2ssh.sftp;
+
+import java.util.EventListener;
+
+/**
+ * Implemented by objects that want to be called back when the reply to an
+ * SFTP request arrives instead of waiting for it. The method is called on
+ * the thread that reads the subsystem messages, so implementations should
+ * return as quickly as possible and must not wait for further replies.
+ *
+ * @author unascribed
+ * @version 1.0
+ */
+public interface SftpResponseListener extends EventListener {
+
+  /**
+   * Called once when the response completes, either because the reply has
+   * arrived or because the subsystem closed or the request was cancelled.
+   *
+   * @param response the completed response
+   */
+  public void responseCompleted(SftpResponse response);
+}
@@ -111,6 +111,33 @@ public class SftpSubsystemClient extends SubsystemClient {
     */
     public static final int VERSION_4 = 4;
 
+    /**
+     * The default number of read requests kept outstanding by a file stream
+     */
+    public static final int DEFAULT_READ_AHEAD_DEPTH = 16;
+
+    /**
+     * The default number of bytes requested by each read request
+     */
+    public static final int DEFAULT_READ_CHUNK_SIZE = 32768;
+
+    /**
+     * The default number of write requests a file stream may have in flight
+     */
+    public static final int DEFAULT_WRITE_BEHIND_DEPTH = 16;
+
+    /**
+     * The default number of bytes buffered by a file stream for each write
+     * request
+     */
+    public static final int DEFAULT_WRITE_CHUNK_SIZE = 32768;
+
+    /**
+     * The default number of read directory requests kept outstanding by a
+     * directory iterator
+     */
+    public static final int DEFAULT_READ_DIR_DEPTH = 4;
+
     /* Private variables */
     private static Logger log = Logger.getLogger(SftpSubsystemClient.class);
     private List handles = new Vector();
@@ -118,6 +145,13 @@ public class SftpSubsystemClient extends SubsystemClient {
     private int version = VERSION_3;
     private SftpMessageStore messageStore;
     private String workingDirectory = "";
+    private int readAheadDepth = DEFAULT_READ_AHEAD_DEPTH;
+    private int readChunkSize = DEFAULT_READ_CHUNK_SIZE;
+    private int writeBehindDepth = DEFAULT_WRITE_BEHIND_DEPTH;
+    private int writeChunkSize = DEFAULT_WRITE_CHUNK_SIZE;
+    private int readDirDepth = DEFAULT_READ_DIR_DEPTH;
+    private FileAttributesCache attributeCache = new FileAttributesCache();
+    private SftpTransferManager transferManager;
 
     /**
      * Contructs the object
@@ -129,6 +163,120 @@ public class SftpSubsystemClient extends SubsystemClient {
         registerMessages();
     }
 
+    /**
+     * Sets the number of read requests that a file input stream keeps
+     * outstanding and the number of bytes requested by each one. A depth of
+     * one disables read-ahead.
+     *
+     * @param depth the number of outstanding read requests
+     * @param chunkSize the number of bytes for each read request
+     */
+    public void setReadAhead(int depth, int chunkSize) {
+        this.readAheadDepth = depth < 1 ? 1 : depth;
+        this.readChunkSize = chunkSize;
+    }
+
+    /**
+     * Gets the number of read requests that a file input stream keeps
+     * outstanding
+     *
+     * @return the read-ahead depth
+     */
+    public int getReadAheadDepth() {
+        return readAheadDepth;
+    }
+
+    /**
+     * Gets the number of bytes requested by each read request of a file input
+     * stream
+     *
+     * @return the read chunk size
+     */
+    public int getReadChunkSize() {
+        return readChunkSize;
+    }
+
+    /**
+     * Sets the number of write requests that a file output stream may have in
+     * flight and the number of bytes it buffers for each one. A depth of one
+     * waits for each write to complete before the next is sent.
+     *
+     * @param depth the number of write requests in flight
+     * @param chunkSize the number of bytes for each write request
+     */
+    public void setWriteBehind(int depth, int chunkSize) {
+        this.writeBehindDepth = depth < 1 ? 1 : depth;
+        this.writeChunkSize = chunkSize;
+    }
+
+    /**
+     * Gets the number of write requests that a file output stream may have in
+     * flight
+     *
+     * @return the write-behind depth
+     */
+    public int getWriteBehindDepth() {
+        return writeBehindDepth;
+    }
+
+    /**
+     * Gets the number of bytes a file output stream buffers for each write
+     * request
+     *
+     * @return the write chunk size
+     */
+    public int getWriteChunkSize() {
+        return writeChunkSize;
+    }
+
+    /**
+     * Sets the number of read directory requests that a directory iterator
+     * keeps outstanding. A depth of one waits for each batch of entries
+     * before asking for the next.
+     *
+     * @param depth the number of outstanding read directory requests
+     */
+    public void setReadDirDepth(int depth) {
+        this.readDirDepth = depth < 1 ? 1 : depth;
+    }
+
+    /**
+     * Gets the number of read directory requests that a directory iterator
+     * keeps outstanding
+     *
+     * @return the read directory depth
+     */
+    public int getReadDirDepth() {
+        return readDirDepth;
+    }
+
+    /**
+     * Gets the cache that remembers the attributes of listed and stat'ed
+     * paths. Operations that change a path given as a string clear the whole
+     * cache, since the path may be relative. Use <code>setCacheTime(0)</code>
+     * on the cache to disable it.
+     *
+     * @return the attribute cache
+     */
+    public FileAttributesCache getAttributeCache() {
+        return attributeCache;
+    }
+
+    /**
+     * Gets the manager that copies files and directory trees through this
+     * subsystem. Further subsystems on other session channels can be added
+     * to the manager to share the transfers.
+     *
+     * @return the transfer manager
+     */
+    public synchronized SftpTransferManager getTransferManager() {
+        if (transferManager == null) {
+            transferManager = new SftpTransferManager(this);
+        }
+
+        return transferManager;
+    }
+
     /**
      * Gets the name of this subsystem
      *
@@ -166,6 +314,8 @@ public class SftpSubsystemClient extends SubsystemClient {
      * @throws IOException  if the handle is invalid or the server cannot close the file
      */
     public void closeFile(SftpFile file) throws IOException {
+        // The file may have been written through the handle
+        attributeCache.remove(file.getAbsolutePath());
         closeHandle(file.getHandle());
     }
 
@@ -228,42 +378,138 @@ public class SftpSubsystemClient extends SubsystemClient {
        } else
         throw new IOException("Cannot list children for this file object");
 
-       UnsignedInteger32 requestId = nextRequestId();
-       SshFxpReadDir msg = new SshFxpReadDir(requestId, file.getHandle());
+       SftpFile files[] = getReadDirResponse(file,
+                                             postReadDirRequest(file.getHandle()));
+
+       if (files == null) {
+           return -1;
+       }
 
-       sendMessage(msg);
+       for (int i = 0; i < files.length; i++) {
+           children.add(files[i]);
+       }
 
-       SubsystemMessage reply = messageStore.getMessage(requestId);
+       return files.length;
+    }
 
-       if (reply instanceof SshFxpName) {
-            SshFxpName names = (SshFxpName) reply;
-            SftpFile files[] = names.getFiles();
-            SftpFile f;
-            for(int i=0;i<files.length;i++) {
-                f = new SftpFile(file.getAbsolutePath()
-                          + "/"
-                          + files[i].getFilename(),
-                          files[i].getAttributes());
-                f.setSFTPSubsystem(this);
-                children.add(f);
+    /**
+     * Lists the children of a directory one at a time. Several read
+     * directory requests are kept outstanding so that large directories are
+     * listed without waiting a round trip for each batch of entries, and
+     * only one batch is held in memory. A directory that is already open is
+     * left open when the listing completes. Otherwise the directory is opened
+     * for the listing and closed once all the entries have been returned or
+     * the iterator is closed.<br>
+     * <br>
+     * An example of using this method:<br>
+     * <br>
+     * <code>SftpDirectoryIterator it = sftp.iterateChildren(sftp.openDirectory("docs"));<br>
+     * while(it.hasMoreFiles()) {<br>
+     *      SftpFile child = it.nextFile();<br>
+     * }<br>
+     * <br></code>
+     *
+     * @param file the directory to list
+     * @return an iterator of <code>SftpFile</code> objects
+     * @throws IOException if the directory cannot be opened
+     */
+    public SftpDirectoryIterator iterateChildren(SftpFile file)
+        throws IOException {
+        if (!file.isDirectory()) {
+            throw new IOException("Cannot list children for this file object");
+        }
+
+        if (isValidHandle(file.getHandle())) {
+            return new SftpDirectoryIterator(file, readDirDepth);
+        }
+
+        return new SftpDirectoryIterator(openDirectory(file.getAbsolutePath()),
+            readDirDepth, true);
+    }
+
+    /**
+     * Sends a read directory request for an open directory without waiting
+     * for the reply. Use <code>getReadDirResponse</code> to collect the
+     * files; any number of requests may be outstanding at once and the
+     * server returns successive batches of entries in the order the requests
+     * were sent.
+     *
+     * @param handle the open directory handle
+     *
+     * @return the request id of the read directory request
+     *
+     * @throws IOException if the operation fails
+     */
+    protected UnsignedInteger32 postReadDirRequest(byte[] handle)
+        throws IOException {
+        if (!isValidHandle(handle)) {
+            throw new IOException("The handle is invalid!");
+        }
+
+        UnsignedInteger32 requestId = nextRequestId();
+        sendMessage(new SshFxpReadDir(requestId, handle));
+
+        return requestId;
+    }
+
+    /**
+     * Waits for the reply to a read directory request. The attributes of
+     * each file returned are placed in the attribute cache.
+     *
+     * @param directory the directory being listed
+     * @param requestId the request id returned by <code>postReadDirRequest</code>
+     *
+     * @return the files, with their absolute paths, or <tt>null</tt> if all
+     *         the entries have been returned
+     *
+     * @throws IOException if the operation fails
+     */
+    protected SftpFile[] getReadDirResponse(SftpFile directory,
+        UnsignedInteger32 requestId) throws IOException {
+        SubsystemMessage reply = messageStore.getMessage(requestId);
+
+        if (reply instanceof SshFxpName) {
+            SftpFile names[] = ((SshFxpName) reply).getFiles();
+            SftpFile files[] = new SftpFile[names.length];
+            String parent = directory.getAbsolutePath();
+            StringBuffer path = new StringBuffer(parent.length() + 32);
+
+            path.append(parent);
+
+            if (!parent.endsWith("/")) {
+                path.append('/');
             }
 
-            return files.length;
+            int parentLength = path.length();
+
+            for (int i = 0; i < names.length; i++) {
+                path.setLength(parentLength);
+                path.append(names[i].getFilename());
+
+                files[i] = new SftpFile(path.toString(),
+                        names[i].getAttributes());
+                files[i].setSFTPSubsystem(this);
+                attributeCache.put(files[i].getAbsolutePath(),
+                    names[i].getAttributes());
+            }
+
+            return files;
         } else if (reply instanceof SshFxpStatus) {
             SshFxpStatus status = (SshFxpStatus) reply;
 
             if (status.getErrorCode().intValue() == SshFxpStatus.STATUS_FX_EOF) {
-                return -1;
+                return null;
             } else {
                 throw new IOException(status.getErrorMessage());
             }
+        } else if (reply == null) {
+            throw new IOException("The subsystem has been closed");
         } else {
             throw new IOException("Unexpected server response " +
                 reply.getMessageName());
         }
     }
 
-
     /**
      * Creates a directory on the remote server
      *
@@ -273,6 +519,8 @@ public class SftpSubsystemClient extends SubsystemClient {
      * communication error occurs
      */
     public void makeDirectory(String path) throws IOException {
+        attributeCache.clear();
+
         UnsignedInteger32 requestId = nextRequestId();
         SshFxpMkdir msg = new SshFxpMkdir(requestId, path, new FileAttributes());
 
@@ -313,25 +561,49 @@ public class SftpSubsystemClient extends SubsystemClient {
 
         sendMessage(msg);
 
-        byte[] handle = getHandleResponse(requestId);
+        FileAttributes attrs = attributeCache.get(absolutePath);
+        UnsignedInteger32 statId = null;
 
-        requestId = nextRequestId();
-        msg = new SshFxpStat(requestId, absolutePath);
-        sendMessage(msg);
+        // Send the stat with the open so that both replies arrive in a
+        // single round trip, unless the attributes are already cached
+        if (attrs == null) {
+            statId = nextRequestId();
+            sendMessage(new SshFxpStat(statId, absolutePath));
+        }
 
-        SubsystemMessage reply = messageStore.getMessage(requestId);
+        byte[] handle;
 
-        if (reply instanceof SshFxpAttrs) {
-            SftpFile file = new SftpFile(absolutePath, ((SshFxpAttrs) reply).getAttributes());
-            file.setHandle(handle);
-            file.setSFTPSubsystem(this);
-            return file;
-       } else if (reply instanceof SshFxpStatus) {
-            throw new IOException(((SshFxpStatus) reply).getErrorMessage());
-        } else {
-            throw new IOException("Unexpected server response " +
-                reply.getMessageName());
+        try {
+            handle = getHandleResponse(requestId);
+        } catch (IOException ex) {
+            // The stat reply is of no use without the handle
+            if (statId != null) {
+                cancelRequest(statId);
+            }
+
+            throw ex;
         }
+
+        if (statId != null) {
+            try {
+                attrs = getAttributesResponse(statId);
+            } catch (IOException ex) {
+                try {
+                    closeHandle(handle);
+                } catch (IOException ignore) {
+                }
+
+                throw ex;
+            }
+
+            attributeCache.put(absolutePath, attrs);
+        }
+
+        SftpFile file = new SftpFile(absolutePath, attrs);
+        file.setHandle(handle);
+        file.setSFTPSubsystem(this);
+
+        return file;
     }
 
     public String getDefaultDirectory() throws IOException {
@@ -420,25 +692,70 @@ public class SftpSubsystemClient extends SubsystemClient {
 
 
 
+    /**
+     * Gets the attributes of a file. The attributes of an open file are
+     * always fetched from the server through its handle; otherwise the
+     * attribute cache is used when it holds the path.
+     *
+     * @param file the file
+     *
+     * @return the file attributes
+     *
+     * @throws IOException if the operation fails
+     */
     public FileAttributes getAttributes(SftpFile file) throws IOException {
 
         SubsystemMessage msg;
+        FileAttributes attrs;
+        boolean isOpen = isValidHandle(file.getHandle());
+
+        if (!isOpen) {
+            attrs = attributeCache.get(file.getAbsolutePath());
+
+            if (attrs != null) {
+                return attrs;
+            }
+        }
+
         UnsignedInteger32 requestId = nextRequestId();
 
-        if(!isValidHandle(file.getHandle()))
+        if(!isOpen)
           msg = new SshFxpStat(requestId, file.getAbsolutePath());
         else
           msg = new SshFxpFStat(requestId, file.getHandle());
 
         sendMessage(msg);
 
+        attrs = getAttributesResponse(requestId);
+
+        if (!isOpen) {
+            attributeCache.put(file.getAbsolutePath(), attrs);
+        }
+
+        return attrs;
+    }
+
+    /**
+     * Waits for an SSH_FXP_ATTRS response from the server and returns the
+     * attributes. If the server responds with a SSH_FXP_STATUS message an
+     * exception is thrown
+     *
+     * @param requestId the request id of the stat request
+     *
+     * @return the file attributes
+     *
+     * @throws IOException if the operation fails
+     */
+    private FileAttributes getAttributesResponse(UnsignedInteger32 requestId)
+        throws IOException {
         SubsystemMessage reply = messageStore.getMessage(requestId);
 
         if (reply instanceof SshFxpAttrs) {
             return ((SshFxpAttrs) reply).getAttributes();
-
-       } else if (reply instanceof SshFxpStatus) {
+        } else if (reply instanceof SshFxpStatus) {
             throw new IOException(((SshFxpStatus) reply).getErrorMessage());
+        } else if (reply == null) {
+            throw new IOException("The subsystem has been closed");
         } else {
             throw new IOException("Unexpected server response " +
                 reply.getMessageName());
@@ -471,32 +788,98 @@ public class SftpSubsystemClient extends SubsystemClient {
                 "Output array size is smaller than read length!");
         }
 
+        byte[] msgdata = getReadResponse(postReadRequest(handle, offset, len));
+
+        if (msgdata == null) {
+            return -1;
+        }
+
+        System.arraycopy(msgdata, 0, output, off, msgdata.length);
+
+        return msgdata.length;
+    }
+
+    /**
+     * Sends a read request for a previously opened file without waiting for
+     * the reply. Use <code>getReadResponse</code> to collect the data; any
+     * number of requests may be outstanding at once.
+     *
+     * @param handle the file handle
+     * @param offset the offset from the start of the file to read from
+     * @param len the length of data to read
+     *
+     * @return the request id of the read request
+     *
+     * @throws IOException if the operation fails
+     */
+    protected UnsignedInteger32 postReadRequest(byte[] handle,
+        UnsignedInteger64 offset, int len) throws IOException {
+        if (!handles.contains(handle)) {
+            throw new IOException("The file handle is invalid!");
+        }
+
         UnsignedInteger32 requestId = nextRequestId();
         SshFxpRead msg = new SshFxpRead(requestId, handle, offset,
                 new UnsignedInteger32(len));
         sendMessage(msg);
 
+        return requestId;
+    }
+
+    /**
+     * Waits for the reply to a read request.
+     *
+     * @param requestId the request id returned by <code>postReadRequest</code>
+     *
+     * @return the data read, which may be less than requested, or
+     *         <tt>null</tt> if the end of the file has been reached
+     *
+     * @throws IOException if the operation fails
+     */
+    protected byte[] getReadResponse(UnsignedInteger32 requestId)
+        throws IOException {
         SubsystemMessage reply = messageStore.getMessage(requestId);
 
         if (reply instanceof SshFxpData) {
-            byte[] msgdata = ((SshFxpData) reply).getData();
-            System.arraycopy(msgdata, 0, output, off, msgdata.length);
-
-            return msgdata.length;
+            return ((SshFxpData) reply).getData();
         } else if (reply instanceof SshFxpStatus) {
             SshFxpStatus status = (SshFxpStatus) reply;
 
             if (status.getErrorCode().intValue() == SshFxpStatus.STATUS_FX_EOF) {
-                return -1;
+                return null;
             } else {
                 throw new IOException(((SshFxpStatus) reply).getErrorMessage());
             }
+        } else if (reply == null) {
+            throw new IOException("The subsystem has been closed");
         } else {
             throw new IOException("Unexpected server response " +
                 reply.getMessageName());
         }
     }
 
+    /**
+     * Gets the response to a request that has been sent, without waiting
+     * for the reply
+     *
+     * @param requestId the request id
+     *
+     * @return the response
+     */
+    protected SftpResponse getResponse(UnsignedInteger32 requestId) {
+        return messageStore.getResponse(requestId);
+    }
+
+    /**
+     * Cancels a request whose reply is no longer wanted. The reply is
+     * discarded when it arrives.
+     *
+     * @param requestId the request id
+     */
+    protected void cancelRequest(UnsignedInteger32 requestId) {
+        messageStore.getResponse(requestId).cancel();
+    }
+
     /**
      * Removes a directory from the remote server.
      *
@@ -505,6 +888,8 @@ public class SftpSubsystemClient extends SubsystemClient {
      * @throws IOException if the remove operation fails
      */
     public void removeDirectory(String path) throws IOException {
+        attributeCache.clear();
+
         UnsignedInteger32 requestId = nextRequestId();
         SshFxpRmdir msg = new SshFxpRmdir(requestId, path);
 
@@ -521,6 +906,8 @@ public class SftpSubsystemClient extends SubsystemClient {
      * @throws IOException if the operation fails
      */
     public void removeFile(String filename) throws IOException {
+        attributeCache.clear();
+
         UnsignedInteger32 requestId = nextRequestId();
         SshFxpRemove msg = new SshFxpRemove(requestId, filename);
 
@@ -539,6 +926,8 @@ public class SftpSubsystemClient extends SubsystemClient {
      */
     public void renameFile(String oldpath, String newpath)
         throws IOException {
+        attributeCache.clear();
+
         UnsignedInteger32 requestId = nextRequestId();
         SshFxpRename msg = new SshFxpRename(requestId, oldpath, newpath);
 
@@ -560,6 +949,27 @@ public class SftpSubsystemClient extends SubsystemClient {
      */
     protected void writeFile(byte[] handle, UnsignedInteger64 offset,
         byte[] data, int off, int len) throws IOException {
+        getWriteResponse(postWriteRequest(handle, offset, data, off, len));
+    }
+
+    /**
+     * Sends a write request for a previously opened file without waiting for
+     * the status reply. Use <code>getWriteResponse</code> to collect the
+     * status; any number of requests may be in flight at once.
+     *
+     * @param handle the open file handle
+     * @param offset the offset to write to in the remote file
+     * @param data a buffer containing data to write
+     * @param off the offset in the data buffer to start from
+     * @param len the length of data to write
+     *
+     * @return the request id of the write request
+     *
+     * @throws IOException if the operation fails
+     */
+    protected UnsignedInteger32 postWriteRequest(byte[] handle,
+        UnsignedInteger64 offset, byte[] data, int off, int len)
+        throws IOException {
         if (!handles.contains(handle)) {
             throw new IOException("The handle is not valid!");
         }
@@ -573,6 +983,18 @@ public class SftpSubsystemClient extends SubsystemClient {
                 len);
         sendMessage(msg);
 
+        return requestId;
+    }
+
+    /**
+     * Waits for the status reply to a write request
+     *
+     * @param requestId the request id returned by <code>postWriteRequest</code>
+     *
+     * @throws IOException if the write failed
+     */
+    protected void getWriteResponse(UnsignedInteger32 requestId)
+        throws IOException {
         getOKRequestStatus(requestId);
     }
 
@@ -584,6 +1006,8 @@ public class SftpSubsystemClient extends SubsystemClient {
      */
     public void createSymbolicLink(String targetpath, String linkpath)
         throws IOException {
+        attributeCache.clear();
+
         UnsignedInteger32 requestId = nextRequestId();
         SubsystemMessage msg = new SshFxpSymlink(requestId, targetpath, linkpath);
         sendMessage(msg);
@@ -624,6 +1048,8 @@ public class SftpSubsystemClient extends SubsystemClient {
 
     public void setAttributes(String path, FileAttributes attrs)
         throws IOException {
+        attributeCache.clear();
+
         UnsignedInteger32 requestId = nextRequestId();
         SubsystemMessage msg = new SshFxpSetStat(requestId, path, attrs);
         sendMessage(msg);
@@ -637,6 +1063,8 @@ public class SftpSubsystemClient extends SubsystemClient {
             throw new IOException("The handle is not an open file handle!");
         }
 
+        attributeCache.remove(file.getAbsolutePath());
+
         UnsignedInteger32 requestId = nextRequestId();
         SubsystemMessage msg = new SshFxpFSetStat(requestId, file.getHandle(),
                 attrs);
@@ -748,6 +1176,8 @@ public class SftpSubsystemClient extends SubsystemClient {
             if (status.getErrorCode().intValue() != SshFxpStatus.STATUS_FX_OK) {
                 throw new IOException(((SshFxpStatus) reply).getErrorMessage());
             }
+        } else if (reply == null) {
+            throw new IOException("The subsystem has been closed");
         } else {
             throw new IOException("Unexpected server response " +
                 reply.getMessageName());
@@ -759,7 +1189,7 @@ public class SftpSubsystemClient extends SubsystemClient {
      *
      * @return the next available request id
      */
-    private UnsignedInteger32 nextRequestId() {
+    private synchronized UnsignedInteger32 nextRequestId() {
         nextRequestId = UnsignedInteger32.add(nextRequestId, 1);
 
         return nextRequestId;
@@ -0,0 +1,149 @@
+package com.sshtools.j2ssh.sftp;
+
+/**
+ * Describes the transfer of a single file by an
+ * <code>SftpTransferManager</code> and reports its progress.
+ *
+ * @author unascribed
+ * @version 1.0
+ */
+public class SftpTransfer {
+
+  private String source;
+  private String destination;
+  private boolean isUpload;
+  private long size;
+  private long startOffset = 0;
+  private long transferred = 0;
+  private long startTime = 0;
+  private long endTime = 0;
+  private boolean isSkipped = false;
+
+  SftpTransfer(String source, String destination, boolean isUpload,
+               long size) {
+    this.source = source;
+    this.destination = destination;
+    this.isUpload = isUpload;
+    this.size = size;
+  }
+
+  /**
+   * Gets the path of the file being copied
+   *
+   * @return the source path
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * Gets the path the file is being copied to
+   *
+   * @return the destination path
+   */
+  public String getDestination() {
+    return destination;
+  }
+
+  /**
+   * Determine if the file is being copied to the server
+   *
+   * @return <tt>true</tt> for an upload, <tt>false</tt> for a download
+   */
+  public boolean isUpload() {
+    return isUpload;
+  }
+
+  /**
+   * Gets the size of the file
+   *
+   * @return the size in bytes
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Gets the offset the transfer started from. This is greater than zero
+   * when a partial transfer was resumed.
+   *
+   * @return the offset in bytes
+   */
+  public long getStartOffset() {
+    return startOffset;
+  }
+
+  /**
+   * Gets the number of bytes transferred so far, not counting the data
+   * that was already present when the transfer was resumed
+   *
+   * @return the number of bytes transferred
+   */
+  public synchronized long getBytesTransferred() {
+    return transferred;
+  }
+
+  /**
+   * Determine if the file was skipped because the destination already
+   * matched the source
+   *
+   * @return <tt>true</tt> if nothing was transferred
+   */
+  public boolean isSkipped() {
+    return isSkipped;
+  }
+
+  /**
+   * Gets the time the transfer started
+   *
+   * @return the time in milliseconds, or zero if it has not started
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * Gets the time the transfer completed or failed
+   *
+   * @return the time in milliseconds, or zero if it has not finished
+   */
+  public long getEndTime() {
+    return endTime;
+  }
+
+  /**
+   * Gets the average throughput of the transfer so far
+   *
+   * @return the number of bytes transferred per second
+   */
+  public synchronized long getBytesPerSecond() {
+    if(startTime==0)
+      return 0;
+
+    long elapsed = (endTime==0 ? System.currentTimeMillis() : endTime)
+                    - startTime;
+
+    return elapsed <= 0 ? transferred : (transferred * 1000) / elapsed;
+  }
+
+  public String toString() {
+    return source + " -> " + destination;
+  }
+
+  synchronized void started(long startOffset) {
+    this.startOffset = startOffset;
+    this.startTime = System.currentTimeMillis();
+  }
+
+  synchronized void progress(int count) {
+    transferred += count;
+  }
+
+  void skipped() {
+    this.isSkipped = true;
+  }
+
+  synchronized void finished() {
+    this.endTime = System.currentTimeMillis();
+  }
+}
@@ -0,0 +1,50 @@
+package com.sshtools.j2ssh.sftp;
+
+import java.io.IOException;
+
+import java.util.EventListener;
+
+/**
+ * Implemented by objects interested in the progress of the file transfers
+ * made by an <code>SftpTransferManager</code>. The methods are called on the
+ * threads performing the transfers, possibly for several files at once, so
+ * implementations must be thread safe and should return as quickly as
+ * possible.
+ *
+ * @author unascribed
+ * @version 1.0
+ */
+public interface SftpTransferListener extends EventListener {
+
+  /**
+   * Called when a file transfer starts
+   *
+   * @param transfer the transfer
+   */
+  public void transferStarted(SftpTransfer transfer);
+
+  /**
+   * Called as data is transferred
+   *
+   * @param transfer the transfer
+   * @param count the number of bytes just transferred
+   */
+  public void transferProgress(SftpTransfer transfer, int count);
+
+  /**
+   * Called when a file has been transferred, or skipped because the
+   * destination is already complete
+   *
+   * @param transfer the transfer
+   */
+  public void transferCompleted(SftpTransfer transfer);
+
+  /**
+   * Called when a file transfer fails. The data transferred in sequence
+   * from the start of the file is kept so that the transfer can be resumed.
+   *
+   * @param transfer the transfer
+   * @param ex the reason for the failure
+   */
+  public void transferFailed(SftpTransfer transfer, IOException ex);
+}
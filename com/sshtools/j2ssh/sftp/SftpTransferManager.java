@@ -0,0 +1,932 @@
+package com.sshtools.j2ssh.sftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+
+import com.sshtools.j2ssh.SshThread;
+import com.sshtools.j2ssh.io.UnsignedInteger32;
+import com.sshtools.j2ssh.io.UnsignedInteger64;
+
+/**
+ * Copies files and directory trees to and from the server, transferring a
+ * number of files at once. Files larger than the split size are divided
+ * into ranges that are transferred concurrently, each through its own file
+ * handle. When more than one subsystem is added, for example one for each of
+ * several session channels, the files and ranges are shared between them.<br>
+ * <br>
+ * When a transfer completes the modification time of the destination is set
+ * to that of the source. A later transfer skips files whose destination
+ * already has the same size and modification time, and when resuming is
+ * enabled continues files whose destination is shorter but has the same
+ * modification time. A failed transfer keeps the data copied in sequence
+ * from the start of the file and marks the destination this way so that it
+ * can be resumed.<br>
+ * <br>
+ * An example of using this class:<br>
+ * <br>
+ * <code>SftpTransferManager transfers = new SftpTransferManager(sftp);<br>
+ * transfers.addTransferListener(listener);<br>
+ * transfers.download("docs", new File("docs"));<br>
+ * <br></code>
+ *
+ * @author unascribed
+ * @version 1.0
+ */
+public class SftpTransferManager {
+
+  /**
+   * The default number of files, or ranges of files, transferred at once
+   */
+  public static final int DEFAULT_CONCURRENT_TRANSFERS = 4;
+
+  /**
+   * The default size above which a file is divided into ranges
+   */
+  public static final long DEFAULT_SPLIT_SIZE = 8388608;
+
+  private static Logger log = Logger.getLogger(SftpTransferManager.class);
+  private List subsystems = new Vector();
+  private int nextSubsystem = 0;
+  private List listeners = new Vector();
+  private int concurrentTransfers = DEFAULT_CONCURRENT_TRANSFERS;
+  private long splitSize = DEFAULT_SPLIT_SIZE;
+  private boolean resume = true;
+  private Object transferLock = new Object();
+  // The files and ranges waiting for a worker
+  private LinkedList tasks = new LinkedList();
+  private int activeTasks = 0;
+  private int fileCount = 0;
+  private List failures = new Vector();
+
+  /**
+   * Creates the manager for a started SFTP subsystem
+   *
+   * @param sftp the subsystem
+   */
+  public SftpTransferManager(SftpSubsystemClient sftp) {
+    addSubsystem(sftp);
+  }
+
+  /**
+   * Adds another started SFTP subsystem, normally on its own session
+   * channel, to share the transfers between
+   *
+   * @param sftp the subsystem
+   */
+  public void addSubsystem(SftpSubsystemClient sftp) {
+    subsystems.add(sftp);
+  }
+
+  /**
+   * Sets the number of files, or ranges of files, transferred at once
+   *
+   * @param concurrentTransfers the number of concurrent transfers
+   */
+  public void setConcurrentTransfers(int concurrentTransfers) {
+    this.concurrentTransfers = concurrentTransfers < 1 ? 1
+                                                     : concurrentTransfers;
+  }
+
+  /**
+   * Gets the number of files, or ranges of files, transferred at once
+   *
+   * @return the number of concurrent transfers
+   */
+  public int getConcurrentTransfers() {
+    return concurrentTransfers;
+  }
+
+  /**
+   * Sets the size above which a file is divided into ranges that are
+   * transferred concurrently. Each range is this size except the last.
+   *
+   * @param splitSize the size in bytes
+   */
+  public void setSplitSize(long splitSize) {
+    this.splitSize = splitSize < 1 ? 1 : splitSize;
+  }
+
+  /**
+   * Gets the size above which a file is divided into ranges
+   *
+   * @return the size in bytes
+   */
+  public long getSplitSize() {
+    return splitSize;
+  }
+
+  /**
+   * Sets whether partial transfers are resumed
+   *
+   * @param resume <tt>true</tt> to continue partial transfers, <tt>false</tt>
+   *        to transfer them again from the start
+   */
+  public void setResume(boolean resume) {
+    this.resume = resume;
+  }
+
+  /**
+   * Determine whether partial transfers are resumed
+   *
+   * @return <tt>true</tt> if partial transfers are continued
+   */
+  public boolean isResume() {
+    return resume;
+  }
+
+  /**
+   * Adds a listener to be informed of the progress of each file
+   *
+   * @param listener the listener
+   */
+  public void addTransferListener(SftpTransferListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Removes a transfer listener
+   *
+   * @param listener the listener
+   */
+  public void removeTransferListener(SftpTransferListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Copies a remote file or directory tree to the local file system. The
+   * method returns when every file has been transferred or has failed.
+   *
+   * @param remotePath the remote file or directory
+   * @param localPath the local destination; a file is placed inside it if
+   *        it is an existing directory
+   *
+   * @throws IOException if the remote path cannot be read or any of the
+   *         files failed to transfer
+   */
+  public void download(String remotePath, File localPath)
+      throws IOException {
+    synchronized(transferLock) {
+      SftpSubsystemClient sftp = nextSubsystem();
+      String absolutePath = sftp.getAbsolutePath(remotePath);
+      SftpFile remote = new SftpFile(absolutePath,
+                                     sftp.getAttributes(new SftpFile(absolutePath, null)));
+      remote.setSFTPSubsystem(sftp);
+
+      List workers = startTransfers();
+
+      try {
+        if(remote.isDirectory()) {
+          scanRemote(sftp, remote, localPath);
+        } else {
+          if(localPath.isDirectory())
+            localPath = new File(localPath, remote.getFilename());
+
+          addTask(new FileTask(false, absolutePath, localPath,
+                               remote.getAttributes()));
+        }
+      } catch(IOException ex) {
+        cancelTasks();
+        throw ex;
+      } finally {
+        finishTransfers(workers);
+      }
+
+      checkFailures();
+    }
+  }
+
+  /**
+   * Copies a local file or directory tree to the server. The method returns
+   * when every file has been transferred or has failed.
+   *
+   * @param localPath the local file or directory
+   * @param remotePath the remote destination; a file is placed inside it if
+   *        it is an existing directory
+   *
+   * @throws IOException if the local path cannot be read or any of the
+   *         files failed to transfer
+   */
+  public void upload(File localPath, String remotePath) throws IOException {
+    synchronized(transferLock) {
+      if(!localPath.exists())
+        throw new IOException(localPath.getPath() + " does not exist");
+
+      SftpSubsystemClient sftp = nextSubsystem();
+      List workers = startTransfers();
+
+      try {
+        if(localPath.isDirectory()) {
+          scanLocal(sftp, localPath, remotePath);
+        } else {
+          FileAttributes attrs = stat(sftp, remotePath);
+
+          if(attrs!=null && isDirectory(attrs))
+            remotePath = childPath(remotePath, localPath.getName());
+
+          addTask(new FileTask(true, remotePath, localPath, null));
+        }
+      } catch(IOException ex) {
+        cancelTasks();
+        throw ex;
+      } finally {
+        finishTransfers(workers);
+      }
+
+      checkFailures();
+    }
+  }
+
+  /**
+   * Creates the local directory and queues the files of a remote directory,
+   * then does the same for each of its sub-directories
+   *
+   * @param sftp the subsystem to list the directory with
+   * @param directory the remote directory
+   * @param local the local directory
+   *
+   * @throws IOException if the directory cannot be listed or created
+   */
+  private void scanRemote(SftpSubsystemClient sftp, SftpFile directory,
+                          File local) throws IOException {
+    if(!local.isDirectory() && !local.mkdirs())
+      throw new IOException("Failed to create directory " + local.getPath());
+
+    List directories = new ArrayList();
+    SftpFile open = sftp.openDirectory(directory.getAbsolutePath());
+
+    try {
+      SftpDirectoryIterator it = sftp.iterateChildren(open);
+
+      while(it.hasMoreFiles()) {
+        SftpFile child = it.nextFile();
+        String name = child.getFilename();
+
+        if(name.equals(".") || name.equals(".."))
+          continue;
+
+        if(child.isDirectory())
+          directories.add(child);
+        else if(child.isFile())
+          addTask(new FileTask(false, child.getAbsolutePath(),
+                               new File(local, name), child.getAttributes()));
+        else
+          log.info("Skipping " + child.getAbsolutePath()
+                   + " as it is not a regular file");
+      }
+    } finally {
+      open.close();
+    }
+
+    // Descend once the handle is closed so only one directory is open
+    Iterator it = directories.iterator();
+    while(it.hasNext()) {
+      SftpFile child = (SftpFile)it.next();
+      scanRemote(sftp, child, new File(local, child.getFilename()));
+    }
+  }
+
+  /**
+   * Creates the remote directory and queues the files of a local directory,
+   * then does the same for each of its sub-directories
+   *
+   * @param sftp the subsystem to create the directory with
+   * @param directory the local directory
+   * @param remote the remote directory
+   *
+   * @throws IOException if the directory cannot be listed or created
+   */
+  private void scanLocal(SftpSubsystemClient sftp, File directory,
+                         String remote) throws IOException {
+    if(stat(sftp, remote)==null)
+      sftp.makeDirectory(remote);
+
+    File files[] = directory.listFiles();
+
+    if(files==null)
+      throw new IOException("Failed to list directory " + directory.getPath());
+
+    for(int i=0;i<files.length;i++) {
+      if(files[i].isFile())
+        addTask(new FileTask(true, childPath(remote, files[i].getName()),
+                             files[i], null));
+    }
+
+    for(int i=0;i<files.length;i++) {
+      if(files[i].isDirectory())
+        scanLocal(sftp, files[i], childPath(remote, files[i].getName()));
+    }
+  }
+
+  /**
+   * Starts the worker threads. The caller counts as an active task until
+   * <code>finishTransfers</code> so that the workers wait for the files it
+   * queues.
+   *
+   * @return the worker threads
+   */
+  private List startTransfers() {
+    synchronized(tasks) {
+      tasks.clear();
+      activeTasks = 1;
+      fileCount = 0;
+      failures.clear();
+    }
+
+    List workers = new ArrayList();
+
+    for(int i=0;i<concurrentTransfers;i++) {
+      Thread thread = new SshThread(new Runnable() {
+        public void run() {
+          Runnable task;
+          while((task = nextTask())!=null) {
+            try {
+              task.run();
+            } finally {
+              taskFinished();
+            }
+          }
+        }
+      }, "SFTP transfer", true);
+
+      thread.start();
+      workers.add(thread);
+    }
+
+    return workers;
+  }
+
+  /**
+   * Stops counting the caller as an active task and waits for the workers
+   * to complete the queued transfers
+   *
+   * @param workers the worker threads
+   */
+  private void finishTransfers(List workers) {
+    taskFinished();
+
+    Iterator it = workers.iterator();
+    while(it.hasNext()) {
+      Thread thread = (Thread)it.next();
+      try {
+        thread.join();
+      } catch(InterruptedException ex) {
+      }
+    }
+  }
+
+  /**
+   * Throws an exception describing the failed files, if there were any
+   *
+   * @throws IOException if any of the files failed to transfer
+   */
+  private void checkFailures() throws IOException {
+    if(failures.size() > 0) {
+      throw new IOException(String.valueOf(failures.size()) + " of "
+                            + String.valueOf(fileCount)
+                            + " file transfers failed; the first was "
+                            + failures.get(0));
+    }
+  }
+
+  private void addTask(Runnable task) {
+    synchronized(tasks) {
+      if(task instanceof FileTask)
+        fileCount++;
+
+      tasks.addLast(task);
+      tasks.notifyAll();
+    }
+  }
+
+  /**
+   * Removes the queued tasks that no worker has started
+   */
+  private void cancelTasks() {
+    synchronized(tasks) {
+      tasks.clear();
+    }
+  }
+
+  /**
+   * Waits for a task
+   *
+   * @return the task, or <tt>null</tt> when there is no more work
+   */
+  private Runnable nextTask() {
+    synchronized(tasks) {
+      while(tasks.isEmpty()) {
+        if(activeTasks==0)
+          return null;
+
+        try {
+          tasks.wait();
+        } catch(InterruptedException ex) {
+        }
+      }
+
+      activeTasks++;
+      return (Runnable)tasks.removeFirst();
+    }
+  }
+
+  private void taskFinished() {
+    synchronized(tasks) {
+      activeTasks--;
+      tasks.notifyAll();
+    }
+  }
+
+  /**
+   * Gets the next subsystem in turn
+   *
+   * @return the subsystem
+   */
+  private SftpSubsystemClient nextSubsystem() {
+    synchronized(subsystems) {
+      if(nextSubsystem >= subsystems.size())
+        nextSubsystem = 0;
+
+      return (SftpSubsystemClient)subsystems.get(nextSubsystem++);
+    }
+  }
+
+  private FileAttributes stat(SftpSubsystemClient sftp, String path) {
+    try {
+      return sftp.getAttributes(new SftpFile(path, null));
+    } catch(IOException ex) {
+      return null;
+    }
+  }
+
+  private static boolean isDirectory(FileAttributes attrs) {
+    return attrs.getPermissions()!=null
+             && (attrs.getPermissions().intValue() & FileAttributes.S_IFMT)
+                  == FileAttributes.S_IFDIR;
+  }
+
+  private static String childPath(String parent, String name) {
+    if(parent.length()==0)
+      return name;
+
+    return parent.endsWith("/") ? parent + name : parent + "/" + name;
+  }
+
+  private void fireStarted(SftpTransfer transfer) {
+    for(int i=0;i<listeners.size();i++)
+      ((SftpTransferListener)listeners.get(i)).transferStarted(transfer);
+  }
+
+  private void fireProgress(SftpTransfer transfer, int count) {
+    for(int i=0;i<listeners.size();i++)
+      ((SftpTransferListener)listeners.get(i)).transferProgress(transfer, count);
+  }
+
+  private void fireCompleted(SftpTransfer transfer) {
+    for(int i=0;i<listeners.size();i++)
+      ((SftpTransferListener)listeners.get(i)).transferCompleted(transfer);
+  }
+
+  private void fireFailed(SftpTransfer transfer, IOException ex) {
+    for(int i=0;i<listeners.size();i++)
+      ((SftpTransferListener)listeners.get(i)).transferFailed(transfer, ex);
+  }
+
+  /**
+   * The transfer of one file. The worker that takes the file compares the
+   * source and destination, queues all but the first range for the other
+   * workers and transfers the first range itself.
+   */
+  private class FileTask implements Runnable {
+    boolean isUpload;
+    String remotePath;
+    File localFile;
+    FileAttributes remoteAttrs;
+    long size;
+    long modifiedTime = -1;
+    SftpTransfer transfer;
+    Range ranges[];
+    int remaining;
+    IOException error;
+
+    FileTask(boolean isUpload, String remotePath, File localFile,
+             FileAttributes remoteAttrs) {
+      this.isUpload = isUpload;
+      this.remotePath = remotePath;
+      this.localFile = localFile;
+      this.remoteAttrs = remoteAttrs;
+
+      if(isUpload) {
+        size = localFile.length();
+        modifiedTime = localFile.lastModified() / 1000;
+      } else {
+        if(remoteAttrs.getSize()!=null)
+          size = remoteAttrs.getSize().longValue();
+        if(remoteAttrs.getModifiedTime()!=null)
+          modifiedTime = remoteAttrs.getModifiedTime().longValue();
+      }
+
+      transfer = isUpload
+                   ? new SftpTransfer(localFile.getPath(), remotePath, true, size)
+                   : new SftpTransfer(remotePath, localFile.getPath(), false, size);
+    }
+
+    public void run() {
+      long start;
+
+      try {
+        start = prepare();
+      } catch(IOException ex) {
+        transfer.started(0);
+        fireStarted(transfer);
+        failed(ex);
+        finish();
+        return;
+      }
+
+      transfer.started(start < 0 ? size : start);
+      fireStarted(transfer);
+
+      if(start < 0) {
+        transfer.skipped();
+        finish();
+        return;
+      }
+
+      // Divide what is left into ranges of the split size
+      long left = size - start;
+      int count = (int)((left + splitSize - 1) / splitSize);
+
+      synchronized(this) {
+        ranges = new Range[count];
+        remaining = count;
+
+        for(int i=0;i<count;i++) {
+          long offset = start + (i * splitSize);
+          ranges[i] = new Range(this, offset, Math.min(splitSize, size - offset));
+        }
+      }
+
+      if(count==0) {
+        finish();
+        return;
+      }
+
+      // Put the other ranges at the front of the queue so that the file is
+      // completed before the workers move on to further files
+      synchronized(tasks) {
+        for(int i=count-1;i>0;i--)
+          tasks.addFirst(ranges[i]);
+
+        tasks.notifyAll();
+      }
+
+      ranges[0].run();
+    }
+
+    /**
+     * Compares the source and destination and prepares the destination
+     *
+     * @return the offset to transfer from, or -1 if the destination is
+     *         already complete
+     *
+     * @throws IOException if the destination cannot be prepared
+     */
+    private long prepare() throws IOException {
+      long destinationSize = -1;
+      long destinationTime = -2;
+
+      if(isUpload) {
+        FileAttributes attrs = stat(nextSubsystem(), remotePath);
+
+        if(attrs!=null) {
+          if(attrs.getSize()!=null)
+            destinationSize = attrs.getSize().longValue();
+          if(attrs.getModifiedTime()!=null)
+            destinationTime = attrs.getModifiedTime().longValue();
+        }
+      } else if(localFile.exists()) {
+        destinationSize = localFile.length();
+        destinationTime = localFile.lastModified() / 1000;
+      }
+
+      long start = 0;
+
+      if(modifiedTime >= 0 && destinationTime==modifiedTime) {
+        if(destinationSize==size)
+          return -1;
+
+        if(resume && destinationSize > 0 && destinationSize < size)
+          start = destinationSize;
+      }
+
+      if(isUpload) {
+        if(start==0) {
+          SftpSubsystemClient sftp = nextSubsystem();
+          SftpFile file = sftp.openFile(remotePath,
+                                        SftpSubsystemClient.OPEN_WRITE
+                                        | SftpSubsystemClient.OPEN_CREATE
+                                        | SftpSubsystemClient.OPEN_TRUNCATE);
+          sftp.closeFile(file);
+        }
+      } else {
+        RandomAccessFile out = new RandomAccessFile(localFile, "rw");
+        try {
+          out.setLength(start);
+        } finally {
+          out.close();
+        }
+      }
+
+      return start;
+    }
+
+    void progress(Range range, int count) {
+      synchronized(this) {
+        range.done += count;
+      }
+
+      transfer.progress(count);
+      fireProgress(transfer, count);
+    }
+
+    synchronized void failed(IOException ex) {
+      if(error==null)
+        error = ex;
+    }
+
+    synchronized boolean isFailed() {
+      return error!=null;
+    }
+
+    void rangeFinished() {
+      synchronized(this) {
+        if(--remaining > 0)
+          return;
+      }
+
+      finish();
+    }
+
+    /**
+     * Marks the destination and informs the listeners once every range has
+     * finished
+     */
+    private void finish() {
+      if(error==null && !transfer.isSkipped()) {
+        try {
+          markDestination(-1);
+        } catch(IOException ex) {
+          error = ex;
+        }
+      }
+
+      if(error!=null && ranges!=null) {
+        // Keep the data copied in sequence so the transfer can be resumed
+        long length = ranges.length > 0 ? ranges[0].offset : size;
+        for(int i=0;i<ranges.length;i++) {
+          length += ranges[i].done;
+          if(ranges[i].done < ranges[i].length)
+            break;
+        }
+
+        try {
+          markDestination(length);
+        } catch(IOException ex) {
+          log.info("Failed to truncate " + transfer.getDestination()
+                   + ": " + ex.getMessage());
+        }
+      }
+
+      transfer.finished();
+
+      if(error==null) {
+        fireCompleted(transfer);
+      } else {
+        failures.add(transfer.toString() + ": " + error.getMessage());
+        fireFailed(transfer, error);
+      }
+    }
+
+    /**
+     * Sets the modification time of the destination to that of the source,
+     * first truncating it if a length is given
+     *
+     * @param length the length to truncate to, or -1
+     *
+     * @throws IOException if the destination cannot be changed
+     */
+    private void markDestination(long length) throws IOException {
+      if(modifiedTime < 0)
+        return;
+
+      if(isUpload) {
+        FileAttributes attrs = new FileAttributes();
+        UnsignedInteger32 time = new UnsignedInteger32(modifiedTime);
+
+        if(length >= 0)
+          attrs.setSize(new UnsignedInteger64(length));
+
+        attrs.setTimes(time, time);
+        nextSubsystem().setAttributes(remotePath, attrs);
+      } else {
+        if(length >= 0) {
+          RandomAccessFile out = new RandomAccessFile(localFile, "rw");
+          try {
+            out.setLength(length);
+          } finally {
+            out.close();
+          }
+        }
+
+        localFile.setLastModified(modifiedTime * 1000);
+      }
+    }
+  }
+
+  /**
+   * A range of a file transferred through its own file handle
+   */
+  private class Range implements Runnable {
+    FileTask file;
+    long offset;
+    long length;
+    // The bytes transferred in sequence from the start of the range
+    long done = 0;
+
+    Range(FileTask file, long offset, long length) {
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public void run() {
+      try {
+        if(!file.isFailed()) {
+          if(file.isUpload)
+            upload();
+          else
+            download();
+        }
+      } catch(IOException ex) {
+        file.failed(ex);
+      } finally {
+        file.rangeFinished();
+      }
+    }
+
+    /**
+     * Reads the range with a number of read requests outstanding, writing
+     * the replies in order of offset
+     *
+     * @throws IOException if the transfer fails
+     */
+    private void download() throws IOException {
+      SftpSubsystemClient sftp = nextSubsystem();
+      SftpFile remote = sftp.openFile(file.remotePath,
+                                      SftpSubsystemClient.OPEN_READ);
+      RandomAccessFile out = null;
+      LinkedList requests = new LinkedList();
+
+      try {
+        out = new RandomAccessFile(file.localFile, "rw");
+
+        int depth = sftp.getReadAheadDepth();
+        int blockSize = sftp.getReadChunkSize();
+        long next = offset;
+        long end = offset + length;
+
+        while(done < length) {
+          if(file.isFailed())
+            throw new IOException("Cancelled");
+
+          while(requests.size() < depth && next < end) {
+            int len = (int)Math.min(blockSize, end - next);
+            requests.addLast(new Request(
+                sftp.postReadRequest(remote.getHandle(),
+                                     new UnsignedInteger64(next), len),
+                next, len));
+            next += len;
+          }
+
+          Request request = (Request)requests.removeFirst();
+          byte data[] = sftp.getReadResponse(request.requestId);
+
+          if(data==null)
+            throw new IOException("Unexpected end of file");
+
+          out.seek(request.offset);
+          out.write(data);
+          file.progress(this, data.length);
+
+          // The server returned less than we asked for so request the rest
+          // before any of the later blocks are written
+          if(data.length < request.length) {
+            long o = request.offset + data.length;
+            int len = request.length - data.length;
+            requests.addFirst(new Request(
+                sftp.postReadRequest(remote.getHandle(),
+                                     new UnsignedInteger64(o), len),
+                o, len));
+          }
+        }
+      } finally {
+        while(requests.size() > 0)
+          sftp.cancelRequest(((Request)requests.removeFirst()).requestId);
+
+        if(out!=null)
+          out.close();
+
+        try {
+          sftp.closeFile(remote);
+        } catch(IOException ex) {
+        }
+      }
+    }
+
+    /**
+     * Writes the range with a number of write requests in flight
+     *
+     * @throws IOException if the transfer fails
+     */
+    private void upload() throws IOException {
+      SftpSubsystemClient sftp = nextSubsystem();
+      SftpFile remote = sftp.openFile(file.remotePath,
+                                      SftpSubsystemClient.OPEN_WRITE);
+      RandomAccessFile in = null;
+      LinkedList requests = new LinkedList();
+      boolean isComplete = false;
+
+      try {
+        in = new RandomAccessFile(file.localFile, "r");
+
+        int depth = sftp.getWriteBehindDepth();
+        byte buffer[] = new byte[sftp.getWriteChunkSize()];
+        long next = offset;
+        long end = offset + length;
+
+        while(next < end || requests.size() > 0) {
+          if(file.isFailed())
+            throw new IOException("Cancelled");
+
+          if(next < end && requests.size() < depth) {
+            int len = (int)Math.min(buffer.length, end - next);
+            in.seek(next);
+            in.readFully(buffer, 0, len);
+            requests.addLast(new Request(
+                sftp.postWriteRequest(remote.getHandle(),
+                                      new UnsignedInteger64(next), buffer, 0,
+                                      len),
+                next, len));
+            next += len;
+          } else {
+            Request request = (Request)requests.removeFirst();
+            sftp.getWriteResponse(request.requestId);
+            file.progress(this, request.length);
+          }
+        }
+
+        isComplete = true;
+      } finally {
+        while(requests.size() > 0)
+          sftp.cancelRequest(((Request)requests.removeFirst()).requestId);
+
+        if(in!=null)
+          in.close();
+
+        // A failure to close the handle may mean the data was not stored
+        if(isComplete) {
+          sftp.closeFile(remote);
+        } else {
+          try {
+            sftp.closeFile(remote);
+          } catch(IOException ex) {
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A read or write request awaiting its reply
+   */
+  private static class Request {
+    UnsignedInteger32 requestId;
+    long offset;
+    int length;
+
+    Request(UnsignedInteger32 requestId, long offset, int length) {
+      this.requestId = requestId;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+}
@@ -62,7 +62,7 @@ public abstract class SubsystemClient implements Runnable {
     return name;
   }
 
-  protected void sendMessage(SubsystemMessage msg)
+  protected synchronized void sendMessage(SubsystemMessage msg)
                                       throws InvalidMessageException,
                                               IOException {
    log.info("Sending " + msg.getMessageName() + " subsystem message");
@@ -106,6 +106,9 @@ public abstract class SubsystemClient implements Runnable {
       log.fatal("Subsystem message loop failed!", ioe);
     }
 
+    // Wake any threads still waiting for replies
+    messageStore.close();
+
     thread = null;
   }
 
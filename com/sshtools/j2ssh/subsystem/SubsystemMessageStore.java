@@ -112,7 +112,8 @@ public class SubsystemMessageStore {
      */
     public synchronized SubsystemMessage nextMessage() {
         // If there are no messages available then wait untill there are.
-        while (messages.size()<=0) {
+        while ((messages.size()<=0)
+                && (state.getValue()==OpenClosedState.OPEN)) {
             try {
                 wait();
             } catch (InterruptedException e) {
@@ -139,7 +140,7 @@ public class SubsystemMessageStore {
       return state;
     }
 
-    public void close() {
+    public synchronized void close() {
       state.setValue(OpenClosedState.CLOSED);
       notifyAll();
     }
@@ -23,53 +23,30 @@ package com.sshtools.j2ssh.transport;
 
 import org.apache.log4j.Logger;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FilePermission;
-import java.io.IOException;
-import java.io.InputStream;
-
-import java.security.AccessControlException;
-import java.security.AccessController;
-
 import com.sshtools.j2ssh.configuration.ConfigurationLoader;
 import com.sshtools.j2ssh.transport.publickey.SshPublicKey;
 
-import java.io.IOException;
-import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
-import org.xml.sax.helpers.DefaultHandler;
-
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 /**
  * Implement this class to define specific handling of server host
  * authorization events. The default hosts file is hosts.xml and should be
- * located in SSHTOOLS_HOME
+ * located in SSHTOOLS_HOME. The hosts file is loaded once into a <code>
+ * KnownHostsStore</code> shared by every verification using the same file.
  *
  * @author <A HREF="mailto:lee@sshtools.com">Lee David Painter</A>
  * @version $Id: AbstractHostKeyVerification.java,v 1.1 2003/02/15 21:27:18 martianx Exp $
  */
-public abstract class AbstractHostKeyVerification extends DefaultHandler implements HostKeyVerification {
+public abstract class AbstractHostKeyVerification implements HostKeyVerification {
     private static String defaultHostFile;
     private static Logger log = Logger.getLogger(HostKeyVerification.class);
 
     private List deniedHosts = new ArrayList();
     private Map allowedHosts = new HashMap();
-    private String hostFile;
-    private boolean hostFileWriteable;
-    private boolean expectEndElement = false;
-    private String currentElement = null;
+    private KnownHostsStore store;
 
     static {
         log.info("Determining default host file");
@@ -98,11 +75,11 @@ public abstract class AbstractHostKeyVerification extends DefaultHandler impleme
     public AbstractHostKeyVerification()
                         throws InvalidHostFileException {
         this(defaultHostFile);
-        hostFile = defaultHostFile;
     }
 
     /**
-     * Constructs the object loading the host file specified.
+     * Constructs the object using the shared store of the host file
+     * specified, loading the file if it has not been loaded before.
      *
      * @param hostFileName the path to the host file
      *
@@ -111,132 +88,9 @@ public abstract class AbstractHostKeyVerification extends DefaultHandler impleme
      */
     public AbstractHostKeyVerification(String hostFileName)
                         throws InvalidHostFileException {
-        InputStream in = null;
-
-        try {
-            //  If no host file is supplied, or there is not enough permission to load
-            //  the file, then just create an empty list.
-            if (hostFileName!=null) {
-                if (System.getSecurityManager()!=null) {
-                    AccessController.checkPermission(new FilePermission(hostFileName,
-                                                                        "read"));
-                }
-
-                //  Load the hosts file. Do not worry if fle doesnt exist, just disable
-                //  save of
-                File f = new File(hostFileName);
-
-                if (f.exists()) {
-                    in = new FileInputStream(f);
-                    hostFile = hostFileName;
-
-                    /**
-                     * Load in the hosts file
-                     */
-                     SAXParserFactory saxFactory = SAXParserFactory.newInstance();
-                     SAXParser saxParser = saxFactory.newSAXParser();
-
-                     saxParser.parse(in, this);
-
-                    hostFileWriteable = f.canWrite();
-                } else {
-                    hostFileWriteable = false;
-                }
-
-                if (!hostFileWriteable) {
-                    log.warn("Host file is not writeable.");
-                }
-            }
-        } catch (AccessControlException ace) {
-            log.warn("Not enough permission to load a hosts file, so just creating an empty list");
-        } catch (IOException ioe) {
-            throw new InvalidHostFileException("Could not open or read "
-                                               + hostFileName);
-        } catch(SAXException sax) {
-          throw new InvalidHostFileException("Failed XML parsing: " + sax.getMessage());
-        } catch(ParserConfigurationException pce) {
-          throw new InvalidHostFileException("Failed to initialize xml parser: " + pce.getMessage());
-        } finally {
-            if (in!=null) {
-                try {
-                    in.close();
-                } catch (IOException ioe) {
-                }
-            }
-        }
-    }
-
-
-    public void startElement(String uri, String localName, String qname,
-                              Attributes attrs) throws SAXException {
-
-        if(currentElement==null) {
-          if(qname.equals("HostAuthorizations")) {
-             allowedHosts.clear();
-             deniedHosts.clear();
-             currentElement = qname;
-          }
-          else
-            throw new SAXException("Unexpected document element!");
-        }
-        else {
-
-          if(!currentElement.equals("HostAuthorizations"))
-            throw new SAXException("Unexpected parent element found!");
-
-          if(qname.equals("AllowHost")) {
-            String hostname = attrs.getValue("HostName");
-            String fingerprint = attrs.getValue("Fingerprint");
-
-          if(hostname!=null && fingerprint !=null) {
-            log.debug("AllowHost element for host '" + hostname + "' with fingerprint '" + fingerprint + "'");
-            allowedHosts.put(hostname, fingerprint);
-            currentElement = qname;
-          } else
-            throw new SAXException("Requried attribute(s) missing!");
-
-        }else if(qname.equals("DenyHost")) {
-          String hostname = attrs.getValue("HostName");
-
-          if(hostname!=null) {
-            log.debug("DenyHost element for host " + hostname);
-            deniedHosts.add(hostname);
-            currentElement = qname;
-          } else
-            throw new SAXException("Required attribute hostname missing");
-
-        } else {
-          log.warn("Unexpected " + qname + " element found in allowed hosts file");
-        }
-
-      }
-
-
-
+        store = KnownHostsStore.getInstance(hostFileName);
     }
 
-
-    public void endElement(String uri, String localName, String qname)
-                                          throws SAXException {
-
-        if(currentElement==null)
-          throw new SAXException("Unexpected end element found!");
-
-        if(currentElement.equals("HostAuthorizations")) {
-           currentElement = null;
-           return;
-        }
-
-        if(currentElement.equals("AllowHost")) {
-          currentElement = "HostAuthorizations";
-          return;
-        }
-
-        if(currentElement.equals("DenyHost")) {
-          currentElement = "HostAuthorizations";
-          return;
-        }
-    }
     /**
      * Return if the host file is writeable. If not, then don't provide the
      * 'Always' option.
@@ -244,7 +98,7 @@ public abstract class AbstractHostKeyVerification extends DefaultHandler impleme
      * @return host file writable
      */
     public boolean isHostFileWriteable() {
-        return hostFileWriteable;
+        return store.isHostFileWriteable();
     }
 
     /**
@@ -307,10 +161,10 @@ public abstract class AbstractHostKeyVerification extends DefaultHandler impleme
         // entry
         allowedHosts.put(host, hostKeyFingerprint);
 
-        // If we always want to allow then save the host file with the
-        // new details
+        // If we always want to allow then record it in the store, which
+        // saves the host file with the new details
         if (always)
-            saveHostFile();
+            store.allowHost(host, hostKeyFingerprint);
 
     }
 
@@ -334,7 +188,7 @@ public abstract class AbstractHostKeyVerification extends DefaultHandler impleme
 
         // Save it if need be
         if (always)
-            saveHostFile();
+            store.denyHost(host);
 
     }
 
@@ -348,23 +202,26 @@ public abstract class AbstractHostKeyVerification extends DefaultHandler impleme
      */
     public boolean verifyHost(String host, SshPublicKey pk)
                                           throws TransportProtocolException {
-        String fingerprint = pk.getFingerprint();
         log.info("Verifying " + host + " host key");
-        log.debug("Fingerprint: " + fingerprint);
 
         // See if the host is denied by looking at the denied hosts list
-
-
-        if(deniedHosts.contains(host)) {
+        if(deniedHosts.contains(host) || store.isDenied(host)) {
             onDeniedHost(host);
             return false;
         }
 
-        // Try the allowed hosts by looking at the allowed hosts map
+        // Try the hosts allowed this time, then the allowed hosts of the store
+        if (!allowedHosts.containsKey(host) && store.isAllowed(host, pk)) {
+            return true;
+        }
 
-        if (allowedHosts.containsKey(host)) {
+        String fingerprint = pk.getFingerprint();
+        log.debug("Fingerprint: " + fingerprint);
+
+        String currentFingerprint = getAllowedFingerprint(host);
+
+        if (currentFingerprint != null) {
             // The host is allowed so check the fingerprint
-            String currentFingerprint = (String)allowedHosts.get(host);
             if (currentFingerprint.compareToIgnoreCase(fingerprint)==0) {
                 return true;
             }
@@ -384,7 +241,20 @@ public abstract class AbstractHostKeyVerification extends DefaultHandler impleme
         }
     }
 
+    /**
+     * Gets the fingerprint allowed for a host, preferring a fingerprint
+     * allowed only for this verification
+     *
+     * @param host The name of the host.
+     *
+     * @return the allowed fingerprint or <tt>null</tt> if the host is unknown
+     */
+    private String getAllowedFingerprint(String host) {
+        String fingerprint = (String)allowedHosts.get(host);
 
+        return (fingerprint!=null) ? fingerprint
+                                   : store.getAllowedFingerprint(host);
+    }
 
     /**
      * Compares the fingerprint against the allowed hosts.
@@ -396,7 +266,7 @@ public abstract class AbstractHostKeyVerification extends DefaultHandler impleme
      */
     private boolean checkFingerprint(String host, String fingerprint) {
 
-        String currentFingerprint = (String)allowedHosts.get(host);
+        String currentFingerprint = getAllowedFingerprint(host);
 
         if (currentFingerprint!=null) {
             if (currentFingerprint.compareToIgnoreCase(fingerprint)==0) {
@@ -407,54 +277,7 @@ public abstract class AbstractHostKeyVerification extends DefaultHandler impleme
         return false;
     }
 
-    /**
-     * Saves the current host file.
-     *
-     * @exception InvalidHostFileException Description of the Exception
-     */
-    private void saveHostFile()
-                       throws InvalidHostFileException {
-        if (!hostFileWriteable) {
-            throw new InvalidHostFileException("Host file is not writeable.");
-        }
-
-        log.info("Saving " + defaultHostFile);
-
-        try {
-            File f = new File(hostFile);
-
-            FileOutputStream out = new FileOutputStream(f);
-
-            /**
-             * TODO: Save the allowed hosts file
-             */
-            out.write(toString().getBytes());
-
-            out.close();
-        } catch (IOException e) {
-            throw new InvalidHostFileException("Could not write to " + hostFile);
-        }
-    }
-
     public String toString() {
-      String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<HostAuthorizations>\n";
-      xml+="<!-- Host Authorizations file, used by the abstract class HostKeyVerification to verify the servers host key -->";
-      xml+="   <!-- Allow the following hosts access if they provide the correct public key -->\n";
-      Map.Entry entry;
-      Iterator it = allowedHosts.entrySet().iterator();
-      while(it.hasNext()) {
-        entry = (Map.Entry)it.next();
-        xml+="   "+"<AllowHost HostName=\"" + entry.getKey().toString() +
-                                "\" Fingerprint=\"" + entry.getValue().toString()
-                                + "\"/>\n";
-      }
-      xml+="   <!-- Deny the following hosts access -->\n";
-      it = deniedHosts.iterator();
-      while(it.hasNext()) {
-        xml+="   <DenyHost HostName=\"" + it.next().toString() +
-                                "\"/>\n";
-      }
-      xml+="</HostAuthorizations>";
-      return xml;
+      return store.toString();
     }
 }
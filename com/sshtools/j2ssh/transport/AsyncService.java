@@ -104,6 +104,15 @@ public abstract class AsyncService extends Service
         log.info(getServiceName() + " thread is exiting");
         thread = null;
 
+        onStop();
+
+    }
+
+    /**
+     *  Called once the message loop has exited. Override to release any
+     *  threads waiting for messages that will now never arrive.
+     */
+    protected void onStop() {
     }
 
     /**
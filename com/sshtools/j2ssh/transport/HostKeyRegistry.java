@@ -0,0 +1,253 @@
+/*
+ * Sshtools - Java SSH2 API
+ *
+ * Copyright (C) 2002 Lee David Painter.
+ *
+ * Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.transport;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.sshtools.j2ssh.transport.publickey.SshKeyPairFactory;
+import com.sshtools.j2ssh.transport.publickey.SshPrivateKey;
+import com.sshtools.j2ssh.transport.publickey.SshPrivateKeyFile;
+
+/**
+ * Loads the server host keys once and hands the parsed keys out to every
+ * key exchange. Keys that are not supported, cannot be read or are
+ * passphrase protected are logged when they are loaded and are not offered
+ * to clients. When reloading is enabled a key file that has changed is
+ * loaded again, checking the files no more than once every <code>
+ * CHECK_INTERVAL</code> milliseconds.
+ */
+public class HostKeyRegistry {
+    /**
+     * The minimum time in milliseconds between checks for changed key files
+     */
+    public static final long CHECK_INTERVAL = 5000;
+    private static Logger log = Logger.getLogger(HostKeyRegistry.class);
+    private Map keys = new HashMap();
+    private List algorithms = Collections.EMPTY_LIST;
+    private boolean reloadOnChange = false;
+    private long lastChecked = 0;
+
+    /**
+     * Creates a new HostKeyRegistry object and loads the keys
+     *
+     * @param hostKeys a map of private key file names keyed by algorithm
+     *        name
+     */
+    public HostKeyRegistry(Map hostKeys) {
+        Iterator it = hostKeys.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String algorithm = entry.getKey().toString();
+
+            if (SshKeyPairFactory.supportsKey(algorithm)) {
+                HostKey key =
+                    new HostKey(algorithm, new File(entry.getValue().toString()));
+                key.load();
+                keys.put(algorithm, key);
+            } else {
+                log.warn("Server host key algorithm '" + algorithm
+                         + "' not supported");
+            }
+        }
+
+        algorithms = createAlgorithmList();
+    }
+
+    /**
+     * Sets whether key files that change are loaded again
+     *
+     * @param reloadOnChange <tt>true</tt> to reload changed key files
+     */
+    public synchronized void setReloadOnChange(boolean reloadOnChange) {
+        this.reloadOnChange = reloadOnChange;
+    }
+
+    /**
+     * Determine whether key files that change are loaded again
+     *
+     * @return <tt>true</tt> if changed key files are reloaded
+     */
+    public synchronized boolean isReloadOnChange() {
+        return reloadOnChange;
+    }
+
+    /**
+     * Gets the names of the algorithms that have a usable host key, ready to
+     * be set as the supported public keys of the key exchange init message
+     *
+     * @return an unmodifiable list of algorithm names
+     */
+    public synchronized List getAvailableAlgorithms() {
+        checkForChanges();
+
+        return algorithms;
+    }
+
+    /**
+     * Gets the parsed host key for an algorithm
+     *
+     * @param algorithm the public key algorithm name
+     *
+     * @return the private key or <tt>null</tt> if there is no usable key
+     *         for the algorithm
+     */
+    public synchronized SshPrivateKey getPrivateKey(String algorithm) {
+        checkForChanges();
+
+        HostKey key = (HostKey) keys.get(algorithm);
+
+        return (key == null) ? null : key.privateKey;
+    }
+
+    /**
+     * Loads any key files that have changed since they were last loaded
+     */
+    private void checkForChanges() {
+        if (!reloadOnChange) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if ((now - lastChecked) < CHECK_INTERVAL) {
+            return;
+        }
+
+        lastChecked = now;
+
+        boolean changed = false;
+        Iterator it = keys.values().iterator();
+
+        while (it.hasNext()) {
+            HostKey key = (HostKey) it.next();
+
+            if ((key.file.lastModified() != key.lastModified)
+                    || (key.file.length() != key.length)) {
+                log.info("Host key file " + key.file.getAbsolutePath()
+                         + " has changed; reloading");
+                key.load();
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            algorithms = createAlgorithmList();
+        }
+    }
+
+    /**
+     * Creates the list of algorithms with a usable key
+     *
+     * @return an unmodifiable list of algorithm names
+     */
+    private List createAlgorithmList() {
+        List available = new ArrayList();
+        Iterator it = keys.values().iterator();
+
+        while (it.hasNext()) {
+            HostKey key = (HostKey) it.next();
+
+            if (key.privateKey != null) {
+                available.add(key.algorithm);
+            }
+        }
+
+        return Collections.unmodifiableList(available);
+    }
+
+    /**
+     * A host key file and the key parsed from it
+     */
+    private static class HostKey {
+        String algorithm;
+        File file;
+        long lastModified;
+        long length;
+        SshPrivateKey privateKey;
+
+        /**
+         * Creates a new HostKey object.
+         *
+         * @param algorithm the public key algorithm name
+         * @param file the private key file
+         */
+        HostKey(String algorithm, File file) {
+            this.algorithm = algorithm;
+            this.file = file;
+        }
+
+        /**
+         * Reads and parses the key file. The key is left unusable if the
+         * file cannot be read or the key is passphrase protected.
+         */
+        void load() {
+            privateKey = null;
+            lastModified = file.lastModified();
+            length = file.length();
+
+            try {
+                byte buffer[] = new byte[(int) length];
+                FileInputStream in = new FileInputStream(file);
+
+                try {
+                    int read = 0;
+
+                    while (read < buffer.length) {
+                        int count = in.read(buffer, read, buffer.length - read);
+
+                        if (count < 0) {
+                            throw new IOException("Unexpected end of file");
+                        }
+
+                        read += count;
+                    }
+                } finally {
+                    in.close();
+                }
+
+                SshPrivateKeyFile pkf = SshPrivateKeyFile.parse(buffer);
+
+                if (pkf.isPassphraseProtected()) {
+                    log.warn(file.getAbsolutePath()
+                             + " cannot be used as it is passphrase protected");
+                } else {
+                    privateKey = pkf.toPrivateKey(null);
+                }
+            } catch (IOException ioe) {
+                log.warn("Failed to load host key " + file.getAbsolutePath(),
+                         ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Sshtools - Java SSH2 API
+ *
+ * Copyright (C) 2002 Lee David Painter.
+ *
+ * Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.transport;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilePermission;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.security.AccessControlException;
+import java.security.AccessController;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import com.sshtools.j2ssh.SshThread;
+import com.sshtools.j2ssh.transport.publickey.SshPublicKey;
+
+/**
+ * Holds the allowed and denied hosts of a hosts file for the whole process.
+ * The file is parsed the first time it is used and every host key
+ * verification using the same file then shares the store. Lookups read an
+ * immutable snapshot so they never wait on a writer; changes replace the
+ * snapshot and the file is rewritten by a background thread, which writes
+ * several changes made close together only once. Any pending changes are
+ * written when the virtual machine exits.
+ */
+public class KnownHostsStore extends DefaultHandler implements Runnable {
+    private static Logger log = Logger.getLogger(KnownHostsStore.class);
+    private static Map stores = new HashMap();
+    private volatile Map allowedHosts = new HashMap();
+    private volatile Set deniedHosts = new HashSet();
+    private String hostFile;
+    private boolean hostFileWriteable = false;
+    private boolean isDirty = false;
+    private Thread writer = null;
+    private Object saveLock = new Object();
+    private String currentElement = null;
+
+    /**
+     * Creates a new KnownHostsStore object and loads the host file
+     *
+     * @param hostFileName the path to the host file or <tt>null</tt> for a
+     *        store that is not saved
+     *
+     * @throws InvalidHostFileException if the host file is invalid
+     */
+    private KnownHostsStore(String hostFileName)
+                     throws InvalidHostFileException {
+        load(hostFileName);
+    }
+
+    /**
+     * Gets the store for a host file, loading the file the first time it is
+     * requested
+     *
+     * @param hostFileName the path to the host file or <tt>null</tt> for a
+     *        store that is not saved
+     *
+     * @return the shared store for the file
+     *
+     * @throws InvalidHostFileException if the host file is invalid
+     */
+    public static KnownHostsStore getInstance(String hostFileName)
+                                       throws InvalidHostFileException {
+        String key =
+            (hostFileName == null) ? null
+                                   : new File(hostFileName).getAbsolutePath();
+
+        synchronized (stores) {
+            KnownHostsStore store = (KnownHostsStore) stores.get(key);
+
+            if (store == null) {
+                store = new KnownHostsStore(hostFileName);
+                stores.put(key, store);
+            }
+
+            return store;
+        }
+    }
+
+    /**
+     * Return if the host file is writeable
+     *
+     * @return host file writable
+     */
+    public boolean isHostFileWriteable() {
+        return hostFileWriteable;
+    }
+
+    /**
+     * Determine if a host is denied
+     *
+     * @param host the name of the host
+     *
+     * @return <tt>true</tt> if the host is denied
+     */
+    public boolean isDenied(String host) {
+        return deniedHosts.contains(host);
+    }
+
+    /**
+     * Gets the fingerprint of the key allowed for a host
+     *
+     * @param host the name of the host
+     *
+     * @return the fingerprint or <tt>null</tt> if the host is unknown
+     */
+    public String getAllowedFingerprint(String host) {
+        AllowedHost allowed = (AllowedHost) allowedHosts.get(host);
+
+        return (allowed == null) ? null : allowed.fingerprint;
+    }
+
+    /**
+     * Determine if a host key is the key allowed for the host. Once a key has
+     * matched its fingerprint, later checks compare the encoded key only.
+     *
+     * @param host the name of the host
+     * @param pk the host key
+     *
+     * @return <tt>true</tt> if the key is allowed
+     */
+    public boolean isAllowed(String host, SshPublicKey pk) {
+        AllowedHost allowed = (AllowedHost) allowedHosts.get(host);
+
+        if (allowed == null) {
+            return false;
+        }
+
+        byte encoded[] = pk.getEncoded();
+        byte verified[] = allowed.encoded;
+
+        if ((verified != null) && Arrays.equals(verified, encoded)) {
+            return true;
+        }
+
+        if (allowed.fingerprint.compareToIgnoreCase(pk.getFingerprint()) == 0) {
+            allowed.encoded = encoded;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Allows the host access if it provides the key with the fingerprint
+     * specified and saves the host file in the background
+     *
+     * @param host the name of the host
+     * @param hostKeyFingerprint the fingerprint of the acceptable host key
+     *
+     * @throws InvalidHostFileException if the host file is not writeable
+     */
+    public synchronized void allowHost(String host, String hostKeyFingerprint)
+                                throws InvalidHostFileException {
+        checkWriteable();
+
+        Map allowed = new HashMap(allowedHosts);
+        allowed.put(host, new AllowedHost(hostKeyFingerprint));
+        allowedHosts = allowed;
+
+        scheduleSave();
+    }
+
+    /**
+     * Denies the host access and saves the host file in the background
+     *
+     * @param host the name of the host
+     *
+     * @throws InvalidHostFileException if the host file is not writeable
+     */
+    public synchronized void denyHost(String host)
+                               throws InvalidHostFileException {
+        checkWriteable();
+
+        if (!deniedHosts.contains(host)) {
+            Set denied = new HashSet(deniedHosts);
+            denied.add(host);
+            deniedHosts = denied;
+        }
+
+        scheduleSave();
+    }
+
+    /**
+     * Writes any pending changes to the host file now
+     *
+     * @throws InvalidHostFileException if the host file cannot be written
+     */
+    public void flush() throws InvalidHostFileException {
+        // Hold the save lock so that an older document is never written
+        // over a newer one
+        synchronized (saveLock) {
+            String xml;
+
+            synchronized (this) {
+                if (!isDirty) {
+                    return;
+                }
+
+                isDirty = false;
+                xml = toString();
+            }
+
+            saveHostFile(xml);
+        }
+    }
+
+    /**
+     * The background writer
+     */
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                while (!isDirty) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+
+            try {
+                flush();
+            } catch (InvalidHostFileException ihfe) {
+                log.error("Failed to save the host file", ihfe);
+            }
+        }
+    }
+
+    /**
+     * Returns the hosts file XML
+     *
+     * @return the XML document
+     */
+    public String toString() {
+      String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<HostAuthorizations>\n";
+      xml+="<!-- Host Authorizations file, used by the abstract class HostKeyVerification to verify the servers host key -->";
+      xml+="   <!-- Allow the following hosts access if they provide the correct public key -->\n";
+      Map.Entry entry;
+      Iterator it = allowedHosts.entrySet().iterator();
+      while(it.hasNext()) {
+        entry = (Map.Entry)it.next();
+        xml+="   "+"<AllowHost HostName=\"" + entry.getKey().toString() +
+                                "\" Fingerprint=\"" + ((AllowedHost) entry.getValue()).fingerprint
+                                + "\"/>\n";
+      }
+      xml+="   <!-- Deny the following hosts access -->\n";
+      it = deniedHosts.iterator();
+      while(it.hasNext()) {
+        xml+="   <DenyHost HostName=\"" + it.next().toString() +
+                                "\"/>\n";
+      }
+      xml+="</HostAuthorizations>";
+      return xml;
+    }
+
+    public void startElement(String uri, String localName, String qname,
+                              Attributes attrs) throws SAXException {
+
+        if(currentElement==null) {
+          if(qname.equals("HostAuthorizations")) {
+             allowedHosts.clear();
+             deniedHosts.clear();
+             currentElement = qname;
+          }
+          else
+            throw new SAXException("Unexpected document element!");
+        }
+        else {
+
+          if(!currentElement.equals("HostAuthorizations"))
+            throw new SAXException("Unexpected parent element found!");
+
+          if(qname.equals("AllowHost")) {
+            String hostname = attrs.getValue("HostName");
+            String fingerprint = attrs.getValue("Fingerprint");
+
+          if(hostname!=null && fingerprint !=null) {
+            log.debug("AllowHost element for host '" + hostname + "' with fingerprint '" + fingerprint + "'");
+            allowedHosts.put(hostname, new AllowedHost(fingerprint));
+            currentElement = qname;
+          } else
+            throw new SAXException("Requried attribute(s) missing!");
+
+        }else if(qname.equals("DenyHost")) {
+          String hostname = attrs.getValue("HostName");
+
+          if(hostname!=null) {
+            log.debug("DenyHost element for host " + hostname);
+            deniedHosts.add(hostname);
+            currentElement = qname;
+          } else
+            throw new SAXException("Required attribute hostname missing");
+
+        } else {
+          log.warn("Unexpected " + qname + " element found in allowed hosts file");
+        }
+
+      }
+    }
+
+    public void endElement(String uri, String localName, String qname)
+                                          throws SAXException {
+
+        if(currentElement==null)
+          throw new SAXException("Unexpected end element found!");
+
+        if(currentElement.equals("HostAuthorizations")) {
+           currentElement = null;
+           return;
+        }
+
+        if(currentElement.equals("AllowHost")) {
+          currentElement = "HostAuthorizations";
+          return;
+        }
+
+        if(currentElement.equals("DenyHost")) {
+          currentElement = "HostAuthorizations";
+          return;
+        }
+    }
+
+    /**
+     * Loads the host file
+     *
+     * @param hostFileName the path to the host file
+     *
+     * @throws InvalidHostFileException if the host file is invalid
+     */
+    private void load(String hostFileName)
+               throws InvalidHostFileException {
+        InputStream in = null;
+
+        try {
+            //  If no host file is supplied, or there is not enough permission to load
+            //  the file, then just create an empty list.
+            if (hostFileName!=null) {
+                if (System.getSecurityManager()!=null) {
+                    AccessController.checkPermission(new FilePermission(hostFileName,
+                                                                        "read"));
+                }
+
+                //  Load the hosts file. Do not worry if fle doesnt exist, just disable
+                //  save of
+                File f = new File(hostFileName);
+
+                if (f.exists()) {
+                    in = new FileInputStream(f);
+                    hostFile = hostFileName;
+
+                    /**
+                     * Load in the hosts file
+                     */
+                     SAXParserFactory saxFactory = SAXParserFactory.newInstance();
+                     SAXParser saxParser = saxFactory.newSAXParser();
+
+                     saxParser.parse(in, this);
+
+                    hostFileWriteable = f.canWrite();
+                } else {
+                    hostFileWriteable = false;
+                }
+
+                if (!hostFileWriteable) {
+                    log.warn("Host file is not writeable.");
+                }
+            }
+        } catch (AccessControlException ace) {
+            log.warn("Not enough permission to load a hosts file, so just creating an empty list");
+        } catch (IOException ioe) {
+            throw new InvalidHostFileException("Could not open or read "
+                                               + hostFileName);
+        } catch(SAXException sax) {
+          throw new InvalidHostFileException("Failed XML parsing: " + sax.getMessage());
+        } catch(ParserConfigurationException pce) {
+          throw new InvalidHostFileException("Failed to initialize xml parser: " + pce.getMessage());
+        } finally {
+            if (in!=null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the host file can be saved
+     *
+     * @throws InvalidHostFileException if the host file is not writeable
+     */
+    private void checkWriteable() throws InvalidHostFileException {
+        if (!hostFileWriteable) {
+            throw new InvalidHostFileException("Host file is not writeable.");
+        }
+    }
+
+    /**
+     * Marks the store changed and starts the writer if it is not running
+     */
+    private void scheduleSave() {
+        isDirty = true;
+
+        if (writer == null) {
+            writer = new SshThread(this, "Host file writer", true);
+            writer.start();
+
+            // Write anything still pending on exit
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try {
+                        flush();
+                    } catch (InvalidHostFileException ihfe) {
+                        log.error("Failed to save the host file", ihfe);
+                    }
+                }
+            });
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Writes the host file, replacing the old file once the new one is
+     * complete
+     *
+     * @param xml the host file document
+     *
+     * @throws InvalidHostFileException if the host file cannot be written
+     */
+    private void saveHostFile(String xml)
+                       throws InvalidHostFileException {
+        log.info("Saving " + hostFile);
+
+        try {
+            File f = new File(hostFile);
+            File tmp = new File(hostFile + ".tmp");
+
+            FileOutputStream out = new FileOutputStream(tmp);
+
+            try {
+                out.write(xml.getBytes());
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(f)) {
+                // Some platforms will not rename over an existing file
+                f.delete();
+
+                if (!tmp.renameTo(f)) {
+                    throw new IOException("Failed to rename " + tmp.getPath());
+                }
+            }
+        } catch (IOException e) {
+            throw new InvalidHostFileException("Could not write to " + hostFile);
+        }
+    }
+
+    /**
+     * An allowed host fingerprint and the encoded key last found to match it
+     */
+    private static class AllowedHost {
+        String fingerprint;
+        volatile byte encoded[];
+
+        /**
+         * Creates a new AllowedHost object.
+         *
+         * @param fingerprint the allowed fingerprint
+         */
+        AllowedHost(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+}
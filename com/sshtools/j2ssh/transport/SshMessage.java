@@ -19,6 +19,8 @@
  *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
  */
 package com.sshtools.j2ssh.transport;
+import java.nio.ByteBuffer;
+
 import com.sshtools.j2ssh.io.ByteArrayReader;
 import com.sshtools.j2ssh.io.ByteArrayWriter;
 
@@ -80,14 +82,28 @@ public abstract class SshMessage {
         // Create a writer object to construct the array
         ByteArrayWriter baw = new ByteArrayWriter();
 
+        writeMessage(baw);
+
+        // Return the array
+        return baw.toByteArray();
+    }
+
+
+    /**
+     *  Writes the message payload to the end of the writer. This allows the
+     *  transport layer to build the packet around the payload without copying
+     *  it.
+     *
+     *@param  baw                          The writer to append the message to
+     *@exception  InvalidMessageException  if the message is invalid
+     */
+    public final void writeMessage(ByteArrayWriter baw)
+             throws InvalidMessageException {
         // Write the message id
         baw.write(messageId);
 
         // Call the abstract method so subclasses classes can add their data
         constructByteArray(baw);
-
-        // Return the array
-        return baw.toByteArray();
     }
 
 
@@ -122,6 +138,10 @@ public abstract class SshMessage {
       return new Integer(msgdata[5]);
     }
 
+    public static Integer getMessageId(ByteBuffer msgdata) {
+      return new Integer(msgdata.get(msgdata.position() + 5));
+    }
+
 
     /**
      *  Abstract method which is called to construct the byte array returned in
@@ -21,10 +21,14 @@
  */
 package com.sshtools.j2ssh.transport;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+import java.nio.ByteBuffer;
+
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import com.sshtools.j2ssh.io.ByteArrayReader;
 import org.apache.log4j.Logger;
@@ -45,15 +49,32 @@ import org.apache.log4j.Logger;
  * threads are notified so that the message can be handled appropriatley.
  * </p>
  *
+ * <p>
+ * Messages are held in a FIFO queue per message id so that a lookup only
+ * examines the head of the queues named in the filter. Each blocked thread
+ * waits on its own monitor and is only woken when a message it can accept
+ * arrives or the store is closed.
+ * </p>
+ *
+ * <p>
+ * Registered messages are held in a table indexed by message id. Messages
+ * registered with a factory are created without any reflection; messages
+ * registered by class have their constructor resolved once at registration.
+ * </p>
+ *
  * @author <A HREF="mailto:lee@sshtools.com">Lee David Painter</A>
  * @version $Id: SshMessageStore.java,v 1.16 2003/02/23 11:23:29 martianx Exp $
  */
 public final class SshMessageStore {
-    // List to hold messages as they are received
-    private List messages = new ArrayList();
-    private Map register = new HashMap();
+    // FIFO queues of received messages indexed by message id
+    private LinkedList queues[] = new LinkedList[256];
+    private int size = 0;
+    private long nextSequence = 0;
+    // The threads currently blocked waiting for messages
+    private List waiters = new ArrayList();
+    // The message factories indexed by message id
+    private SshMessageFactory factories[] = new SshMessageFactory[256];
     private boolean isClosed = false;
-    private int[] singleIdFilter = new int[1];
     private static Logger log = Logger.getLogger(SshMessageStore.class);
     /**
      * Constructs the message store object.
@@ -70,7 +91,7 @@ public final class SshMessageStore {
         return isClosed;
     }
 
-    public synchronized SshMessage getMessage(int messageIdFilter[])
+    public SshMessage getMessage(int messageIdFilter[])
                                            throws MessageStoreEOFException {
        try {
          return getMessage(messageIdFilter, 0);
@@ -93,47 +114,20 @@ public final class SshMessageStore {
      *
      * @throws MessageStoreEOFException if the message store is EOF
      */
-    public synchronized SshMessage getMessage(int messageIdFilter[], int timeout)
+    public SshMessage getMessage(int messageIdFilter[], int timeout)
                                        throws MessageStoreEOFException,
                                        MessageNotAvailableException {
-        if ((messages.size()<=0) && isClosed) {
-            throw new MessageStoreEOFException();
-        }
-
         if (messageIdFilter==null) {
             return nextMessage();
         }
 
-        SshMessage msg;
-        boolean firstPass = true;
         if(timeout < 0)
           timeout = 0;
 
-        while ((messages.size()>0) || !isClosed) {
-          // lookup the message
-          msg = lookupMessage(messageIdFilter, true);
-          if(msg!=null)
-            return msg;
-
-          // Now wait
-           try {
-                if (!isClosed) {
-                    wait(timeout);
-                }
-            } catch (InterruptedException ie) {
-            }
-
-          // If we wanted to timeout then throw
-          if(firstPass && timeout > 0)
-            throw new MessageNotAvailableException();
-
-          firstPass = false;
-        }
-
-        throw new MessageStoreEOFException();
+        return waitForMessage(messageIdFilter, timeout, true);
     }
 
-    public synchronized SshMessage getMessage(int messageId)
+    public SshMessage getMessage(int messageId)
         throws MessageStoreEOFException {
       try {
         return getMessage(messageId, 0);
@@ -152,47 +146,10 @@ public final class SshMessageStore {
      *
      * @throws MessageStoreEOFException if the message store is EOF
      */
-    public synchronized SshMessage getMessage(int messageId, int timeout)
+    public SshMessage getMessage(int messageId, int timeout)
                                        throws MessageStoreEOFException,
                                        MessageNotAvailableException {
-
-        singleIdFilter[0] = messageId;
-        return getMessage(singleIdFilter, timeout);
-
-        /*if ((messages.size()<=0) && isClosed) {
-            throw new MessageStoreEOFException();
-        }
-
-        SshMessage msg;
-        boolean firstPass = true;
-
-        if(timeout < 0)
-          timeout = 0;
-
-        while ((messages.size()>0) || !isClosed) {
-            for (int x = 0;x<messages.size();x++) {
-                msg = (SshMessage) messages.get(x);
-
-                if (msg.getMessageId()==messageId) {
-                    return msg;
-                }
-            }
-
-            if(!firstPass && timeout > 0) {
-              throw new MessageNotAvailableException();
-            }
-
-            try {
-                if (!isClosed) {
-                    wait(timeout);
-                }
-            } catch (InterruptedException ie) {
-            }
-
-            firstPass = false;
-        }
-
-        throw new MessageStoreEOFException();*/
+        return getMessage(new int[] { messageId }, timeout);
     }
 
     /**
@@ -203,7 +160,18 @@ public final class SshMessageStore {
      * @return <tt>true</tt> if the message is registered, otherwise <tt>false</tt>
      */
     public boolean isRegisteredMessage(Integer messageId) {
-        return register.containsKey(messageId);
+        return isRegisteredMessage(messageId.intValue());
+    }
+
+    /**
+     * Determine if the message is registered with this message store
+     *
+     * @param messageId the id of the message
+     *
+     * @return <tt>true</tt> if the message is registered, otherwise <tt>false</tt>
+     */
+    public boolean isRegisteredMessage(int messageId) {
+        return factories[messageId & 0xFF] != null;
     }
 
     /**
@@ -217,25 +185,7 @@ public final class SshMessageStore {
     public void addMessage(byte msgdata[])
                     throws MessageNotRegisteredException,
                            InvalidMessageException {
-        Integer messageId = new Integer(msgdata[5]);
-
-        if (!isRegisteredMessage(messageId)) {
-            throw new MessageNotRegisteredException(messageId);
-        }
-
-        Class cls = (Class) register.get(SshMessage.getMessageId(msgdata));
-
-        try {
-            SshMessage msg = (SshMessage) cls.newInstance();
-            msg.fromByteArray(new ByteArrayReader(msgdata));
-            addMessage(msg);
-        } catch (IllegalAccessException iae) {
-            throw new InvalidMessageException("Illegal access for implementation class "
-                                              + cls.getName());
-        } catch (InstantiationException ie) {
-            throw new InvalidMessageException("Instantiation failed for class "
-                                              + cls.getName());
-        }
+        addMessage(createMessage(msgdata));
     }
 
     /**
@@ -245,28 +195,46 @@ public final class SshMessageStore {
      *
      * @throws MessageNotRegisteredException if the message is not registered with this store
      */
-    public synchronized void addMessage(SshMessage msg)
+    public void addMessage(SshMessage msg)
                                  throws MessageNotRegisteredException {
-        // Add the message
-        messages.add(msg);
+        int id = msg.getMessageId() & 0xFF;
+
+        synchronized (this) {
+            // Add the message to the end of its queue
+            if (queues[id] == null) {
+                queues[id] = new LinkedList();
+            }
+
+            queues[id].addLast(new Entry(msg, nextSequence++));
+            size++;
 
-        // Notify the threads
-        notifyAll();
+            // Only wake the threads that can accept this message
+            for (int i = waiters.size() - 1; i >= 0; i--) {
+                Waiter waiter = (Waiter) waiters.get(i);
+
+                if (waiter.accepts(id)) {
+                    waiters.remove(i);
+                    waiter.signal();
+                }
+            }
+        }
     }
 
     /**
      * Closes the message store.
      */
-    public synchronized void close() {
-        isClosed = true;
-
-        // We need to notify all anyway as if there are messages still available
-        // it should not affect the waiting threads as they are waiting for their
-        // own messages to be received becuase non were avaialable in the first place
-        //if (messages.size()<=0) {
-        notifyAll();
+    public void close() {
+        synchronized (this) {
+            isClosed = true;
+
+            // Wake every waiting thread so that they can see the store is
+            // closed; they will still collect any messages already available
+            for (int i = 0; i < waiters.size(); i++) {
+                ((Waiter) waiters.get(i)).signal();
+            }
 
-        //}
+            waiters.clear();
+        }
     }
 
     /**
@@ -278,28 +246,17 @@ public final class SshMessageStore {
      *
      * @throws MessageStoreEOFException if the message store is EOF
      */
-    public synchronized SshMessage nextMessage()
+    public SshMessage nextMessage()
                                         throws MessageStoreEOFException {
-        if ((messages.size()<=0) && isClosed) {
-            throw new MessageStoreEOFException();
-        }
-
-        // If there are no messages available then wait untill there are.
-        while ((messages.size()<=0)) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-            }
-        }
-
-        if (messages.size()>0) {
-            return (SshMessage) messages.remove(0);
-        } else {
+        try {
+            return waitForMessage(null, 0, true);
+        } catch (MessageNotAvailableException e) {
+            // This should never happen without a timeout
             throw new MessageStoreEOFException();
         }
     }
 
-    public synchronized SshMessage peekMessage(int messageIdFilter[])
+    public SshMessage peekMessage(int messageIdFilter[])
                                             throws MessageStoreEOFException,
                                                    MessageNotAvailableException {
         return peekMessage(messageIdFilter, 0);
@@ -316,28 +273,36 @@ public final class SshMessageStore {
      * @throws MessageStoreEOFException if the message store is EOF
      * @throws MessageNotAvailableException if there are no messages available
      */
-    public synchronized SshMessage peekMessage(int messageIdFilter[], int timeout)
+    public SshMessage peekMessage(int messageIdFilter[], int timeout)
                                         throws MessageStoreEOFException,
                                                MessageNotAvailableException {
         SshMessage msg;
+        Waiter waiter = null;
 
-        // Do a straight lookup
-        msg = lookupMessage(messageIdFilter, false);
-        if(msg!=null)
-          return msg;
-
-        log.debug("No message so waiting for " + String.valueOf(timeout) + " milliseconds");
-
-        // If were willing to wait the wait and look again
-        if(timeout > 0) {
-          try {
-            wait(timeout);
+        synchronized (this) {
+            // Do a straight lookup
             msg = lookupMessage(messageIdFilter, false);
             if(msg!=null)
               return msg;
-          } catch(InterruptedException e) {
-            log.debug("peekMessage was interrupted");
-          }
+
+            if (timeout > 0 && !isClosed) {
+                log.debug("No message so waiting for " + String.valueOf(timeout) + " milliseconds");
+                waiter = new Waiter(messageIdFilter);
+                waiters.add(waiter);
+            }
+        }
+
+        // If were willing to wait the wait and look again
+        if (waiter != null) {
+            waiter.await(timeout);
+
+            synchronized (this) {
+                waiters.remove(waiter);
+
+                msg = lookupMessage(messageIdFilter, false);
+                if(msg!=null)
+                  return msg;
+            }
         }
 
         // Nothing even after a wait so throw the relevant exception
@@ -348,26 +313,104 @@ public final class SshMessageStore {
         }
     }
 
+    /**
+     * Waits for a message that matches the filter to become available.
+     *
+     * @param messageIdFilter the acceptable message ids, or <tt>null</tt> for
+     *        any message
+     * @param timeout the time to wait in milliseconds, zero to wait forever
+     * @param remove <tt>true</tt> to remove the message from the store
+     *
+     * @return the message
+     *
+     * @throws MessageStoreEOFException if the store closes without a suitable
+     *         message
+     * @throws MessageNotAvailableException if the timeout expires
+     */
+    private SshMessage waitForMessage(int messageIdFilter[], int timeout,
+                                      boolean remove)
+                               throws MessageStoreEOFException,
+                                      MessageNotAvailableException {
+        SshMessage msg;
+        Waiter waiter = null;
+
+        while (true) {
+            synchronized (this) {
+                if (waiter != null) {
+                    waiters.remove(waiter);
+                }
+
+                msg = lookupMessage(messageIdFilter, remove);
+                if (msg != null)
+                  return msg;
+
+                if (isClosed) {
+                    throw new MessageStoreEOFException();
+                }
+
+                // If we wanted to timeout then throw
+                if (waiter != null && timeout > 0) {
+                    throw new MessageNotAvailableException();
+                }
+
+                waiter = new Waiter(messageIdFilter);
+                waiters.add(waiter);
+            }
+
+            waiter.await(timeout);
+        }
+    }
+
     private SshMessage lookupMessage(int[] messageIdFilter, boolean remove) {
 
-      SshMessage msg;
-      for (int x = 0;x<messages.size();x++) {
-          msg = (SshMessage) messages.get(x);
+      if (size == 0) {
+          return null;
+      }
+
+      // Find the earliest message at the head of the acceptable queues
+      LinkedList queue = null;
+      Entry entry = null;
+      Entry head;
 
-          // Determine whether its one of the filtered messages
-          for (int i = 0;i<messageIdFilter.length;i++) {
-              if (msg.getMessageId()==messageIdFilter[i]) {
-                if(remove)
-                  messages.remove(msg);
-                return msg;
+      if (messageIdFilter == null) {
+          for (int i = 0; i < queues.length; i++) {
+              if (queues[i] != null && queues[i].size() > 0) {
+                  head = (Entry) queues[i].getFirst();
+
+                  if (entry == null || head.sequence < entry.sequence) {
+                      entry = head;
+                      queue = queues[i];
+                  }
               }
           }
-       }
+      } else {
+          for (int i = 0; i < messageIdFilter.length; i++) {
+              LinkedList q = queues[messageIdFilter[i] & 0xFF];
+
+              if (q != null && q.size() > 0) {
+                  head = (Entry) q.getFirst();
+
+                  if (entry == null || head.sequence < entry.sequence) {
+                      entry = head;
+                      queue = q;
+                  }
+              }
+          }
+      }
+
+      if (entry == null) {
+          return null;
+      }
 
-       return null;
+      if (remove) {
+          queue.removeFirst();
+          size--;
+      }
+
+      return entry.message;
     }
 
-    public synchronized SshMessage peekMessage(int messageId)
+    public SshMessage peekMessage(int messageId)
                                             throws MessageStoreEOFException,
                                                    MessageNotAvailableException {
         return peekMessage(messageId, 0);
@@ -382,35 +425,20 @@ public final class SshMessageStore {
      * @throws MessageStoreEOFException if the message store is EOF
      * @throws MessageNotAvailableException if there are no messages available
      */
-    public synchronized SshMessage peekMessage(int messageId, int timeout)
+    public SshMessage peekMessage(int messageId, int timeout)
                                         throws MessageStoreEOFException,
                                                MessageNotAvailableException {
-      singleIdFilter[0] = messageId;
-      return peekMessage(singleIdFilter, timeout);
-      /*SshMessage msg;
-
-        if (messages.size()>0) {
-            for (int x = 0;x<messages.size();x++) {
-                msg = (SshMessage) messages.get(x);
-
-                if (msg.getMessageId()==messageId) {
-                    return msg;
-                }
-            }
-        }
-
-        if (isClosed) {
-            throw new MessageStoreEOFException();
-        } else {
-            throw new MessageNotAvailableException();
-        }*/
+      return peekMessage(new int[] { messageId }, timeout);
     }
 
 
 
     /**
      * Register an <code>SshMessage</code> implementation with this message
-     * store
+     * store. Messages registered by class are created through their no
+     * argument constructor by reflection; this is kept for messages defined
+     * outside the API, which registers a factory for each of its own
+     * messages.
      *
      * @param messageId the id of the message
      * @param implementor the implementation class
@@ -418,8 +446,18 @@ public final class SshMessageStore {
      * @throws MessageAlreadyRegisteredException if the message id is already registered
      */
     public void registerMessage(int messageId, Class implementor) {
-        Integer id = new Integer(messageId);
-        register.put(id, implementor);
+        registerMessage(messageId, new ClassFactory(implementor));
+    }
+
+    /**
+     * Register a factory for an <code>SshMessage</code> implementation with
+     * this message store
+     *
+     * @param messageId the id of the message
+     * @param factory the factory that creates the message instances
+     */
+    public void registerMessage(int messageId, SshMessageFactory factory) {
+        factories[messageId & 0xFF] = factory;
     }
 
 
@@ -429,7 +467,15 @@ public final class SshMessageStore {
      * @return  an array of Integer
      */
     public Object[] getRegisteredMessageIds() {
-      return register.keySet().toArray();
+      List ids = new ArrayList();
+
+      for (int i = 0; i < factories.length; i++) {
+        if (factories[i] != null) {
+          ids.add(new Integer((byte) i));
+        }
+      }
+
+      return ids.toArray();
     }
 
 
@@ -437,25 +483,136 @@ public final class SshMessageStore {
                         throws MessageNotRegisteredException,
                                 InvalidMessageException {
 
-        Integer messageId = SshMessage.getMessageId(msgdata);
+        return createMessage(msgdata[5], new ByteArrayReader(msgdata));
+    }
 
-        if (!isRegisteredMessage(messageId)) {
-            throw new MessageNotRegisteredException(messageId);
+    /**
+     * Creates a message from a buffer without copying the message data. The
+     * buffer's remaining bytes must start with the packet length field and
+     * end with the message payload; the buffer may be reused once this
+     * method returns.
+     *
+     * @param msgdata the buffer containing the message
+     *
+     * @return the message instance
+     *
+     * @throws MessageNotRegisteredException if the message type is not registered with this store
+     * @throws InvalidMessageException if the message instance cannot be created
+     */
+    public SshMessage createMessage(ByteBuffer msgdata)
+                        throws MessageNotRegisteredException,
+                                InvalidMessageException {
+        return createMessage(msgdata.get(msgdata.position() + 5),
+                             new ByteArrayReader(msgdata.array(),
+                                                 msgdata.arrayOffset()
+                                                 + msgdata.position(),
+                                                 msgdata.remaining()));
+    }
+
+    private SshMessage createMessage(int messageId, ByteArrayReader bar)
+                        throws MessageNotRegisteredException,
+                                InvalidMessageException {
+        SshMessageFactory factory = factories[messageId & 0xFF];
+
+        if (factory == null) {
+            throw new MessageNotRegisteredException(new Integer(messageId));
         }
 
-        Class cls = (Class) register.get(SshMessage.getMessageId(msgdata));
+        SshMessage msg = factory.newInstance();
+        msg.fromByteArray(bar);
+        return msg;
+    }
 
-        try {
-            SshMessage msg = (SshMessage) cls.newInstance();
-            msg.fromByteArray(new ByteArrayReader(msgdata));
-            return msg;
-        } catch (IllegalAccessException iae) {
-            throw new InvalidMessageException("Illegal access for implementation class "
-                                              + cls.getName());
-        } catch (InstantiationException ie) {
-            throw new InvalidMessageException("Instantiation failed for class "
-                                              + cls.getName());
+    /**
+     * Creates messages registered by class. The constructor is resolved
+     * when the message is registered rather than for every message.
+     */
+    private static class ClassFactory implements SshMessageFactory {
+        private Class cls;
+        private Constructor constructor;
+
+        ClassFactory(Class cls) {
+            this.cls = cls;
+
+            try {
+                constructor = cls.getConstructor(new Class[0]);
+            } catch (NoSuchMethodException nsme) {
+                // Reported when a message is created
+            }
+        }
+
+        public SshMessage newInstance() throws InvalidMessageException {
+            if (constructor == null) {
+                throw new InvalidMessageException("Instantiation failed for class "
+                                                  + cls.getName());
+            }
+
+            try {
+                return (SshMessage) constructor.newInstance(new Object[0]);
+            } catch (IllegalAccessException iae) {
+                throw new InvalidMessageException("Illegal access for implementation class "
+                                                  + cls.getName());
+            } catch (InstantiationException ie) {
+                throw new InvalidMessageException("Instantiation failed for class "
+                                                  + cls.getName());
+            } catch (InvocationTargetException ite) {
+                throw new InvalidMessageException("Instantiation failed for class "
+                                                  + cls.getName());
+            }
         }
+    }
 
+    /**
+     * A message held in the store with its order of arrival
+     */
+    private static class Entry {
+        SshMessage message;
+        long sequence;
+
+        Entry(SshMessage message, long sequence) {
+            this.message = message;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A thread blocked waiting for messages. Each waiter has its own monitor
+     * so that adding a message only wakes the threads that can accept it.
+     */
+    private static class Waiter {
+        private int filter[];
+        private boolean signalled = false;
+
+        Waiter(int filter[]) {
+            this.filter = filter;
+        }
+
+        boolean accepts(int messageId) {
+            if (filter == null) {
+                return true;
+            }
+
+            for (int i = 0; i < filter.length; i++) {
+                if ((filter[i] & 0xFF) == messageId) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        synchronized void signal() {
+            signalled = true;
+            notify();
+        }
+
+        synchronized void await(int timeout) {
+            if (!signalled) {
+                try {
+                    wait(timeout);
+                } catch (InterruptedException ie) {
+                }
+            }
+        }
     }
 }
@@ -103,7 +103,11 @@ public class TransportProtocolClient
     public void registerTransportMessages()
              throws MessageAlreadyRegisteredException {
         messageStore.registerMessage(SshMsgServiceAccept.SSH_MSG_SERVICE_ACCEPT,
-                SshMsgServiceAccept.class);
+                new SshMessageFactory() {
+                  public SshMessage newInstance() {
+                    return new SshMsgServiceAccept();
+                  }
+                });
     }
 
 
@@ -439,14 +443,24 @@ public class TransportProtocolClient
         sshCipher.init(SshCipher.DECRYPT_MODE, encryptSCIV, encryptSCKey);
         algorithmsIn.setCipher(sshCipher);
 
-        // Create and put our macs into operation
-        SshHmac hmac =
-                SshHmacFactory.newInstance(getOutputStreamMacAlgorithm());
-        hmac.init(macCSKey);
+        // Create and put our macs into operation, an authenticated cipher
+        // protects its packets itself so the negotiated MAC is not used
+        SshHmac hmac = null;
+
+        if (algorithmsOut.getCipher().getTagLength() == 0) {
+            hmac = SshHmacFactory.newInstance(getOutputStreamMacAlgorithm());
+            hmac.init(macCSKey);
+        }
+
         algorithmsOut.setHmac(hmac);
 
-        hmac = SshHmacFactory.newInstance(getInputStreamMacAlgorithm());
-        hmac.init(macSCKey);
+        hmac = null;
+
+        if (algorithmsIn.getCipher().getTagLength() == 0) {
+            hmac = SshHmacFactory.newInstance(getInputStreamMacAlgorithm());
+            hmac.init(macSCKey);
+        }
+
         algorithmsIn.setHmac(hmac);
     }
 
@@ -28,6 +28,8 @@ import java.math.BigInteger;
 
 import java.net.Socket;
 
+import java.nio.ByteBuffer;
+
 import java.security.NoSuchAlgorithmException;
 
 import java.util.ArrayList;
@@ -231,6 +233,8 @@ public abstract class TransportProtocolCommon
     private int remoteEOL = EOL_CRLF;
     //private Map registeredMessages = new HashMap();
     private Vector messageStores = new Vector();
+    // The message store that receives each message id, filled on first use
+    private SshMessageStore dispatch[] = new SshMessageStore[256];
 
     /**
      *  Constructor for the SshTransportProtocol object
@@ -259,6 +263,67 @@ public abstract class TransportProtocolCommon
 
     protected abstract void onDisconnect();
 
+
+    /**
+     *  Gets the time in milliseconds that outgoing connection protocol
+     *  packets may be held for coalescing
+     *
+     *@return    the coalescing window, zero if disabled
+     */
+    protected long getCoalescingWindow() {
+        return properties.getCoalescingWindow();
+    }
+
+
+    /**
+     *  Gets the maximum number of bytes held for coalescing
+     *
+     *@return    the maximum batch size
+     */
+    protected int getMaxBatchSize() {
+        return properties.getMaxBatchSize();
+    }
+
+
+    /**
+     *  Gets the number of batches of packets written to the socket
+     *
+     *@return    the batch count
+     */
+    public long getBatchCount() {
+        return (sshOut == null) ? 0 : sshOut.getBatchCount();
+    }
+
+
+    /**
+     *  Gets the number of packets written to the socket in batches
+     *
+     *@return    the packet count
+     */
+    public long getBatchedPackets() {
+        return (sshOut == null) ? 0 : sshOut.getBatchedPackets();
+    }
+
+
+    /**
+     *  Gets the number of bytes written to the socket in batches
+     *
+     *@return    the byte count
+     */
+    public long getBatchedBytes() {
+        return (sshOut == null) ? 0 : sshOut.getBatchedBytes();
+    }
+
+
+    /**
+     *  Gets the number of packets in the largest batch written
+     *
+     *@return    the largest batch
+     */
+    public int getLargestBatch() {
+        return (sshOut == null) ? 0 : sshOut.getLargestBatch();
+    }
+
     /**
      *  Disconnects the connection by sending a disconnect message with the
      *  BY_APPLICAITON reason.
@@ -331,25 +396,50 @@ public abstract class TransportProtocolCommon
                     new TransportProtocolInputStream(socket, algorithmsIn);
             sshOut =
                     new TransportProtocolOutputStream(socket, this, algorithmsOut);
+            sshOut.setCoalescing(getCoalescingWindow(), getMaxBatchSize());
 
             // Register the transport layer messages that this class will handle
             messageStore.registerMessage(SshMsgDisconnect.SSH_MSG_DISCONNECT,
-                    SshMsgDisconnect.class);
+                    new SshMessageFactory() {
+                      public SshMessage newInstance() {
+                        return new SshMsgDisconnect();
+                      }
+                    });
 
             messageStore.registerMessage(SshMsgIgnore.SSH_MSG_IGNORE,
-                    SshMsgIgnore.class);
+                    new SshMessageFactory() {
+                      public SshMessage newInstance() {
+                        return new SshMsgIgnore();
+                      }
+                    });
 
             messageStore.registerMessage(SshMsgUnimplemented.SSH_MSG_UNIMPLEMENTED,
-                    SshMsgUnimplemented.class);
+                    new SshMessageFactory() {
+                      public SshMessage newInstance() {
+                        return new SshMsgUnimplemented();
+                      }
+                    });
 
             messageStore.registerMessage(SshMsgDebug.SSH_MSG_DEBUG,
-                    SshMsgDebug.class);
+                    new SshMessageFactory() {
+                      public SshMessage newInstance() {
+                        return new SshMsgDebug();
+                      }
+                    });
 
             messageStore.registerMessage(SshMsgKexInit.SSH_MSG_KEX_INIT,
-                    SshMsgKexInit.class);
+                    new SshMessageFactory() {
+                      public SshMessage newInstance() {
+                        return new SshMsgKexInit();
+                      }
+                    });
 
             messageStore.registerMessage(SshMsgNewKeys.SSH_MSG_NEWKEYS,
-                    SshMsgNewKeys.class);
+                    new SshMessageFactory() {
+                      public SshMessage newInstance() {
+                        return new SshMsgNewKeys();
+                      }
+                    });
 
             registerTransportMessages();
 
@@ -477,8 +567,6 @@ public abstract class TransportProtocolCommon
         if(state.getValue()==TransportProtocolState.DISCONNECTED)
           throw new TransportProtocolException("The connection did not complete");
 
-
-
     }
 
 
@@ -1341,17 +1429,17 @@ public abstract class TransportProtocolCommon
 
     public SshMessage readMessage(int filter[]) throws IOException {
 
-        byte msgdata[];
+        ByteBuffer msgdata;
         SshMessage msg;
 
         while(state.getValue() != TransportProtocolState.DISCONNECTED) {
 
           msgdata = sshIn.readMessage();
-          Integer messageId = SshMessage.getMessageId(msgdata);
+          int messageId = msgdata.get(msgdata.position() + 5);
 
           // First check the filter
           for(int i=0;i<filter.length;i++) {
-            if(filter[i]==messageId.intValue()) {
+            if(filter[i]==messageId) {
               /**
                * We have a match so create and return
                */
@@ -1376,7 +1464,7 @@ public abstract class TransportProtocolCommon
              * Transport layer message
              */
             msg = messageStore.createMessage(msgdata);
-            switch(messageId.intValue()) {
+            switch(messageId) {
               case SshMsgDisconnect.SSH_MSG_DISCONNECT:
                 {
                     onMsgDisconnect((SshMsgDisconnect) msg);
@@ -1425,7 +1513,7 @@ public abstract class TransportProtocolCommon
     protected SshMessage processMessages()
              throws IOException {
 
-        byte msgdata[];
+        ByteBuffer msgdata;
         SshMessage msg;
         SshMessageStore ms;
 
@@ -1446,7 +1534,7 @@ public abstract class TransportProtocolCommon
 
             msgdata = sshIn.readMessage();
 
-            Integer messageId = SshMessage.getMessageId(msgdata);
+            int messageId = msgdata.get(msgdata.position() + 5);
 
             if(!messageStore.isRegisteredMessage(messageId)) {
               try {
@@ -1456,7 +1544,7 @@ public abstract class TransportProtocolCommon
                 ms.addMessage(msg);
               } catch(MessageNotRegisteredException mnre) {
                   log.info("Unimplemented message received "
-                            + String.valueOf(messageId.intValue()));
+                            + String.valueOf(messageId));
                   msg = new SshMsgUnimplemented(sshIn.getSequenceNo());
                   sendMessage(msg, this);
               }
@@ -1488,6 +1576,7 @@ public abstract class TransportProtocolCommon
 
 
         messageStores.add(store);
+        clearDispatchTable();
 
         /*Object[] id = store.getRegisteredMessageIds();
 
@@ -1507,21 +1596,39 @@ public abstract class TransportProtocolCommon
 
     }
 
-    private SshMessageStore getMessageStore(Integer messageId)
+    private SshMessageStore getMessageStore(int messageId)
         throws MessageNotRegisteredException {
-      SshMessageStore ms;
-      for(Iterator it = messageStores.iterator();it!=null && it.hasNext();) {
-        ms = (SshMessageStore)it.next();
-        if(ms.isRegisteredMessage(messageId))
-          return ms;
+      SshMessageStore ms = dispatch[messageId & 0xFF];
+
+      // Stores may register messages after they have been added so only
+      // successful lookups are remembered
+      if(ms!=null)
+        return ms;
+
+      synchronized(messageStores) {
+        for(Iterator it = messageStores.iterator();it!=null && it.hasNext();) {
+          ms = (SshMessageStore)it.next();
+          if(ms.isRegisteredMessage(messageId)) {
+            dispatch[messageId & 0xFF] = ms;
+            return ms;
+          }
+        }
       }
 
-      throw new MessageNotRegisteredException(messageId);
+      throw new MessageNotRegisteredException(new Integer(messageId));
     }
 
 
     public void removeMessageStore(SshMessageStore ms) {
       messageStores.remove(ms);
+      clearDispatchTable();
+    }
+
+    private void clearDispatchTable() {
+      synchronized(messageStores) {
+        for(int i=0;i<dispatch.length;i++)
+          dispatch[i] = null;
+      }
     }
 
 }
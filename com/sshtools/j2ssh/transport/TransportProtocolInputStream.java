@@ -29,11 +29,12 @@ import java.math.BigInteger;
 
 import java.net.Socket;
 
+import java.nio.ByteBuffer;
+
 import com.sshtools.j2ssh.transport.cipher.SshCipher;
 import com.sshtools.j2ssh.transport.compression.SshCompression;
 import com.sshtools.j2ssh.transport.hmac.SshHmac;
 import com.sshtools.j2ssh.io.ByteArrayReader;
-import com.sshtools.j2ssh.io.ByteArrayWriter;
 import com.sshtools.j2ssh.util.OpenClosedState;
 
 /**
@@ -66,13 +67,19 @@ class TransportProtocolInputStream {
     int msglen;
     int padlen;
     int read;
-    int remaining;
     int cipherlen = 8;
     int maclen = 0;
-    byte buffer[] = new byte[128 * cipherlen];
-    ByteArrayWriter message = new ByteArrayWriter();
-    byte initial[] = new byte[cipherlen];
-    byte data[];
+    int taglen = 0;
+
+    /**
+     *  The largest packet we are prepared to buffer, anything larger is
+     *  treated as a corrupt length field
+     */
+    static final int MAX_PACKET_LENGTH = 262144;
+
+    // The reusable packet buffer, grown on demand
+    byte packet[] = new byte[35000];
+    ByteBuffer payload = ByteBuffer.wrap(packet);
 
 
     /**
@@ -107,16 +114,22 @@ class TransportProtocolInputStream {
     }
 
     /**
-     *  Main processing method for the SshInputStream object
+     *  Reads the next packet from the socket, decrypting it in place within
+     *  the reusable packet buffer and verifying its MAC there.
+     *
+     *  The returned buffer starts at the packet length field and ends with
+     *  the last byte of the message payload (the padding and MAC are
+     *  excluded). It is only valid until the next call to this method, so
+     *  the caller must create the message from it before reading again.
+     *
+     *@return                  the packet buffer
+     *@exception  IOException  if the socket fails or the packet is corrupt
      */
-    public byte[] readMessage() throws IOException {
-
-          // Reset the message for the next
-          message.reset();
+    public ByteBuffer readMessage() throws IOException {
 
           // Read the first byte of this message (this is so we block
           // but we will determine the cipher length before reading all
-          read = in.read(initial, 0, 1);
+          read = in.read(packet, 0, 1);
 
           // Make sure we have not closed or reached eof
           if (read < 0)
@@ -131,113 +144,70 @@ class TransportProtocolInputStream {
           // we have the correct blocksize
           if (cipher != null) {
               cipherlen = cipher.getBlockSize();
+              taglen = cipher.getTagLength();
           } else {
               cipherlen = 8;
+              taglen = 0;
           }
 
-          // Verify we have enough buffer size for the inital block
-          if(initial.length != cipherlen) {
-          // Create a temporary array for the new block size and copy
-              byte tmp[] = new byte[cipherlen];
-              System.arraycopy(initial,0,tmp,0,initial.length);
-              // Now change the initial buffer to our new array
-              initial = tmp;
-           }
-
-          // Now read the rest of the first block of data
-          int count = read;
-          do {
-            read = in.read(initial, count, initial.length - count);
-            count+=read;
-          } while(count < initial.length);
-
-          // Make sure that our buffer size is a multiple of blocksize
-          if ((buffer.length % cipherlen) != 0) {
-              buffer = new byte[128 * cipherlen];
-          }
-
-          // Record the mac length
-          if (hmac != null) {
+          // Record the mac length, an authenticated cipher replaces the MAC
+          // with its tag
+          if (taglen > 0) {
+              maclen = taglen;
+          } else if (hmac != null) {
               maclen = hmac.getMacLength();
           } else {
               maclen = 0;
           }
 
-          // Decrypt the data if we have a valid cipher
-          if (cipher != null) {
-              initial = cipher.transform(initial);
+          if (taglen > 0) {
+              return readAuthenticatedMessage();
           }
 
-          //log.debug("Cipher is " + (cipher==null? "null": "not null"));
-          // Save the initial data
-          message.write(initial);
-
-          // Preview the message length
-          msglen = ByteArrayReader.readInt(initial, 0);
-
-          //log.debug("Reading message with " + String.valueOf(msglen) + " bytes");
-
-          padlen = initial[4];
+          // Now read the rest of the first block of data
+          readFully(packet, read, cipherlen - read);
 
-          // Read, decrypt and save the remaining data
-          remaining = (msglen - (cipherlen - 4));
+          // Decrypt the first block in place if we have a valid cipher
+          if (cipher != null) {
+              cipher.transform(packet, 0, cipherlen, packet, 0);
+          }
 
-          //log.debug(String.valueOf(remaining) + " bytes of data left to collect");
-          // Loop collecting data untill we have the correct number of
-          // bytes
-          while (remaining > 0) {
-              // Read up to buffer.length or remaining whichever is lower
-              if (remaining > buffer.length) {
-                  //log.debug("Reading " + String.valueOf(buffer.length) + " bytes from socket");
-                  read = in.read(buffer);
-              } else {
-                  //log.debug("Reading " + String.valueOf(buffer.length) + " bytes from socket");
-                  read = in.read(buffer, 0, remaining);
-              }
+          // Preview the message length
+          msglen = ByteArrayReader.readInt(packet, 0);
+          padlen = packet[4] & 0xFF;
 
-              log.debug("Read " + String.valueOf(read) + " bytes from socket");
+          if (msglen < cipherlen - 4 || msglen > MAX_PACKET_LENGTH
+                  || padlen > msglen - 2) {
+              throw new IOException("Invalid packet length "
+                      + String.valueOf(msglen));
+          }
 
-              // Check that nothing went wrong on the socket
-              if (read > 0) {
-                  // Record how many bytes weve received
-                  remaining -= read;
+          // Make sure the buffer can hold the whole packet and its MAC
+          if (packet.length < msglen + 4 + maclen) {
+              byte tmp[] = new byte[msglen + 4 + maclen];
+              System.arraycopy(packet, 0, tmp, 0, cipherlen);
+              packet = tmp;
+              payload = ByteBuffer.wrap(packet);
+          }
 
-                  // Decrypt the data and/or write it to the message
-                  if (cipher != null) {
-                      message.write(cipher.transform(buffer, 0, read));
-                  } else {
-                      message.write(buffer, 0, read);
-                  }
+          // Read and decrypt the remaining data in place
+          int remaining = msglen + 4 - cipherlen;
 
+          readFully(packet, cipherlen, remaining);
 
-              } else if(read == 0) {
-                log.warn("Read returned zero bytes");
-              } else {
-                  throw new IOException("Socket InputStream is EOF");
-              }
+          if (cipher != null && remaining > 0) {
+              cipher.transform(packet, cipherlen, remaining,
+                               packet, cipherlen);
           }
 
-           // End of while
           synchronized (sequenceLock) {
-            //log.debug("Total num bytes encrypted so far: " + String.valueOf(bytesEncrypted));
-            //log.debug("Message sequence no is " + String.valueOf(sequenceNo));
 
             if (hmac != null) {
-                  count = 0;
-                  while(count<maclen) {
-                   // if(count!=0)
-                   //   log.debug("Only " + String.valueOf(count) + " bytes of MAC data received, expecting " + String.valueOf(maclen-count) + " more");
-                    read = in.read(buffer, 0, maclen-count);
-                    if(read>0) {
-                      message.write(buffer, 0, read);
-                      count+=read;
-                    } else {
-                      throw new IOException("EOF whilst reading MAC data!");
-                    }
-                  }
+                  // The MAC is not encrypted so read it straight after the packet
+                  readFully(packet, msglen + 4, maclen);
 
                   // Verify the mac
-                  if (!hmac.verify(sequenceNo, message.toByteArray())) {
+                  if (!hmac.verify(sequenceNo, packet, 0, msglen + 4)) {
                      throw new IOException("Corrupt Mac on input");
                   }
               }
@@ -250,12 +220,94 @@ class TransportProtocolInputStream {
                 }
             }
 
-            bytesTransfered += message.size();
+            bytesTransfered += msglen + 4 + maclen;
 
-            // End of sequence no lock
-            return message.toByteArray();
+            // Hand back the packet header and payload without the padding
+            payload.clear();
+            payload.limit(msglen + 4 - padlen);
+
+            return payload;
         }
 
 
+    /**
+     *  Reads the rest of a packet protected by an authenticated cipher. The
+     *  packet length field is in the clear and the whole packet is verified
+     *  against its tag before any of it is decrypted.
+     *
+     *@return                  the packet buffer
+     *@exception  IOException  if the socket fails or the packet is corrupt
+     */
+    private ByteBuffer readAuthenticatedMessage() throws IOException {
+          readFully(packet, read, 4 - read);
+
+          msglen = ByteArrayReader.readInt(packet, 0);
+
+          if (msglen < cipherlen || msglen > MAX_PACKET_LENGTH
+                  || msglen % cipherlen != 0) {
+              throw new IOException("Invalid packet length "
+                      + String.valueOf(msglen));
+          }
+
+          // Make sure the buffer can hold the whole packet and its tag
+          if (packet.length < msglen + 4 + maclen) {
+              byte tmp[] = new byte[msglen + 4 + maclen];
+              System.arraycopy(packet, 0, tmp, 0, 4);
+              packet = tmp;
+              payload = ByteBuffer.wrap(packet);
+          }
+
+          readFully(packet, 4, msglen + maclen);
 
+          synchronized (sequenceLock) {
+              cipher.openPacket(packet, 0, msglen + 4);
+
+              // Increment the sequence no
+              if (sequenceNo < sequenceWrapLimit) {
+                  sequenceNo++;
+              } else {
+                  sequenceNo = 0;
+              }
+          }
+
+          padlen = packet[4] & 0xFF;
+
+          if (padlen > msglen - 2) {
+              throw new IOException("Invalid padding length "
+                      + String.valueOf(padlen));
+          }
+
+          bytesTransfered += msglen + 4 + maclen;
+
+          // Hand back the packet header and payload without the padding
+          payload.clear();
+          payload.limit(msglen + 4 - padlen);
+
+          return payload;
+    }
+
+
+    /**
+     *  Reads exactly len bytes from the socket into the buffer
+     *
+     *@param  buf              the buffer to read into
+     *@param  off              the offset in the buffer
+     *@param  len              the number of bytes to read
+     *@exception  IOException  if the socket reaches EOF
+     */
+    private void readFully(byte buf[], int off, int len) throws IOException {
+        int count = 0;
+
+        while (count < len) {
+            read = in.read(buf, off + count, len - count);
+
+            if (read > 0) {
+                count += read;
+            } else if (read == 0) {
+                log.warn("Read returned zero bytes");
+            } else {
+                throw new IOException("Socket InputStream is EOF");
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -22,6 +22,7 @@ package com.sshtools.j2ssh.transport;
 
 import org.apache.log4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -30,6 +31,8 @@ import java.math.BigInteger;
 import java.net.Socket;
 
 import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import com.sshtools.j2ssh.transport.cipher.SshCipher;
 import com.sshtools.j2ssh.transport.compression.SshCompression;
@@ -52,6 +55,16 @@ class TransportProtocolOutputStream {
 
     private static Logger log =
             Logger.getLogger(TransportProtocolOutputStream.class);
+
+    /**
+     *  Messages with an id below this value belong to the transport and
+     *  authentication protocols and are always flushed immediately
+     */
+    private static final int FIRST_COALESCED_MESSAGE_ID = 80;
+
+    // A single timer bounds the latency of every coalesced batch
+    private static Timer flushTimer;
+
     private OutputStream out;
     private Socket socket;
     private TransportProtocolAlgorithmSync algorithms;
@@ -60,6 +73,24 @@ class TransportProtocolOutputStream {
     private long sequenceWrapLimit = BigInteger.valueOf(2).pow(32).longValue();
     private Random rnd = ConfigurationLoader.getRND();
     private long bytesTransfered = 0;
+
+    // Reusable buffers for building packets
+    private ByteArrayWriter packet = new ByteArrayWriter();
+    private byte header[] = new byte[5];
+    private byte pad[] = new byte[36];
+    private byte mac[] = new byte[20];
+
+    // Write coalescing
+    private long coalescingWindow = 0;
+    private int maxBatchSize = 0;
+    private int batchPackets = 0;
+    private int batchBytes = 0;
+    private TimerTask pendingFlush = null;
+    private long batchCount = 0;
+    private long batchedPackets = 0;
+    private long batchedBytes = 0;
+    private int largestBatch = 0;
+
     /**
      *  Constructor for the TransportProtocolOutputStream object
      *
@@ -88,7 +119,134 @@ class TransportProtocolOutputStream {
     }
 
     /**
-     *  Sends a message
+     *  Enables write coalescing. Connection protocol packets are held in a
+     *  buffer and written together once either the batch reaches the
+     *  maximum size or the coalescing window has elapsed since the first
+     *  packet of the batch was queued.
+     *
+     *@param  coalescingWindow  the maximum time in milliseconds a packet may
+     *      be held, zero disables coalescing
+     *@param  maxBatchSize      the maximum number of bytes to hold
+     */
+    protected synchronized void setCoalescing(long coalescingWindow,
+            int maxBatchSize) {
+        if (coalescingWindow > 0 && maxBatchSize > 0) {
+            this.coalescingWindow = coalescingWindow;
+            this.maxBatchSize = maxBatchSize;
+            this.out = new BufferedOutputStream(out, maxBatchSize);
+
+            log.debug("Coalescing writes for up to "
+                    + String.valueOf(coalescingWindow) + "ms or "
+                    + String.valueOf(maxBatchSize) + " bytes");
+        }
+    }
+
+    /**
+     *  Gets the number of batches written to the socket
+     *
+     *@return    the batch count
+     */
+    protected synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     *  Gets the number of packets written in all batches
+     *
+     *@return    the packet count
+     */
+    protected synchronized long getBatchedPackets() {
+        return batchedPackets;
+    }
+
+    /**
+     *  Gets the number of bytes written in all batches
+     *
+     *@return    the byte count
+     */
+    protected synchronized long getBatchedBytes() {
+        return batchedBytes;
+    }
+
+    /**
+     *  Gets the number of packets in the largest batch written
+     *
+     *@return    the largest batch
+     */
+    protected synchronized int getLargestBatch() {
+        return largestBatch;
+    }
+
+    /**
+     *  Writes any packets held in the current batch to the socket
+     *
+     *@exception  IOException  if the socket fails
+     */
+    protected synchronized void flush() throws IOException {
+        if (pendingFlush != null) {
+            pendingFlush.cancel();
+            pendingFlush = null;
+        }
+
+        if (batchPackets > 0) {
+            out.flush();
+
+            batchCount++;
+            batchedPackets += batchPackets;
+            batchedBytes += batchBytes;
+
+            if (batchPackets > largestBatch) {
+                largestBatch = batchPackets;
+            }
+
+            batchPackets = 0;
+            batchBytes = 0;
+        }
+    }
+
+    /**
+     *  Decides whether to write the packet just queued now or to leave it
+     *  in the batch for a later flush
+     *
+     *@param  msg              the message just queued
+     *@param  len              the number of bytes queued
+     *@exception  IOException  if the socket fails
+     */
+    private void endPacket(SshMessage msg, int len) throws IOException {
+        batchPackets++;
+        batchBytes += len;
+
+        if (coalescingWindow <= 0
+                || msg.getMessageId() < FIRST_COALESCED_MESSAGE_ID
+                || batchBytes >= maxBatchSize) {
+            flush();
+        } else if (pendingFlush == null) {
+            pendingFlush = new TimerTask() {
+                public void run() {
+                    try {
+                        flush();
+                    } catch (IOException ioe) {
+                        log.debug("Failed to flush coalesced packets", ioe);
+                    }
+                }
+            };
+
+            getFlushTimer().schedule(pendingFlush, coalescingWindow);
+        }
+    }
+
+    private static synchronized Timer getFlushTimer() {
+        if (flushTimer == null) {
+            flushTimer = new Timer(true);
+        }
+
+        return flushTimer;
+    }
+
+    /**
+     *  Sends a message. The packet is built in a buffer owned by this stream,
+     *  with room for the packet header reserved in front of the payload, and
+     *  the MAC and encryption are applied to that buffer in place.
      *
      *@param  msg                             An SshMessage derived class
      *@exception  TransportProtocolException  if a protocol error occurs
@@ -103,77 +261,104 @@ class TransportProtocolOutputStream {
             SshHmac hmac = algorithms.getHmac();
             SshCompression compression = algorithms.getCompression();
 
-            // Get the message payload data
-            byte msgdata[] = msg.toByteArray();
             int padding = 4;
             int cipherlen = 8;
+            int maclen = 0;
+            int taglen = 0;
 
             // Determine the cipher length
             if (cipher != null) {
                 cipherlen = cipher.getBlockSize();
+                taglen = cipher.getTagLength();
             }
 
-            // Determine the padding length
-            padding += ((cipherlen
-                    - ((msgdata.length + 5 + padding) % cipherlen)) % cipherlen);
-
-            // Write the data into a byte array
-            ByteArrayWriter message = new ByteArrayWriter();
+            // An authenticated cipher replaces the MAC with its tag
+            if (taglen > 0) {
+                maclen = taglen;
+            } else if (hmac != null) {
+                maclen = hmac.getMacLength();
+            }
 
-            // Write the packet length field
-            message.writeInt(msgdata.length + 1 + padding);
+            // Reserve the packet length and padding length fields and then
+            // write the message payload straight after them
+            packet.reset();
+            packet.write(header, 0, 5);
+            msg.writeMessage(packet);
 
-            // Write the padding length
-            message.write(padding);
+            int payloadlen = packet.size() - 5;
 
-            // Write the message payload
-            message.write(msgdata);
+            // Determine the padding length, an authenticated cipher leaves
+            // the packet length field out of the encrypted blocks
+            int blocklen = payloadlen + padding + ((taglen > 0) ? 1 : 5);
+            padding += ((cipherlen - (blocklen % cipherlen)) % cipherlen);
 
             // Create some random data for the padding
-            byte pad[] = new byte[padding];
+            if (pad.length < padding) {
+                pad = new byte[padding];
+            }
+
             rnd.nextBytes(pad);
 
             // Write the padding
-            message.write(pad);
+            packet.write(pad, 0, padding);
 
-            // Get the unencrypted packet data
-            byte packet[] = message.toByteArray();
-            byte mac[] = null;
+            int packetlen = packet.size();
 
-            // Generate the MAC
-            if (hmac != null) {
-                mac = hmac.generate(sequenceNo, packet, 0, packet.length);
+            // Make room for the MAC
+            if (mac.length < maclen) {
+                mac = new byte[maclen];
             }
 
-            // Do some compression
-            if (compression != null) {
-                packet = compression.compress(packet);
-            }
+            packet.write(mac, 0, maclen);
 
-            // Perfrom encrpytion
-            if (cipher != null) {
-                packet = cipher.transform(packet);
-            }
-
-            // Reset the message
-            message.reset();
-
-            // Write the packet data
-            message.write(packet);
+            // Fill in the reserved packet length and padding length fields
+            byte data[] = packet.getArray();
+            ByteArrayWriter.writeIntToArray(data, 0, payloadlen + 1 + padding);
+            data[4] = (byte) padding;
 
-            // Combine the packet and MAC
-            if (mac != null) {
-                message.write(mac);
+            // Generate the MAC over the unencrypted packet
+            if (hmac != null && taglen == 0) {
+                hmac.generate(sequenceNo, data, 0, packetlen, data, packetlen);
             }
 
-            bytesTransfered += message.size();
-
-            // Send!
-            //if (socket.isConnected()) {
-            out.write(message.toByteArray());
-            //}
+            if (taglen > 0) {
+                if (compression != null) {
+                    throw new TransportProtocolException("Compression is not "
+                            + "supported with an authenticated cipher");
+                }
+
+                // Encrypt in place and write the tag where the MAC would go
+                cipher.sealPacket(data, 0, packetlen);
+                out.write(data, 0, packetlen + maclen);
+                bytesTransfered += packetlen + maclen;
+                endPacket(msg, packetlen + maclen);
+            } else if (compression != null) {
+                // Compression changes the packet size so it cannot be
+                // performed in place
+                byte compressed[] = new byte[packetlen];
+                System.arraycopy(data, 0, compressed, 0, packetlen);
+                compressed = compression.compress(compressed);
+
+                if (cipher != null) {
+                    compressed = cipher.transform(compressed);
+                }
+
+                out.write(compressed);
+                out.write(data, packetlen, maclen);
+                bytesTransfered += compressed.length + maclen;
+                endPacket(msg, compressed.length + maclen);
+            } else {
+                // Perform encryption in place
+                if (cipher != null) {
+                    cipher.transform(data, 0, packetlen, data, 0);
+                }
+
+                // Queue the packet and MAC together
+                out.write(data, 0, packetlen + maclen);
+                bytesTransfered += packetlen + maclen;
+                endPacket(msg, packetlen + maclen);
+            }
 
-            out.flush();
             algorithms.release();
 
             // Increment the sequence no
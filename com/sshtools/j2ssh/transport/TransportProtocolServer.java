@@ -24,13 +24,8 @@ package com.sshtools.j2ssh.transport;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.File;
-import java.io.FileInputStream;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -43,9 +38,6 @@ import com.sshtools.j2ssh.transport.hmac.SshHmacFactory;
 import com.sshtools.j2ssh.transport.kex.KeyExchangeException;
 import com.sshtools.j2ssh.transport.kex.SshKeyExchange;
 import com.sshtools.j2ssh.transport.publickey.SshPrivateKey;
-import com.sshtools.j2ssh.transport.publickey.SshPrivateKeyFile;
-import com.sshtools.j2ssh.transport.publickey.SshtoolsPrivateKeyFormat;
-import com.sshtools.j2ssh.transport.publickey.SshKeyPairFactory;
 
 
 /**
@@ -92,6 +84,24 @@ public class TransportProtocolServer
       acceptServices.clear();
     }
 
+    /**
+     * Gets the coalescing window from the server configuration
+     *
+     * @return the coalescing window in milliseconds
+     */
+    protected long getCoalescingWindow() {
+      return config.getCoalescingWindow();
+    }
+
+    /**
+     * Gets the maximum batch size from the server configuration
+     *
+     * @return the maximum batch size in bytes
+     */
+    protected int getMaxBatchSize() {
+      return config.getMaxBatchSize();
+    }
+
     /**
      * Adds the service to the available services that the client can request
      *
@@ -128,7 +138,11 @@ public class TransportProtocolServer
     public void registerTransportMessages()
                                    throws MessageAlreadyRegisteredException {
         messageStore.registerMessage(SshMsgServiceRequest.SSH_MSG_SERVICE_REQUEST,
-                              SshMsgServiceRequest.class);
+                new SshMessageFactory() {
+                  public SshMessage newInstance() {
+                    return new SshMsgServiceRequest();
+                  }
+                });
     }
 
     /**
@@ -313,33 +327,12 @@ public class TransportProtocolServer
         SshMsgKexInit msg = new SshMsgKexInit(properties);
 
         /** Set the available server host keys instead of the supported ones */
-        ServerConfiguration config =
-            ConfigurationLoader.getServerConfiguration();
+        List available = config.getHostKeyRegistry().getAvailableAlgorithms();
 
-        if (config==null) {
-            throw new TransportProtocolException("No server configuration available");
+        if (available.size() > 0) {
+            msg.setSupportedPK(available);
         } else {
-            Map keys = config.getServerHostKeys();
-
-            if (keys.size()>0) {
-                Iterator it = keys.entrySet().iterator();
-                List available = new ArrayList();
-                while(it.hasNext()) {
-                  Map.Entry entry = (Map.Entry)it.next();
-                  if(SshKeyPairFactory.supportsKey(entry.getKey().toString()))
-                    available.add(entry.getKey());
-                  else
-                    log.warn("Server host key algorithm '" + entry.getKey().toString() + "' not supported");
-
-                }
-
-                if(available.size() > 0)
-                  msg.setSupportedPK(available);
-                else
-                  throw new TransportProtocolException("No server host keys available");
-            } else {
-                throw new TransportProtocolException("No server host keys available");
-            }
+            throw new TransportProtocolException("No server host keys available");
         }
 
         return msg;
@@ -360,57 +353,14 @@ public class TransportProtocolServer
             determineAlgorithm(clientKexInit.getSupportedPublicKeys(),
                                serverKexInit.getSupportedPublicKeys());
 
-        // Create an instance of the public key from the factory
-        //SshKeyPair pair = SshKeyPairFactory.newInstance(keyType);
-        // Get the configuration and get the relevant host key
-        ServerConfiguration server =
-            ConfigurationLoader.getServerConfiguration();
-
-        if (server==null) {
-            throw new TransportProtocolException("Server configuration unavailable");
-        }
-
-        Map keys = server.getServerHostKeys();
-
-        Iterator it = keys.entrySet().iterator();
-        String privateKeyFile = null;
-
-        while (it.hasNext()) {
-            Map.Entry entry = (Map.Entry)it.next();
-
-            if (entry.getKey().equals(keyType)) {
-                privateKeyFile = entry.getValue().toString();
-                break;
-            }
-        }
+        // Get the parsed host key from the registry
+        SshPrivateKey pk = config.getHostKeyRegistry().getPrivateKey(keyType);
 
         // Perform the key exchange with the determined host key
-        if (privateKeyFile!=null) {
-            InputStream in;
-
-            //byte pubData[] = null;
-            byte prvData[] = null;
-
-            SshPrivateKey pk = null;
-
-           in = new FileInputStream(privateKeyFile);
-            byte buffer[] = new byte[in.available()];
-            in.read(buffer);
-            in.close();
-
-            SshPrivateKeyFile pkf =
-                SshPrivateKeyFile.parse(buffer);
-
-            if(!pkf.isPassphraseProtected()) {
-              pk = pkf.toPrivateKey(null);
-
-              kex.performServerExchange(clientIdent, serverIdent,
-                                    clientKexInit.toByteArray(),
-                                    serverKexInit.toByteArray(), pk);
-            }
-            else
-              log.warn(privateKeyFile
-                + " cannot be used as it is passphrase protected");
+        if (pk != null) {
+            kex.performServerExchange(clientIdent, serverIdent,
+                                      clientKexInit.toByteArray(),
+                                      serverKexInit.toByteArray(), pk);
 
             return;
         }
@@ -472,14 +422,24 @@ public class TransportProtocolServer
         sshCipher.init(SshCipher.DECRYPT_MODE, encryptCSIV, encryptCSKey);
         algorithmsIn.setCipher(sshCipher);
 
-        // Create and put our macs into operation
-        SshHmac hmac =
-            SshHmacFactory.newInstance(getOutputStreamMacAlgorithm());
-        hmac.init(macSCKey);
+        // Create and put our macs into operation, an authenticated cipher
+        // protects its packets itself so the negotiated MAC is not used
+        SshHmac hmac = null;
+
+        if (algorithmsOut.getCipher().getTagLength() == 0) {
+            hmac = SshHmacFactory.newInstance(getOutputStreamMacAlgorithm());
+            hmac.init(macSCKey);
+        }
+
         algorithmsOut.setHmac(hmac);
 
-        hmac = SshHmacFactory.newInstance(getInputStreamMacAlgorithm());
-        hmac.init(macCSKey);
+        hmac = null;
+
+        if (algorithmsIn.getCipher().getTagLength() == 0) {
+            hmac = SshHmacFactory.newInstance(getInputStreamMacAlgorithm());
+            hmac.init(macCSKey);
+        }
+
         algorithmsIn.setHmac(hmac);
     }
 
@@ -0,0 +1,133 @@
+/*
+ * Sshtools - Java SSH2 API
+ *
+ * Copyright (C) 2002 Lee David Painter.
+ *
+ * Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.transport.cipher;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sshtools.j2ssh.transport.AlgorithmOperationException;
+
+
+/**
+ * Implements the AES counter mode ciphers defined in RFC 4344. The JCE AES
+ * implementation is used so that the hardware AES instructions are used
+ * wherever the JVM supports them.
+ */
+public abstract class AesCtr
+    extends SshCipher {
+    /** The JCE transformation */
+    static final String TRANSFORMATION = "AES/CTR/NoPadding";
+    private int keyLength;
+    Cipher cipher;
+
+    /**
+     * Creates the cipher
+     *
+     * @param keyLength the key length in bytes
+     */
+    protected AesCtr(int keyLength) {
+        this.keyLength = keyLength;
+    }
+
+    /**
+     * Gets the blockSize of the cipher
+     *
+     * @return The blockSize value
+     */
+    public int getBlockSize() {
+        return 16;
+    }
+
+    /**
+     * Initiates the cipher object.
+     *
+     * @param mode The cipher mode
+     * @param iv The iv
+     * @param keydata The key
+     *
+     * @exception AlgorithmOperationException if an algorithm operation fails
+     */
+    public void init(int mode, byte iv[], byte keydata[])
+              throws AlgorithmOperationException {
+        try {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+
+            // Counter mode is the same operation in both directions
+            cipher.init(((mode==ENCRYPT_MODE) ? Cipher.ENCRYPT_MODE
+                                              : Cipher.DECRYPT_MODE),
+                        new SecretKeySpec(keydata, 0, keyLength, "AES"),
+                        new IvParameterSpec(iv, 0, 16));
+        } catch (NoSuchPaddingException nspe) {
+            throw new AlgorithmOperationException("Padding not supported");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AlgorithmOperationException("Algorithm not supported");
+        } catch (InvalidKeyException ike) {
+            throw new AlgorithmOperationException("Invalid encryption key");
+        } catch (InvalidAlgorithmParameterException ape) {
+            throw new AlgorithmOperationException("Invalid algorithm parameter");
+        }
+    }
+
+    /**
+     * Transform the data according to the cipher mode.
+     *
+     * @param data The untransformed data
+     * @param offset The offset to start
+     * @param len The length to transform
+     *
+     * @return The transformed data
+     *
+     * @throws AlgorithmOperationException if an algorithm operation fails
+     */
+    public byte[] transform(byte data[], int offset, int len)
+                     throws AlgorithmOperationException {
+        return cipher.update(data, offset, len);
+    }
+
+    /**
+     * Transform the data into the output buffer according to the cipher mode.
+     *
+     * @param input The untransformed data
+     * @param inputOffset The offset to start from in the input
+     * @param len The length of data to transform
+     * @param output The buffer to receive the transformed data
+     * @param outputOffset The offset to start from in the output
+     *
+     * @throws AlgorithmOperationException if an algorithm operation fails
+     */
+    public void transform(byte input[], int inputOffset, int len,
+                          byte output[], int outputOffset)
+                   throws AlgorithmOperationException {
+        try {
+            cipher.update(input, inputOffset, len, output, outputOffset);
+        } catch (ShortBufferException sbe) {
+            throw new AlgorithmOperationException("Output buffer too short");
+        }
+    }
+}
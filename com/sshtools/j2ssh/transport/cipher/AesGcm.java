@@ -0,0 +1,202 @@
+/*
+ * Sshtools - Java SSH2 API
+ *
+ * Copyright (C) 2002 Lee David Painter.
+ *
+ * Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.transport.cipher;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sshtools.j2ssh.transport.AlgorithmOperationException;
+
+
+/**
+ * Implements the AES Galois/Counter Mode ciphers defined in RFC 5647 under
+ * their OpenSSH names. The cipher authenticates each packet itself so no MAC
+ * is used with it; the packet length is sent in the clear as additional
+ * authenticated data and a 16 byte tag follows each packet. The 12 byte
+ * nonce is taken from the key exchange IV and its last 8 bytes are counted
+ * up for every packet.
+ */
+public abstract class AesGcm
+    extends SshCipher {
+    /** The JCE transformation */
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 16;
+    private int keyLength;
+    private int mode;
+    private SecretKeySpec key;
+    private byte nonce[] = new byte[12];
+    Cipher cipher;
+
+    /**
+     * Creates the cipher
+     *
+     * @param keyLength the key length in bytes
+     */
+    protected AesGcm(int keyLength) {
+        this.keyLength = keyLength;
+    }
+
+    /**
+     * Gets the blockSize of the cipher
+     *
+     * @return The blockSize value
+     */
+    public int getBlockSize() {
+        return 16;
+    }
+
+    /**
+     * Gets the length of the authentication tag added to each packet
+     *
+     * @return the tag length
+     */
+    public int getTagLength() {
+        return TAG_LENGTH;
+    }
+
+    /**
+     * Initiates the cipher object.
+     *
+     * @param mode The cipher mode
+     * @param iv The iv
+     * @param keydata The key
+     *
+     * @exception AlgorithmOperationException if an algorithm operation fails
+     */
+    public void init(int mode, byte iv[], byte keydata[])
+              throws AlgorithmOperationException {
+        try {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            key = new SecretKeySpec(keydata, 0, keyLength, "AES");
+            System.arraycopy(iv, 0, nonce, 0, nonce.length);
+            this.mode = mode;
+        } catch (NoSuchPaddingException nspe) {
+            throw new AlgorithmOperationException("Padding not supported");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AlgorithmOperationException("Algorithm not supported");
+        }
+    }
+
+    /**
+     * Not supported; packets are processed whole by <code>sealPacket</code>
+     * and <code>openPacket</code>.
+     *
+     * @param data The untransformed data
+     * @param offset The offset to start
+     * @param len The length to transform
+     *
+     * @return never
+     *
+     * @throws AlgorithmOperationException always
+     */
+    public byte[] transform(byte data[], int offset, int len)
+                     throws AlgorithmOperationException {
+        throw new AlgorithmOperationException("Packets must be sealed or opened whole");
+    }
+
+    /**
+     * Encrypts and authenticates a whole packet in place.
+     *
+     * @param data The buffer holding the packet, with room for the tag
+     * @param offset The offset of the packet length field
+     * @param len The length of the packet including the length field
+     *
+     * @throws AlgorithmOperationException if an algorithm operation fails
+     */
+    public void sealPacket(byte data[], int offset, int len)
+                    throws AlgorithmOperationException {
+        if (mode!=ENCRYPT_MODE) {
+            throw new AlgorithmOperationException("The cipher is not encrypting");
+        }
+
+        process(Cipher.ENCRYPT_MODE, data, offset, len - 4);
+    }
+
+    /**
+     * Verifies and decrypts a whole packet in place.
+     *
+     * @param data The buffer holding the packet and its tag
+     * @param offset The offset of the packet length field
+     * @param len The length of the packet including the length field
+     *
+     * @throws AlgorithmOperationException if the tag does not match or an
+     *         algorithm operation fails
+     */
+    public void openPacket(byte data[], int offset, int len)
+                    throws AlgorithmOperationException {
+        if (mode!=DECRYPT_MODE) {
+            throw new AlgorithmOperationException("The cipher is not decrypting");
+        }
+
+        process(Cipher.DECRYPT_MODE, data, offset, len - 4 + TAG_LENGTH);
+    }
+
+    /**
+     * Runs the cipher over a packet with the next nonce, using the packet
+     * length field as the additional authenticated data
+     *
+     * @param jceMode the JCE cipher mode
+     * @param data The buffer holding the packet
+     * @param offset The offset of the packet length field
+     * @param len The number of bytes to pass through the cipher after the
+     *        length field
+     *
+     * @throws AlgorithmOperationException if an algorithm operation fails
+     */
+    private void process(int jceMode, byte data[], int offset, int len)
+                  throws AlgorithmOperationException {
+        try {
+            cipher.init(jceMode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(data, offset, 4);
+            cipher.doFinal(data, offset + 4, len, data, offset + 4);
+        } catch (InvalidKeyException ike) {
+            throw new AlgorithmOperationException("Invalid encryption key");
+        } catch (InvalidAlgorithmParameterException ape) {
+            throw new AlgorithmOperationException("Invalid algorithm parameter");
+        } catch (ShortBufferException sbe) {
+            throw new AlgorithmOperationException("Output buffer too short");
+        } catch (IllegalBlockSizeException ibse) {
+            throw new AlgorithmOperationException("Invalid packet length");
+        } catch (AEADBadTagException abte) {
+            throw new AlgorithmOperationException("Corrupt authentication tag on input");
+        } catch (BadPaddingException bpe) {
+            throw new AlgorithmOperationException("Invalid packet data");
+        }
+
+        // Count up the invocation counter in the last 8 bytes of the nonce
+        for (int i = nonce.length - 1; i >= 4; i--) {
+            if (++nonce[i]!=0) {
+                break;
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -122,4 +123,25 @@ public class BlowfishCbc
                      throws AlgorithmOperationException {
         return cipher.update(data, offset, len);
     }
+
+    /**
+     * Transform the data into the output buffer according to the cipher mode.
+     *
+     * @param input The untransformed data
+     * @param inputOffset The offset to start from in the input
+     * @param len The length of data to transform
+     * @param output The buffer to receive the transformed data
+     * @param outputOffset The offset to start from in the output
+     *
+     * @throws AlgorithmOperationException if an algorithm operation fails
+     */
+    public void transform(byte input[], int inputOffset, int len,
+                          byte output[], int outputOffset)
+                   throws AlgorithmOperationException {
+        try {
+            cipher.update(input, inputOffset, len, output, outputOffset);
+        } catch (ShortBufferException sbe) {
+            throw new AlgorithmOperationException("Output buffer too short");
+        }
+    }
 }
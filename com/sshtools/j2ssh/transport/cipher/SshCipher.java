@@ -87,4 +87,70 @@ public abstract class SshCipher {
      */
     public abstract byte[] transform(byte data[], int offset, int len)
                               throws AlgorithmOperationException;
+
+    /**
+     * Called to transform the supplied data into an output buffer according
+     * to the cipher mode. The input and output may be the same buffer so that
+     * data can be transformed in place. Implementations should override this
+     * method to avoid the copy made by this default implementation.
+     *
+     * @param input The untransformed data
+     * @param inputOffset The offset to start in the input
+     * @param len The length to transform, a multiple of the block size
+     * @param output The buffer to receive the transformed data
+     * @param outputOffset The offset to start in the output
+     *
+     * @throws AlgorithmOperationException if an algorithm operation fails
+     */
+    public void transform(byte input[], int inputOffset, int len,
+                          byte output[], int outputOffset)
+                   throws AlgorithmOperationException {
+        byte transformed[] = transform(input, inputOffset, len);
+        System.arraycopy(transformed, 0, output, outputOffset, transformed.length);
+    }
+
+    /**
+     * Gets the length of the authentication tag an authenticated cipher adds
+     * to each packet. Packets encrypted by an authenticated cipher need no
+     * separate message authentication and are processed whole by
+     * <code>sealPacket</code> and <code>openPacket</code>.
+     *
+     * @return the tag length, or zero if the cipher relies on a separate MAC
+     */
+    public int getTagLength() {
+        return 0;
+    }
+
+    /**
+     * Encrypts and authenticates a whole packet in place. The packet length
+     * field in the first four bytes is authenticated but left in the clear
+     * and the tag is written straight after the packet.
+     *
+     * @param data The buffer holding the packet, with room for the tag
+     * @param offset The offset of the packet length field
+     * @param len The length of the packet including the length field
+     *
+     * @throws AlgorithmOperationException if the cipher is not authenticated
+     *         or an algorithm operation fails
+     */
+    public void sealPacket(byte data[], int offset, int len)
+                    throws AlgorithmOperationException {
+        throw new AlgorithmOperationException("The cipher is not authenticated");
+    }
+
+    /**
+     * Verifies and decrypts a whole packet in place. The packet length field
+     * in the first four bytes is in the clear and the tag follows the packet.
+     *
+     * @param data The buffer holding the packet and its tag
+     * @param offset The offset of the packet length field
+     * @param len The length of the packet including the length field
+     *
+     * @throws AlgorithmOperationException if the cipher is not authenticated,
+     *         the tag does not match or an algorithm operation fails
+     */
+    public void openPacket(byte data[], int offset, int len)
+                    throws AlgorithmOperationException {
+        throw new AlgorithmOperationException("The cipher is not authenticated");
+    }
 }
@@ -29,6 +29,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import javax.crypto.Cipher;
+
 import com.sshtools.j2ssh.configuration.SshAPIConfiguration;
 import com.sshtools.j2ssh.configuration.ExtensionAlgorithm;
 import com.sshtools.j2ssh.configuration.ConfigurationLoader;
@@ -57,6 +59,17 @@ public class SshCipherFactory {
         ciphers.put("3des-cbc", TripleDesCbc.class);
         ciphers.put("blowfish-cbc", BlowfishCbc.class);
 
+        // The AES ciphers are only offered if the JCE provides their modes
+        if (isTransformationSupported(AesCtr.TRANSFORMATION)) {
+            ciphers.put("aes128-ctr", Aes128Ctr.class);
+            ciphers.put("aes256-ctr", Aes256Ctr.class);
+        }
+
+        if (isTransformationSupported(AesGcm.TRANSFORMATION)) {
+            ciphers.put("aes128-gcm@openssh.com", Aes128Gcm.class);
+            ciphers.put("aes256-gcm@openssh.com", Aes256Gcm.class);
+        }
+
         // Load ciphers from configuration file
         SshAPIConfiguration config = ConfigurationLoader.getAPIConfiguration();
 
@@ -97,10 +110,38 @@ public class SshCipherFactory {
 
         // If no default cipher is set or the cipher is incorrect
         if ((defaultCipher==null) || !ciphers.containsKey(defaultCipher)) {
-            log.debug("The default cipher is not set! using first in list");
+            if (ciphers.containsKey("aes128-ctr")) {
+                log.debug("The default cipher is not set! using aes128-ctr");
+                defaultCipher = "aes128-ctr";
+            } else {
+                log.debug("The default cipher is not set! using first in list");
+
+                Iterator it = ciphers.keySet().iterator();
+                defaultCipher = (String) it.next();
+            }
+        }
+    }
+
+    /**
+     * Determines whether the JCE can create a cipher transformation
+     *
+     * @param transformation the JCE transformation
+     *
+     * @return <tt>true</tt> if the transformation is available
+     */
+    private static boolean isTransformationSupported(String transformation) {
+        try {
+            Cipher.getInstance(transformation);
+
+            return true;
+        } catch (Exception e) {
+            log.info(transformation + " is not available");
+
+            return false;
+        } catch (NoClassDefFoundError e) {
+            log.info(transformation + " is not available");
 
-            Iterator it = ciphers.keySet().iterator();
-            defaultCipher = (String) it.next();
+            return false;
         }
     }
 
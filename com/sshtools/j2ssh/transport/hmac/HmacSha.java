@@ -25,6 +25,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 import com.sshtools.j2ssh.transport.AlgorithmInitializationException;
@@ -39,6 +40,8 @@ import org.apache.log4j.Logger;
 public class HmacSha
     implements SshHmac {
     private Mac mac;
+    private byte digest[];
+    private byte sequenceBytes[] = new byte[4];
     private static Logger log = Logger.getLogger(HmacSha.class);
 
     /**
@@ -67,8 +70,40 @@ public class HmacSha
      * @return The mac
      */
     public byte[] generate(long sequenceNo, byte data[], int offset, int len) {
+        byte generated[] = new byte[getMacLength()];
+
+        generate(sequenceNo, data, offset, len, generated, 0);
+
+        return generated;
+    }
+
+    /**
+     * Generates the mac into an output buffer
+     *
+     * @param sequenceNo The sequence no of the message
+     * @param data The message data
+     * @param offset The offset of the message data
+     * @param len The length of the message data
+     * @param output The buffer to receive the mac
+     * @param outputOffset The position in the output to write the mac
+     */
+    public void generate(long sequenceNo, byte data[], int offset, int len,
+                         byte output[], int outputOffset) {
+        doFinal(sequenceNo, data, offset, len);
+
+        System.arraycopy(digest, 0, output, outputOffset, getMacLength());
+    }
+
+    /**
+     * Computes the mac of the message into the digest buffer
+     *
+     * @param sequenceNo The sequence no of the message
+     * @param data The message data
+     * @param offset The offset of the message data
+     * @param len The length of the message data
+     */
+    private void doFinal(long sequenceNo, byte data[], int offset, int len) {
         // Write the sequence no
-        byte sequenceBytes[] = new byte[4];
         sequenceBytes[0] = (byte) (sequenceNo >> 24);
         sequenceBytes[1] = (byte) (sequenceNo >> 16);
         sequenceBytes[2] = (byte) (sequenceNo >> 8);
@@ -78,7 +113,11 @@ public class HmacSha
 
         mac.update(data, offset, len);
 
-        return mac.doFinal();
+        try {
+            mac.doFinal(digest, 0);
+        } catch (ShortBufferException sbe) {
+            throw new IllegalStateException("The digest buffer is too short");
+        }
     }
 
     /**
@@ -100,6 +139,8 @@ public class HmacSha
             SecretKeySpec keyspec = new SecretKeySpec(key, "HmacSha1");
 
             mac.init(keyspec);
+
+            digest = new byte[mac.getMacLength()];
         } catch (NoSuchAlgorithmException nsae) {
             throw new AlgorithmInitializationException("No provider exists for the HmacSha1 algorithm");
         } catch (InvalidKeyException ike) {
@@ -116,19 +157,28 @@ public class HmacSha
      * @return The result of the verification
      */
     public boolean verify(long sequenceNo, byte data[]) {
-      int len = getMacLength();
-
-      //log.debug("MAC Data length: " + String.valueOf(data.length));
-
-      byte generated[] = generate(sequenceNo, data, 0, data.length - len);
+      return verify(sequenceNo, data, 0, data.length - getMacLength());
+    }
 
-      String compare1 = new String(generated);
-      String compare2 = new String(data, data.length - len, len);
+    /**
+     * Verifies the mac that follows the message data in the buffer
+     *
+     * @param sequenceNo The sequence no of the message
+     * @param data The buffer containing the message data and the mac
+     * @param offset The offset of the message data
+     * @param len The length of the message data
+     *
+     * @return The result of the verification
+     */
+    public boolean verify(long sequenceNo, byte data[], int offset, int len) {
+      int maclen = getMacLength();
 
-      //log.debug("Generated: " + compare1);
-      //log.debug("Actual   : " + compare2);
+      doFinal(sequenceNo, data, offset, len);
 
-      boolean result = compare1.equals(compare2);
+      boolean result = true;
+      for (int i = 0; i < maclen && result; i++) {
+        result = (digest[i] == data[offset + len + i]);
+      }
 
       /*if (!result) {
         /**
@@ -50,6 +50,19 @@ public interface SshHmac {
      */
     public byte[] generate(long sequenceNo, byte data[], int offset, int len);
 
+    /**
+     * Called to generate a mac into an output buffer
+     *
+     * @param sequenceNo The sequence no of the message
+     * @param data The message data
+     * @param offset The offset of the message data
+     * @param len The length of the message data
+     * @param output The buffer to receive the mac
+     * @param outputOffset The position in the output to write the mac
+     */
+    public void generate(long sequenceNo, byte data[], int offset, int len,
+                         byte output[], int outputOffset);
+
     /**
      * Called by the framework to initialize the mac
      *
@@ -70,4 +83,17 @@ public interface SshHmac {
      * @return The result of the verification
      */
     public boolean verify(long sequenceNo, byte data[]);
+
+    /**
+     * Called to verify a mac against a region of a buffer. The mac is
+     * expected to follow the message data immediately in the buffer.
+     *
+     * @param sequenceNo The sequence no of the message
+     * @param data The buffer containing the message data and the mac
+     * @param offset The offset of the message data
+     * @param len The length of the message data excluding the mac
+     *
+     * @return The result of the verification
+     */
+    public boolean verify(long sequenceNo, byte data[], int offset, int len);
 }
@@ -26,16 +26,14 @@ import java.math.BigInteger;
 
 import java.security.NoSuchAlgorithmException;
 
-import java.util.Random;
-
 import com.sshtools.j2ssh.SshException;
 import com.sshtools.j2ssh.transport.MessageAlreadyRegisteredException;
+import com.sshtools.j2ssh.transport.SshMessage;
+import com.sshtools.j2ssh.transport.SshMessageFactory;
 import com.sshtools.j2ssh.transport.TransportProtocol;
 import com.sshtools.j2ssh.transport.publickey.SshPrivateKey;
 import com.sshtools.j2ssh.util.Hash;
 
-import com.sshtools.j2ssh.configuration.ConfigurationLoader;
-
 import java.io.IOException;
 
 /**
@@ -59,12 +57,12 @@ public class DhGroup1Sha1
     /**
      *  The value g used during diffie hellman key exchange
      */
-    private BigInteger g = new BigInteger("2");
+    private static BigInteger g = new BigInteger("2");
 
     /**
      *  The prime used in diffie hellman key exchange
      */
-    private BigInteger p =
+    private static BigInteger p =
             new BigInteger("FFFFFFFFFFFFFFFFC90FDAA22168C234"
             + "C4C6628B80DC1CD129024E088A67CC74"
             + "020BBEA63B139B22514A08798E3404DD"
@@ -77,7 +75,7 @@ public class DhGroup1Sha1
     /**
      *  The value q used in diffie hellman key exchange
      */
-    private BigInteger q =
+    private static BigInteger q =
             new BigInteger("7FFFFFFFFFFFFFFFE487ED5110B4611A"
             + "62633145C06E0E68948127044533E63A"
             + "0105DF531D89CD9128A5043CC71A026E"
@@ -87,6 +85,11 @@ public class DhGroup1Sha1
             + "F71C35FDAD44CFD2D74F9208BE258FF3"
             + "24943323F67329C0FFFFFFFFFFFFFFFF", 16);
 
+    /**
+     *  The pool of precalculated key pairs for this group
+     */
+    private static DhKeyPairPool pool = new DhKeyPairPool(g, p, q);
+
     /**
      *  The random value x used during diffie hellman key exchange
      */
@@ -109,6 +112,16 @@ public class DhGroup1Sha1
     public DhGroup1Sha1() { }
 
 
+    /**
+     *  Gets the pool of precalculated key pairs used by this key exchange
+     *
+     *@return    the key pair pool
+     */
+    public static DhKeyPairPool getKeyPairPool() {
+        return pool;
+    }
+
+
     /**
      *  Called by the framework to initate the key exchange.
      *
@@ -119,10 +132,18 @@ public class DhGroup1Sha1
     protected void onInit() {
 
             messageStore.registerMessage(SshMsgKexDhInit.SSH_MSG_KEXDH_INIT,
-                    SshMsgKexDhInit.class);
+                    new SshMessageFactory() {
+                      public SshMessage newInstance() {
+                        return new SshMsgKexDhInit();
+                      }
+                    });
 
             messageStore.registerMessage(SshMsgKexDhReply.SSH_MSG_KEXDH_REPLY,
-                    SshMsgKexDhReply.class);
+                    new SshMessageFactory() {
+                      public SshMessage newInstance() {
+                        return new SshMsgKexDhReply();
+                      }
+                    });
 
     }
 
@@ -149,19 +170,10 @@ public class DhGroup1Sha1
         this.clientKexInit = clientKexInit;
         this.serverKexInit = serverKexInit;
 
-        int minBits = g.bitLength();
-        int maxBits = q.bitLength();
-
-        Random rnd = ConfigurationLoader.getRND();
-
-        // Generate a random bit count for the random x value
-        int genBits =
-                (int) (((maxBits - minBits + 1) * rnd.nextFloat()) + minBits);
-
-        x = new BigInteger(genBits, rnd);
-
-        // Calculate e
-        e = g.modPow(x, p);
+        // Take x and e = g^x mod p from the pool
+        BigInteger pair[] = pool.getKeyPair();
+        x = pair[0];
+        e = pair[1];
 
         // Prepare the message
         SshMsgKexDhInit msg = new SshMsgKexDhInit(e);
@@ -215,19 +227,10 @@ public class DhGroup1Sha1
             this.clientKexInit = clientKexInit;
             this.serverKexInit = serverKexInit;
 
-            int minBits = g.bitLength();
-            int maxBits = q.bitLength();
-
-            Random rnd = ConfigurationLoader.getRND();
-
-            // Generate a random bit count for the random x value
-            int genBits =
-                    (int) (((maxBits - minBits + 1) * rnd.nextFloat()) + minBits);
-
-            y = new BigInteger(genBits, rnd);
-
-            // Calculate f
-            f = g.modPow(y, p);
+            // Take y and f = g^y mod p from the pool
+            BigInteger pair[] = pool.getKeyPair();
+            y = pair[0];
+            f = pair[1];
 
             // Wait for the e value and calculate the other parameters
             int messageId[] = new int[1];
@@ -0,0 +1,207 @@
+/*
+ *  Sshtools - Java SSH2 API
+ *
+ *  Copyright (C) 2002 Lee David Painter.
+ *
+ *  Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Library General Public License
+ *  as published by the Free Software Foundation; either version 2 of
+ *  the License, or (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Library General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Library General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.transport.kex;
+
+import org.apache.log4j.Logger;
+
+import java.math.BigInteger;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import com.sshtools.j2ssh.SshThread;
+import com.sshtools.j2ssh.configuration.ConfigurationLoader;
+
+/**
+ *  Keeps a bounded pool of diffie hellman key pairs for a group so that the
+ *  key exchange does not have to calculate its public value during the
+ *  handshake. A low priority thread refills the pool whenever a key pair is
+ *  taken. Each key pair is removed from the pool when it is taken and is
+ *  never handed out twice; when the pool is empty a key pair is generated on
+ *  the callers thread.
+ */
+public class DhKeyPairPool
+         implements Runnable {
+    /**
+     *  The default number of key pairs kept in the pool
+     */
+    public final static int DEFAULT_CAPACITY = 8;
+
+    private static Logger log = Logger.getLogger(DhKeyPairPool.class);
+    private BigInteger g;
+    private BigInteger p;
+    private BigInteger q;
+    private LinkedList pairs = new LinkedList();
+    private int capacity = DEFAULT_CAPACITY;
+    private long hits = 0;
+    private long misses = 0;
+    private Thread thread = null;
+
+
+    /**
+     *  Creates a new DhKeyPairPool object for a group
+     *
+     *@param  g  the generator
+     *@param  p  the prime modulus
+     *@param  q  the order of the group
+     */
+    public DhKeyPairPool(BigInteger g, BigInteger p, BigInteger q) {
+        this.g = g;
+        this.p = p;
+        this.q = q;
+    }
+
+
+    /**
+     *  Sets the number of key pairs kept in the pool. A capacity of zero
+     *  stops the pool generating key pairs in the background.
+     *
+     *@param  capacity  the number of key pairs to keep
+     */
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+
+        while (pairs.size() > capacity) {
+            pairs.removeFirst();
+        }
+
+        notifyAll();
+    }
+
+
+    /**
+     *  Gets the number of key pairs kept in the pool
+     *
+     *@return    the capacity of the pool
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+
+    /**
+     *  Gets the number of key pairs ready in the pool
+     *
+     *@return    the number of pooled key pairs
+     */
+    public synchronized int getAvailable() {
+        return pairs.size();
+    }
+
+
+    /**
+     *  Gets the number of key pairs taken from the pool
+     *
+     *@return    the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    /**
+     *  Gets the number of key pairs generated on the callers thread because
+     *  the pool was empty
+     *
+     *@return    the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    /**
+     *  Takes a key pair from the pool, generating one if the pool is empty.
+     *  The first call starts the thread that fills the pool.
+     *
+     *@return    an array containing the private value at index 0 and the
+     *      public value at index 1
+     */
+    public BigInteger[] getKeyPair() {
+        synchronized (this) {
+            if (thread == null) {
+                thread = new SshThread(this, "DH key pair generator", true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.start();
+            }
+
+            if (!pairs.isEmpty()) {
+                hits++;
+                notifyAll();
+
+                return (BigInteger[]) pairs.removeFirst();
+            }
+
+            misses++;
+            notifyAll();
+        }
+
+        return generateKeyPair();
+    }
+
+
+    /**
+     *  Generates a key pair with a random private value
+     *
+     *@return    an array containing the private value at index 0 and the
+     *      public value at index 1
+     */
+    public BigInteger[] generateKeyPair() {
+        int minBits = g.bitLength();
+        int maxBits = q.bitLength();
+
+        Random rnd = ConfigurationLoader.getRND();
+
+        // Generate a random bit count for the random x value
+        int genBits =
+                (int) (((maxBits - minBits + 1) * rnd.nextFloat()) + minBits);
+
+        BigInteger x = new BigInteger(genBits, rnd);
+
+        return new BigInteger[] { x, g.modPow(x, p) };
+    }
+
+
+    /**
+     *  Keeps the pool filled
+     */
+    public void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (pairs.size() >= capacity) {
+                        wait();
+                    }
+                }
+
+                BigInteger pair[] = generateKeyPair();
+
+                synchronized (this) {
+                    if (pairs.size() < capacity) {
+                        pairs.addLast(pair);
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            log.debug("DH key pair generator interrupted");
+        }
+    }
+}
@@ -21,16 +21,11 @@
  */
 package com.sshtools.j2ssh.util;
 
-import java.io.IOException;
-
 import java.math.BigInteger;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-import com.sshtools.j2ssh.io.ByteArrayWriter;
-
-
 /**
  * <p>
  * Template helper class for Hash alogorithms, wraps the MessageDigest class
@@ -44,6 +39,7 @@ import com.sshtools.j2ssh.io.ByteArrayWriter;
  */
 public class Hash {
     private MessageDigest hash;
+    private byte intBytes[] = new byte[4];
 
     /**
      * Constructor for the Hash object
@@ -95,14 +91,12 @@ public class Hash {
      * @param i The integer value
      */
     public void putInt(int i) {
-        ByteArrayWriter baw = new ByteArrayWriter();
-
-        try {
-            baw.writeInt(i);
-        } catch (IOException ioe) {
-        }
+        intBytes[0] = (byte) (i >> 24);
+        intBytes[1] = (byte) (i >> 16);
+        intBytes[2] = (byte) (i >> 8);
+        intBytes[3] = (byte) (i);
 
-        hash.update(baw.toByteArray());
+        hash.update(intBytes);
     }
 
     /**
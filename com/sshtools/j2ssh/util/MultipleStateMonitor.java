@@ -21,39 +21,26 @@
  */
 package com.sshtools.j2ssh.util;
 
-import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
 
-import com.sshtools.j2ssh.SshThread;
-
 
 /**
- * <p>
- * Title:
- * </p>
- *
- * <p>
- * Description:
- * </p>
- *
- * <p>
- * Copyright: Copyright (c) 2002
- * </p>
- *
- * <p>
- * Company:
- * </p>
+ * Waits for any one of a number of states to change. The monitor listens to
+ * the states only while <code>monitor</code> is waiting, so no threads are
+ * used and nothing is left registered with the states between calls.
  *
  * @author unascribed
  * @version 1.0
  *
  * @created 20 December 2002
  */
-public class MultipleStateMonitor {
-    private List monitors = new Vector();
+public class MultipleStateMonitor
+    implements StateListener {
     private List states = new Vector();
     private State changed = null;
+    private boolean isWaiting = false;
+    private boolean isBroken = false;
 
     /**
      * Creates a new MultipleStateMonitor object.
@@ -71,90 +58,79 @@ public class MultipleStateMonitor {
     }
 
     /**
-     * DOCUMENT ME!
+     * Removes a state from the monitor
+     *
+     * @param state the state to remove
+     */
+    public void removeState(State state) {
+        states.remove(state);
+    }
+
+    /**
+     * Releases a thread waiting in <code>monitor</code>, which returns
+     * <tt>null</tt>
      */
     public synchronized void breakWaiting() {
+        isBroken = true;
         notifyAll();
     }
 
     /**
      * Waits for any of the states to change
      *
-     * @return
+     * @return the state that changed, or <tt>null</tt> if the wait was
+     *         broken
      */
-    public synchronized State monitor() {
-        monitors.clear();
+    public State monitor() {
+        synchronized (this) {
+            changed = null;
+            isBroken = false;
+            isWaiting = true;
+        }
 
-        Iterator it = states.iterator();
+        Object monitored[] = states.toArray();
 
-        while (it.hasNext()) {
-            monitors.add(new StateMonitor((State) it.next(), this));
+        for (int i = 0; i < monitored.length; i++) {
+            ((State) monitored[i]).addStateListener(this);
         }
 
         try {
-            wait();
-        } catch (InterruptedException e) {
-        }
+            synchronized (this) {
+                while ((changed == null) && !isBroken) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+
+                isWaiting = false;
 
-        return changed;
+                return changed;
+            }
+        } finally {
+            for (int i = 0; i < monitored.length; i++) {
+                ((State) monitored[i]).removeStateListener(this);
+            }
+        }
     }
 
     /**
-     * DOCUMENT ME!
+     * Releases a thread waiting in <code>monitor</code>, which returns
+     * <tt>null</tt>
      */
-    public synchronized void updateState() {
-        notifyAll();
+    public void updateState() {
+        breakWaiting();
     }
 
     /**
-     * DOCUMENT ME!
+     * Called when one of the monitored states is set
      *
-     * @author $author$
-     * @version $Revision: 1.3 $
-     *
-     * @created 20 December 2002
+     * @param state the state that was set
      */
-    class StateMonitor
-        implements Runnable {
-        private MultipleStateMonitor monitor;
-        private State state;
-        private Thread thread;
-        private boolean active = false;
-
-        /**
-         * Creates a new StateMonitor object.
-         *
-         * @param state DOCUMENT ME!
-         * @param monitor DOCUMENT ME!
-         */
-        public StateMonitor(State state, MultipleStateMonitor monitor) {
-            this.state = state;
-            this.monitor = monitor;
-            thread = new SshThread(this, "Multiple state monitor", true);
-            thread.start();
-        }
-
-        /**
-         * DOCUMENT ME!
-         */
-        public void close() {
-            active = false;
-            monitor.breakWaiting();
-        }
-
-        /**
-         * DOCUMENT ME!
-         */
-        public void run() {
-            active = true;
-
-            while (active) {
-                state.waitForStateUpdate();
-
-                if (active) {
-                    monitor.updateState();
-                }
-            }
+    public synchronized void stateChanged(State state) {
+        if (isWaiting && (changed == null)) {
+            changed = state;
+            notifyAll();
         }
     }
 }
@@ -21,9 +21,12 @@
  */
 package com.sshtools.j2ssh.util;
 
+import javax.swing.event.EventListenerList;
+
 /**
  * An abstract state object providing get, set and wait methods to manage the
- * state of an object
+ * state of an object. Instead of waiting, a <code>StateListener</code> can be
+ * added to be called back each time the state is set.
  *
  * @author Lee David Painter
  * @version $Id: State.java,v 1.3 2003/01/10 21:50:18 martianx Exp $
@@ -33,6 +36,7 @@ package com.sshtools.j2ssh.util;
 public abstract class State {
     /** the state value */
     protected int state;
+    private EventListenerList listenerList = new EventListenerList();
 
     /**
      * Create the state
@@ -59,14 +63,36 @@ public abstract class State {
      *
      * @throws InvalidStateException if the state is an invalid value
      */
-    public synchronized void setValue(int state)
-                                throws InvalidStateException {
-        if (!isValidState(state)) {
-            throw new InvalidStateException("The state is invalid");
+    public void setValue(int state)
+                  throws InvalidStateException {
+        synchronized (this) {
+            if (!isValidState(state)) {
+                throw new InvalidStateException("The state is invalid");
+            }
+
+            this.state = state;
+            notifyAll();
         }
 
-        this.state = state;
-        notifyAll();
+        fireStateChanged();
+    }
+
+    /**
+     * Adds a listener to be called each time the state is set
+     *
+     * @param listener the listener to add
+     */
+    public void addStateListener(StateListener listener) {
+        listenerList.add(StateListener.class, listener);
+    }
+
+    /**
+     * Removes a state listener
+     *
+     * @param listener the listener to remove
+     */
+    public void removeStateListener(StateListener listener) {
+        listenerList.remove(StateListener.class, listener);
     }
 
     /**
@@ -119,4 +145,17 @@ public abstract class State {
 
         return state;
     }
+
+    /**
+     * Informs the listeners that the state has been set
+     */
+    private void fireStateChanged() {
+        Object listeners[] = listenerList.getListenerList();
+
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == StateListener.class) {
+                ((StateListener) listeners[i + 1]).stateChanged(this);
+            }
+        }
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * Sshtools - Java SSH2 API
+ *
+ * Copyright (C) 2002 Lee David Painter.
+ *
+ * Written by: 2002 Lee David Painter <lee@sshtools.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public License
+ * as published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package com.sshtools.j2ssh.util;
+
+import java.util.EventListener;
+
+/**
+ * Implemented by objects that want to be told when a <code>State</code>
+ * changes instead of waiting for it. The method is called on the thread that
+ * set the state once the state has been updated, so implementations should
+ * return as quickly as possible and read the current value with
+ * <code>getValue</code>.
+ */
+public interface StateListener extends EventListener {
+    /**
+     * Called each time the state is set
+     *
+     * @param state the state that was set
+     */
+    public void stateChanged(State state);
+}